@@ -0,0 +1,52 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.mqtt;
+
+import io.moquette.interception.AbstractInterceptHandler;
+import io.moquette.interception.messages.InterceptPublishMessage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An intercept handler that hands messages published to the embedded broker directly to the plugin. This avoids
+ * having to connect to the embedded broker with a loopback MQTT client just to subscribe to device topics.
+ *
+ * @author Dan Noguerol
+ */
+public class MQTTInterceptHandler extends AbstractInterceptHandler {
+    private MQTTMessageReceiver receiver;
+
+    MQTTInterceptHandler(MQTTMessageReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void onPublish(InterceptPublishMessage msg) {
+        String topic = msg.getTopicName();
+        if (isDeviceTopic(topic)) {
+            // the payload buffer is shared with the broker so read it through a duplicate
+            ByteBuffer buf = msg.getPayload().duplicate();
+            byte[] payload = new byte[buf.remaining()];
+            buf.get(payload);
+            receiver.onMessage(topic, payload, msg.getReceivedNanos());
+        }
+    }
+
+    /**
+     * Indicates whether a topic is one the plugin would otherwise subscribe to (i.e. "bootstrap/#" or "device/#").
+     *
+     * @param topic the topic name
+     *
+     * @return a boolean
+     */
+    static boolean isDeviceTopic(String topic) {
+        return (topic != null && (topic.equals("bootstrap") || topic.startsWith("bootstrap/") || topic.equals("device") || topic.startsWith("device/")));
+    }
+}
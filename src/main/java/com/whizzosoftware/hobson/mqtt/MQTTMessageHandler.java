@@ -94,7 +94,7 @@ public class MQTTMessageHandler {
             } else {
                 logger.error("Device registration missing device ID or nonce");
             }
-        } else if (deviceDataTopicPattern.matcher(topic).matches()) {
+        } else if (isDeviceDataTopic(topic)) {
             try {
                 // alert listener of received data
                 int ix = topic.indexOf('/') + 1;
@@ -126,4 +126,15 @@ public class MQTTMessageHandler {
         topics.put("command", "device/" + id + "/command");
         return topics;
     }
+
+    /**
+     * Indicates whether a topic is one that devices submit variable data on.
+     *
+     * @param topic the topic name
+     *
+     * @return a boolean
+     */
+    public boolean isDeviceDataTopic(String topic) {
+        return deviceDataTopicPattern.matcher(topic).matches();
+    }
 }
@@ -24,8 +24,12 @@ import com.whizzosoftware.hobson.api.variable.DeviceVariableState;
 import com.whizzosoftware.hobson.mqtt.action.AddDeviceActionProvider;
 import com.whizzosoftware.hobson.mqtt.device.MQTTDevice;
 import io.moquette.BrokerConstants;
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.proto.messages.PublishMessage;
 import io.moquette.server.Server;
 import io.moquette.server.config.MemoryConfig;
+import io.moquette.server.netty.metrics.LatencyMetrics;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import org.json.JSONException;
@@ -37,17 +41,20 @@ import org.slf4j.LoggerFactory;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 
 /**
- * The MQTT plugin. This creates an embedded MQTT broker to proxy MQTT events to Hobson.
+ * The MQTT plugin. This creates an embedded MQTT broker to proxy MQTT events to Hobson. When the embedded broker
+ * is used, messages are exchanged with it in-process; an MQTT client connection is only made to external brokers.
  *
  * @author Dan Noguerol
  */
-public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQTTMessageSink, MQTTEventDelegate, MQTTSecretProvider {
+public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQTTMessageSink, MQTTMessageReceiver, MQTTEventDelegate, MQTTSecretProvider {
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     private final static int DEFAULT_PORT = 1883;
@@ -55,6 +62,7 @@ public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQ
     private final static String PROP_BROKER_USER = "brokerUser";
     private final static String PROP_BROKER_PASSWORD = "brokerPassword";
     private final static String DEFAULT_CLIENT_BROKER = "tcp://localhost:"  + DEFAULT_PORT;
+    private final static int LATENCY_LOG_INTERVAL = 300; // in seconds
 
     private Server server;
     private final MqttConnectOptions connOpts;
@@ -121,8 +129,9 @@ public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQ
             Properties mqttConfig = new Properties();
             mqttConfig.put(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, getDataFile("moquette_store.mapdb").getAbsolutePath());
             mqttConfig.put(BrokerConstants.PORT, DEFAULT_PORT);
+            mqttConfig.put(BrokerConstants.LATENCY_METRICS_LOG_INTERVAL_PROPERTY_NAME, Integer.toString(LATENCY_LOG_INTERVAL));
             server = new Server();
-            server.startServer(new MemoryConfig(mqttConfig), null, null, new MQTTAuthenticator(this, clientAdminUser, clientAdminPassword), new MQTTAuthorizator(clientAdminUser));
+            server.startServer(new MemoryConfig(mqttConfig), Collections.singletonList(new MQTTInterceptHandler(this)), null, new MQTTAuthenticator(this, clientAdminUser, clientAdminPassword), new MQTTAuthorizator(clientAdminUser));
             logger.debug("MQTT broker has started");
 
             // publish an SSDP device advertisement for the MQTT broker
@@ -214,16 +223,43 @@ public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQ
 
     @Override
     public void messageArrived(final String topic, final MqttMessage mqttMessage) throws Exception {
+        processMessage(topic, mqttMessage.getPayload(), null);
+    }
+
+    @Override
+    public void onMessage(String topic, byte[] payload, long receivedNanos) {
+        processMessage(topic, payload, receivedNanos);
+    }
+
+    /**
+     * Returns the latency percentiles recorded by the embedded broker, including the end-to-end time from a device
+     * publish being received to its data being applied to the device.
+     *
+     * @return a Map of stage to latency metrics (empty if an external broker is used)
+     */
+    public Map<LatencyMetricsCollector.Stage,LatencyMetrics> getLatencyMetrics() {
+        Server s = server;
+        if (s != null) {
+            return s.getLatencyMetrics().computeMetrics();
+        } else {
+            return Collections.emptyMap();
+        }
+    }
+
+    private void processMessage(final String topic, final byte[] payload, final Long receivedNanos) {
         try {
-            logger.trace("Message arrived on topic " + topic + ": " + new String(mqttMessage.getPayload()));
+            logger.trace("Message arrived on topic " + topic + ": " + new String(payload));
 
-            final JSONObject json = new JSONObject(new JSONTokener(new String(mqttMessage.getPayload())));
+            final JSONObject json = new JSONObject(new JSONTokener(new String(payload)));
 
             executeInEventLoop(new Runnable() {
                 @Override
                 public void run() {
                     try {
                         handler.onMessage(topic, json);
+                        if (receivedNanos != null && server != null && handler.isDeviceDataTopic(topic)) {
+                            server.getLatencyMetrics().record(LatencyMetricsCollector.Stage.END_TO_END, receivedNanos);
+                        }
                     } catch (Throwable t) {
                         logger.error("Error processing MQTT message from topic " + topic + ": " + json, t);
                     }
@@ -244,6 +280,20 @@ public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQ
         executeInEventLoop(new Runnable() {
             @Override
             public void run() {
+                if (server != null) {
+                    // the embedded broker doesn't require a client connection
+                    PublishMessage msg = new PublishMessage();
+                    msg.setTopicName(topic);
+                    msg.setQos(AbstractMessage.QOSType.MOST_ONE);
+                    msg.setRetainFlag(false);
+                    msg.setPayload(ByteBuffer.wrap(payload.toString().getBytes()));
+                    try {
+                        server.internalPublish(msg);
+                    } catch (IllegalStateException e) {
+                        logger.error("Failed to send MQTT message", e);
+                    }
+                    return;
+                }
                 try {
                     mqtt.publish(topic, payload.toString().getBytes(), 0, false, null, new IMqttActionListener() {
                         @Override
@@ -378,6 +428,14 @@ public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQ
     // ***
 
     private void connect() {
+        if (embeddedBroker) {
+            // messages from the embedded broker are delivered by the intercept handler so no connection is needed
+            logger.info("Using in-process connection to embedded MQTT broker");
+            isConnectPending = false;
+            connected = true;
+            return;
+        }
+
         try {
             if (mqtt == null) {
                 logger.debug("Attempting external broker connection to {} with user {}", clientBrokerUrl, connOpts.getUserName());
@@ -441,7 +499,9 @@ public class MQTTPlugin extends AbstractHobsonPlugin implements MqttCallback, MQ
         try {
             MqttAsyncClient c = mqtt;
             mqtt = null;
-            c.disconnect();
+            if (c != null) {
+                c.disconnect();
+            }
         } catch (MqttException e) {
             logger.error("Error disconnecting from broker", e);
         } finally {
@@ -22,6 +22,7 @@ import java.io.File;
  */
 public class BrokerConstants {
     public static final String PERSISTENT_STORE_PROPERTY_NAME = "persistent_store";
+    public static final String STORE_PROVIDER_PROPERTY_NAME = "store_provider";
     public static final String AUTOSAVE_INTERVAL_PROPERTY_NAME = "autosave_interval";
     public static final String PASSWORD_FILE_PROPERTY_NAME = "password_file";
     public static final String PORT_PROPERTY_NAME = "port";
@@ -38,7 +39,75 @@ public class BrokerConstants {
     public static final String ACL_FILE_PROPERTY_NAME = "acl_file";
     public static final String AUTHORIZATOR_CLASS_NAME = "authorizator_class";
     public static final String AUTHENTICATOR_CLASS_NAME = "authenticator_class";
+    public static final String INBOUND_PIPELINE_PROPERTY_NAME = "inbound_pipeline";
+    public static final String INBOUND_PIPELINE_RING_SIZE_PROPERTY_NAME = "inbound_pipeline_ring_size";
+    public static final String INBOUND_PIPELINE_WAIT_STRATEGY_PROPERTY_NAME = "inbound_pipeline_wait_strategy";
+    public static final String LATENCY_METRICS_LOG_INTERVAL_PROPERTY_NAME = "latency_metrics_log_interval";
+    public static final String WAL_DIRECTORY_PROPERTY_NAME = "wal_directory";
+    public static final String WAL_SEGMENT_SIZE_PROPERTY_NAME = "wal_segment_size";
+    public static final String WAL_FSYNC_PROPERTY_NAME = "wal_fsync";
+    public static final String WAL_FSYNC_INTERVAL_PROPERTY_NAME = "wal_fsync_interval";
+    public static final String WAL_COMPACTION_SEGMENTS_PROPERTY_NAME = "wal_compaction_segments";
+    public static final String OFFLINE_QUEUE_MAX_DEPTH_PROPERTY_NAME = "offline_queue_max_depth";
+    public static final String OFFLINE_QUEUE_DROP_POLICY_PROPERTY_NAME = "offline_queue_drop_policy";
+    public static final String EVICTION_INTERVAL_PROPERTY_NAME = "eviction_interval";
+    public static final String EVICTION_BATCH_SIZE_PROPERTY_NAME = "eviction_batch_size";
+    public static final String EVICTION_MAX_BYTES_PROPERTY_NAME = "eviction_max_bytes";
+    public static final String EVICTION_MAX_AGE_PROPERTY_NAME = "eviction_max_age";
+    public static final String EVICTION_MAX_MESSAGES_PER_CLIENT_PROPERTY_NAME = "eviction_max_messages_per_client";
+    public static final String COMMIT_MAX_DIRTY_ENTRIES_PROPERTY_NAME = "commit_max_dirty_entries";
+    public static final String COMMIT_MAX_DIRTY_BYTES_PROPERTY_NAME = "commit_max_dirty_bytes";
+    public static final String COMMIT_BACKPRESSURE_BYTES_PROPERTY_NAME = "commit_backpressure_bytes";
+    public static final String SUBSCRIPTIONS_SNAPSHOT_PROPERTY_NAME = "subscriptions_snapshot";
+    public static final String NETTY_BOSS_THREADS_PROPERTY_NAME = "netty_boss_threads";
+    public static final String NETTY_WORKER_THREADS_PROPERTY_NAME = "netty_worker_threads";
+    public static final String NETTY_SO_BACKLOG_PROPERTY_NAME = "netty_so_backlog";
+    public static final String NETTY_POOLED_ALLOCATOR_PROPERTY_NAME = "netty_pooled_allocator";
+    public static final String NETTY_SO_RCVBUF_PROPERTY_NAME = "netty_so_rcvbuf";
+    public static final String NETTY_RECEIVE_BUFFER_SIZE_PROPERTY_NAME = "netty_receive_buffer_size";
+    public static final String NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME = "netty_write_buffer_high_water_mark";
+    public static final String NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME = "netty_write_buffer_low_water_mark";
+    public static final String FLUSH_CONSOLIDATION_PROPERTY_NAME = "flush_consolidation";
+    public static final String FLUSH_MAX_PENDING_BYTES_PROPERTY_NAME = "flush_max_pending_bytes";
+    public static final String FLUSH_MAX_DELAY_PROPERTY_NAME = "flush_max_delay";
+    public static final String OUTBOUND_QUEUE_HIGH_WATER_MARK_PROPERTY_NAME = "outbound_queue_high_water_mark";
+    public static final String OUTBOUND_QUEUE_LOW_WATER_MARK_PROPERTY_NAME = "outbound_queue_low_water_mark";
+    public static final String OUTBOUND_QUEUE_POLICY_PROPERTY_NAME = "outbound_queue_policy";
+    public static final String INFLIGHT_MAX_PROPERTY_NAME = "inflight_max";
+    public static final String INFLIGHT_RETRY_INTERVAL_PROPERTY_NAME = "inflight_retry_interval";
     public static final int PORT = 1883;
     public static final int WEBSOCKET_PORT = 8080;
     public static final String HOST = "0.0.0.0";
+    public static final int INBOUND_PIPELINE_RING_SIZE = 1024;
+    public static final String INBOUND_PIPELINE_WAIT_STRATEGY = "blocking";
+    public static final String STORE_PROVIDER_MAPDB = "mapdb";
+    public static final String STORE_PROVIDER_MEMORY = "memory";
+    public static final String STORE_PROVIDER_WAL = "wal";
+    public static final String DEFAULT_WAL_DIRECTORY = System.getProperty("user.dir") + File.separator + "moquette_wal";
+    public static final int WAL_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final String WAL_FSYNC_SYNC = "sync";
+    public static final String WAL_FSYNC_BATCH = "batch";
+    public static final int WAL_FSYNC_INTERVAL = 10;
+    public static final int WAL_COMPACTION_SEGMENTS = 4;
+    public static final String OFFLINE_QUEUE_DROP_OLDEST = "drop_oldest";
+    public static final String OFFLINE_QUEUE_DROP_NEWEST = "drop_newest";
+    public static final int EVICTION_INTERVAL = 60;
+    public static final int EVICTION_BATCH_SIZE = 1000;
+    public static final int COMMIT_MAX_DIRTY_ENTRIES = 1000;
+    public static final int COMMIT_MAX_DIRTY_BYTES = 1024 * 1024;
+    public static final int COMMIT_BACKPRESSURE_BYTES = 8 * 1024 * 1024;
+    public static final String SUBSCRIPTIONS_SNAPSHOT_SUFFIX = ".subscriptions";
+    public static final int NETTY_BOSS_THREADS = 1;
+    public static final int NETTY_SO_BACKLOG = 128;
+    public static final int NETTY_WRITE_BUFFER_HIGH_WATER_MARK = 64 * 1024;
+    public static final int NETTY_WRITE_BUFFER_LOW_WATER_MARK = 32 * 1024;
+    public static final int FLUSH_MAX_PENDING_BYTES = 64 * 1024;
+    public static final int FLUSH_MAX_DELAY = 10;
+    public static final int OUTBOUND_QUEUE_HIGH_WATER_MARK = 1024 * 1024;
+    public static final int OUTBOUND_QUEUE_LOW_WATER_MARK = 512 * 1024;
+    public static final String OUTBOUND_QUEUE_DROP_OLDEST = "drop_oldest";
+    public static final String OUTBOUND_QUEUE_DISCONNECT = "disconnect";
+    public static final String OUTBOUND_QUEUE_SPILL = "spill";
+    public static final int INFLIGHT_MAX = 100;
+    public static final int INFLIGHT_RETRY_INTERVAL = 20;
 }
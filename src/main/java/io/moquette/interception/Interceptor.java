@@ -38,7 +38,10 @@ public interface Interceptor {
 
     void notifyClientDisconnected(String clientID);
 
-    void notifyTopicPublished(PublishMessage msg, String clientID);
+    /**
+     * @param receivedNanos System.nanoTime() when the broker started processing the PUBLISH
+     */
+    void notifyTopicPublished(PublishMessage msg, String clientID, long receivedNanos);
 
     void notifyTopicSubscribed(Subscription sub);
 
@@ -10,11 +10,17 @@ import java.nio.ByteBuffer;
 public class InterceptPublishMessage extends InterceptAbstractMessage {
     private final PublishMessage msg;
     private final String clientID;
+    private final long receivedNanos;
 
     public InterceptPublishMessage(PublishMessage msg, String clientID) {
+        this(msg, clientID, System.nanoTime());
+    }
+
+    public InterceptPublishMessage(PublishMessage msg, String clientID, long receivedNanos) {
         super(msg);
         this.msg = msg;
         this.clientID = clientID;
+        this.receivedNanos = receivedNanos;
     }
 
     public String getTopicName() {
@@ -28,4 +34,11 @@ public class InterceptPublishMessage extends InterceptAbstractMessage {
     public String getClientID() {
         return clientID;
     }
+
+    /**
+     * @return the System.nanoTime() value when the broker received the publish, to measure end to end latencies.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
 }
@@ -23,9 +23,13 @@ import io.moquette.spi.impl.SimpleMessaging;
 import io.moquette.server.config.FilesystemConfig;
 import io.moquette.server.config.IConfig;
 import io.moquette.server.netty.NettyAcceptor;
+import io.moquette.server.netty.metrics.BytesMetrics;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import io.moquette.server.netty.metrics.MessageMetrics;
 import io.moquette.spi.impl.ProtocolProcessor;
 import io.moquette.spi.security.IAuthenticator;
 import io.moquette.spi.security.IAuthorizator;
+import io.moquette.spi.persistence.EvictionMetrics;
 import io.moquette.spi.security.ISslContextCreator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +38,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 /**
@@ -148,6 +153,64 @@ public class Server {
         m_processor.internalPublish(msg);
     }
     
+    /**
+     * The latency distributions recorded by the broker. Embedding applications can also record their own part of
+     * the processing under {@link LatencyMetricsCollector.Stage#END_TO_END}.
+     *
+     * @throws IllegalStateException if the server is not yet started
+     * */
+    public LatencyMetricsCollector getLatencyMetrics() {
+        if (!m_initialized) {
+            throw new IllegalStateException("Can't get the metrics of a server that is not yet started");
+        }
+        return SimpleMessaging.getInstance().getLatencyMetrics();
+    }
+
+    /**
+     * @return the bytes read and written so far by the broker with their rates.
+     * @throws IllegalStateException if the server is not yet started
+     * */
+    public BytesMetrics getBytesMetrics() {
+        if (!m_initialized) {
+            throw new IllegalStateException("Can't get the metrics of a server that is not yet started");
+        }
+        return m_acceptor.getBytesMetrics();
+    }
+
+    /**
+     * @return the messages read and written so far by the broker, with their rates and counts per message type.
+     * @throws IllegalStateException if the server is not yet started
+     * */
+    public MessageMetrics getMessageMetrics() {
+        if (!m_initialized) {
+            throw new IllegalStateException("Can't get the metrics of a server that is not yet started");
+        }
+        return m_acceptor.getMessageMetrics();
+    }
+
+    /**
+     * @return the number of PUBLISH packets queued for each slow consumer, waiting for its connection to drain.
+     * @throws IllegalStateException if the server is not yet started
+     * */
+    public Map<String, Integer> getOutboundQueueDepths() {
+        if (!m_initialized) {
+            throw new IllegalStateException("Can't get the metrics of a server that is not yet started");
+        }
+        return m_processor.outboundQueueDepths();
+    }
+
+    /**
+     * @return the totals of the stored messages evicted so far and of the space they reclaimed, null if the store
+     * doesn't evict them.
+     * @throws IllegalStateException if the server is not yet started
+     * */
+    public EvictionMetrics getEvictionMetrics() {
+        if (!m_initialized) {
+            throw new IllegalStateException("Can't get the metrics of a server that is not yet started");
+        }
+        return SimpleMessaging.getInstance().getEvictionMetrics();
+    }
+
     public void stopServer() {
     	LOG.info("Server stopping...");
         m_acceptor.close();
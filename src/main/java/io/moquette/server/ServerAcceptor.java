@@ -18,6 +18,8 @@ package io.moquette.server;
 import java.io.IOException;
 
 import io.moquette.server.config.IConfig;
+import io.moquette.server.netty.metrics.BytesMetrics;
+import io.moquette.server.netty.metrics.MessageMetrics;
 import io.moquette.spi.impl.ProtocolProcessor;
 import io.moquette.spi.security.ISslContextCreator;
 
@@ -29,5 +31,15 @@ public interface ServerAcceptor {
     
     void initialize(ProtocolProcessor processor, IConfig props, ISslContextCreator sslCtxCreator) throws IOException;
     
+    /**
+     * @return live totals and rates of the bytes exchanged by all the connections.
+     */
+    BytesMetrics getBytesMetrics();
+
+    /**
+     * @return live totals and rates of the MQTT messages exchanged by all the connections.
+     */
+    MessageMetrics getMessageMetrics();
+
     void close();
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.server.netty;
+
+import com.lmax.disruptor.*;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import io.moquette.BrokerConstants;
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.server.config.IConfig;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ring buffer stage that moves protocol processing (routing, subscription matching and persistence) off the Netty
+ * I/O threads. Decoded messages from all channels are published into a single ring and consumed, in order, by one
+ * processing thread. Publishing never blocks an I/O thread: when a slow store operation leaves the ring full, the
+ * events of a channel are parked in its overflow queue and only that channel stops reading until the processing
+ * thread has made room for them.
+ *
+ * Channel inactivity is published into the same ring so that a connection lost is always handled after the messages
+ * that channel had already sent. So are the writability changes, since they drain the offline queue of the session
+ * as the acks processed by the ring do.
+ */
+class InboundPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InboundPipeline.class);
+
+    private static final AttributeKey<Deque<InboundEvent>> ATTR_KEY_OVERFLOW = AttributeKey.valueOf("inboundOverflow");
+
+    //how long a paused channel waits before trying again to move its overflow into the ring
+    private static final long OVERFLOW_RETRY_MILLIS = 1;
+
+    static final class InboundEvent {
+        Channel channel;
+        AbstractMessage message;
+        boolean inactive;
+        boolean writabilityChanged;
+
+        void clear() {
+            channel = null;
+            message = null;
+            inactive = false;
+            writabilityChanged = false;
+        }
+    }
+
+    private static final EventFactory<InboundEvent> EVENT_FACTORY = new EventFactory<InboundEvent>() {
+        @Override
+        public InboundEvent newInstance() {
+            return new InboundEvent();
+        }
+    };
+
+    private final NettyMQTTHandler m_handler;
+    private final ExecutorService m_executor;
+    private final Disruptor<InboundEvent> m_disruptor;
+    private RingBuffer<InboundEvent> m_ringBuffer;
+
+    InboundPipeline(NettyMQTTHandler handler, IConfig props) {
+        m_handler = handler;
+
+        int ringSize = Integer.parseInt(props.getProperty(BrokerConstants.INBOUND_PIPELINE_RING_SIZE_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.INBOUND_PIPELINE_RING_SIZE)));
+        if (Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("Inbound pipeline ring size must be a power of 2, found " + ringSize);
+        }
+        String waitStrategy = props.getProperty(BrokerConstants.INBOUND_PIPELINE_WAIT_STRATEGY_PROPERTY_NAME,
+                BrokerConstants.INBOUND_PIPELINE_WAIT_STRATEGY);
+
+        m_executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "moquette-inbound-pipeline");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        m_disruptor = new Disruptor<>(EVENT_FACTORY, ringSize, m_executor, ProducerType.MULTI,
+                createWaitStrategy(waitStrategy));
+        m_disruptor.handleEventsWith(new EventHandler<InboundEvent>() {
+            @Override
+            public void onEvent(InboundEvent event, long sequence, boolean endOfBatch) {
+                try {
+                    if (event.inactive) {
+                        m_handler.processInactive(event.channel);
+                    } else if (event.writabilityChanged) {
+                        m_handler.processWritabilityChanged(event.channel);
+                    } else {
+                        m_handler.processMessage(event.channel, event.message);
+                    }
+                } finally {
+                    // don't keep channels and payloads reachable from the ring
+                    event.clear();
+                }
+                if (endOfBatch) {
+                    m_handler.endOfBatch();
+                }
+            }
+        });
+        LOG.info("Inbound pipeline configured with ring size {} and {} wait strategy", ringSize, waitStrategy);
+    }
+
+    static WaitStrategy createWaitStrategy(String name) {
+        switch (name) {
+            case "blocking":
+                return new BlockingWaitStrategy();
+            case "sleeping":
+                return new SleepingWaitStrategy();
+            case "yielding":
+                return new YieldingWaitStrategy();
+            case "busyspin":
+                return new BusySpinWaitStrategy();
+            default:
+                throw new IllegalArgumentException("Unknown inbound pipeline wait strategy: " + name);
+        }
+    }
+
+    void start() {
+        m_ringBuffer = m_disruptor.start();
+    }
+
+    void publishMessage(Channel channel, AbstractMessage msg) {
+        publish(channel, msg, false, false);
+    }
+
+    void publishInactive(Channel channel) {
+        publish(channel, null, true, false);
+    }
+
+    void publishWritabilityChanged(Channel channel) {
+        publish(channel, null, false, true);
+    }
+
+    /**
+     * Called on the I/O thread of the channel. If the ring is full, or older events of the channel are still waiting
+     * for room, the event goes in the overflow queue of the channel and its reads are paused until the queue has
+     * been moved into the ring.
+     */
+    private void publish(Channel channel, AbstractMessage msg, boolean inactive, boolean writabilityChanged) {
+        Attribute<Deque<InboundEvent>> attr = channel.attr(ATTR_KEY_OVERFLOW);
+        Deque<InboundEvent> overflow = attr.get();
+        if ((overflow == null || overflow.isEmpty()) && tryPublish(channel, msg, inactive, writabilityChanged)) {
+            return;
+        }
+        if (overflow == null) {
+            overflow = new ArrayDeque<>();
+            attr.set(overflow);
+        }
+        InboundEvent event = new InboundEvent();
+        event.channel = channel;
+        event.message = msg;
+        event.inactive = inactive;
+        event.writabilityChanged = writabilityChanged;
+        overflow.addLast(event);
+        if (overflow.size() == 1) {
+            LOG.debug("Inbound ring full, pausing the reads of {}", channel);
+            channel.config().setAutoRead(false);
+            scheduleOverflowDrain(channel);
+        }
+    }
+
+    private boolean tryPublish(Channel channel, AbstractMessage msg, boolean inactive, boolean writabilityChanged) {
+        long sequence;
+        try {
+            sequence = m_ringBuffer.tryNext();
+        } catch (InsufficientCapacityException icex) {
+            return false;
+        }
+        try {
+            InboundEvent event = m_ringBuffer.get(sequence);
+            event.channel = channel;
+            event.message = msg;
+            event.inactive = inactive;
+            event.writabilityChanged = writabilityChanged;
+        } finally {
+            m_ringBuffer.publish(sequence);
+        }
+        return true;
+    }
+
+    private void scheduleOverflowDrain(final Channel channel) {
+        channel.eventLoop().schedule(new Runnable() {
+            @Override
+            public void run() {
+                drainOverflow(channel);
+            }
+        }, OVERFLOW_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves the overflow of the channel into the ring, in order, and resumes its reads once it's empty. Runs on the
+     * I/O thread of the channel, as {@link #publish} does.
+     */
+    private void drainOverflow(Channel channel) {
+        Deque<InboundEvent> overflow = channel.attr(ATTR_KEY_OVERFLOW).get();
+        while (!overflow.isEmpty()) {
+            InboundEvent event = overflow.peekFirst();
+            if (!tryPublish(event.channel, event.message, event.inactive, event.writabilityChanged)) {
+                //the processing thread hasn't made room yet
+                scheduleOverflowDrain(channel);
+                return;
+            }
+            overflow.removeFirst();
+        }
+        LOG.debug("Inbound overflow of {} drained, resuming its reads", channel);
+        channel.config().setAutoRead(true);
+    }
+
+    /**
+     * Waits for the events already published to be processed and stops the processing thread.
+     */
+    void shutdown() {
+        try {
+            m_disruptor.shutdown(5, TimeUnit.SECONDS);
+        } catch (TimeoutException tex) {
+            LOG.warn("Inbound pipeline didn't drain in time, halting it");
+            m_disruptor.halt();
+        }
+        m_executor.shutdown();
+    }
+}
@@ -26,6 +26,9 @@ import io.moquette.server.netty.metrics.*;
 import io.moquette.spi.impl.ProtocolProcessor;
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
 import io.netty.channel.*;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
@@ -47,6 +50,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -87,14 +91,56 @@ public class NettyAcceptor implements ServerAcceptor {
     
     EventLoopGroup m_bossGroup;
     EventLoopGroup m_workerGroup;
+    int m_backlog;
+    ByteBufAllocator m_allocator;
+    int m_soRcvbuf;
+    int m_receiveBufferSize;
+    int m_writeBufferHighWaterMark;
+    int m_writeBufferLowWaterMark;
     BytesMetricsCollector m_bytesMetricsCollector = new BytesMetricsCollector();
     MessageMetricsCollector m_metricsCollector = new MessageMetricsCollector();
+    InboundPipeline m_inboundPipeline;
 
     @Override
     public void initialize(ProtocolProcessor processor, IConfig props, ISslContextCreator sslCtxCreator) throws IOException {
-        m_bossGroup = new NioEventLoopGroup();
-        m_workerGroup = new NioEventLoopGroup();
+        int bossThreads = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_BOSS_THREADS_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.NETTY_BOSS_THREADS)));
+        //0 lets Netty pick its default, twice the available processors
+        int workerThreads = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_WORKER_THREADS_PROPERTY_NAME, "0"));
+        m_bossGroup = new NioEventLoopGroup(bossThreads);
+        m_workerGroup = new NioEventLoopGroup(workerThreads);
+        m_backlog = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_SO_BACKLOG_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.NETTY_SO_BACKLOG)));
+        boolean pooled = Boolean.parseBoolean(props.getProperty(BrokerConstants.NETTY_POOLED_ALLOCATOR_PROPERTY_NAME, "true"));
+        m_allocator = pooled ? PooledByteBufAllocator.DEFAULT : UnpooledByteBufAllocator.DEFAULT;
+        m_soRcvbuf = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_SO_RCVBUF_PROPERTY_NAME, "0"));
+        m_receiveBufferSize = Integer.parseInt(props.getProperty(BrokerConstants.NETTY_RECEIVE_BUFFER_SIZE_PROPERTY_NAME, "0"));
+        m_writeBufferHighWaterMark = Integer.parseInt(props.getProperty(
+                BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATER_MARK_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.NETTY_WRITE_BUFFER_HIGH_WATER_MARK)));
+        m_writeBufferLowWaterMark = Integer.parseInt(props.getProperty(
+                BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATER_MARK_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.NETTY_WRITE_BUFFER_LOW_WATER_MARK)));
+        if (m_writeBufferLowWaterMark > m_writeBufferHighWaterMark) {
+            throw new IllegalArgumentException("Write buffer low water mark " + m_writeBufferLowWaterMark
+                    + " is greater than the high water mark " + m_writeBufferHighWaterMark);
+        }
+        LOG.info("Netty configured with {} boss threads, {} worker threads (0 is Netty default), backlog {}, {} allocator",
+                bossThreads, workerThreads, m_backlog, pooled ? "pooled" : "unpooled");
+
+        m_workerGroup.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                m_bytesMetricsCollector.sample();
+                m_metricsCollector.sample();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
         final NettyMQTTHandler handler = new NettyMQTTHandler(processor);
+        if (Boolean.parseBoolean(props.getProperty(BrokerConstants.INBOUND_PIPELINE_PROPERTY_NAME, "false"))) {
+            m_inboundPipeline = new InboundPipeline(handler, props);
+            m_inboundPipeline.start();
+            handler.setInboundPipeline(m_inboundPipeline);
+        }
         
         initializePlainTCPTransport(handler, props);
         initializeWebSocketTransport(handler, props);
@@ -127,10 +173,20 @@ public class NettyAcceptor implements ServerAcceptor {
                         }
                     }
                 })
-                .option(ChannelOption.SO_BACKLOG, 128)
+                .option(ChannelOption.SO_BACKLOG, m_backlog)
                 .option(ChannelOption.SO_REUSEADDR, true)
                 .option(ChannelOption.TCP_NODELAY, true)
-                .childOption(ChannelOption.SO_KEEPALIVE, true);
+                .option(ChannelOption.ALLOCATOR, m_allocator)
+                .childOption(ChannelOption.SO_KEEPALIVE, true)
+                .childOption(ChannelOption.ALLOCATOR, m_allocator)
+                .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, m_writeBufferHighWaterMark)
+                .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, m_writeBufferLowWaterMark);
+        if (m_soRcvbuf > 0) {
+            b.childOption(ChannelOption.SO_RCVBUF, m_soRcvbuf);
+        }
+        if (m_receiveBufferSize > 0) {
+            b.childOption(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(m_receiveBufferSize));
+        }
         try {
             // Bind and start to accept incoming connections.
             ChannelFuture f = b.bind(host, port);
@@ -252,6 +308,16 @@ public class NettyAcceptor implements ServerAcceptor {
         });
     }
 
+    @Override
+    public BytesMetrics getBytesMetrics() {
+        return m_bytesMetricsCollector.computeMetrics();
+    }
+
+    @Override
+    public MessageMetrics getMessageMetrics() {
+        return m_metricsCollector.computeMetrics();
+    }
+
     public void close() {
         if (m_workerGroup == null) {
             throw new IllegalStateException("Invoked close on an Acceptor that wasn't initialized");
@@ -274,6 +340,10 @@ public class NettyAcceptor implements ServerAcceptor {
             throw new IllegalStateException(iex);
         }
 
+        if (m_inboundPipeline != null) {
+            m_inboundPipeline.shutdown();
+        }
+
         MessageMetrics metrics = m_metricsCollector.computeMetrics();
         LOG.info("Msg read: {}, msg wrote: {}", metrics.messagesRead(), metrics.messagesWrote());
 
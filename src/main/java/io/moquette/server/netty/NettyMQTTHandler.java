@@ -19,6 +19,7 @@ import io.moquette.proto.Utils;
 import io.moquette.proto.messages.*;
 import io.moquette.spi.impl.ProtocolProcessor;
 import static io.moquette.proto.messages.AbstractMessage.*;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelHandler.Sharable;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
@@ -37,47 +38,101 @@ public class NettyMQTTHandler extends ChannelInboundHandlerAdapter {
     
     private static final Logger LOG = LoggerFactory.getLogger(NettyMQTTHandler.class);
     private final ProtocolProcessor m_processor;
+    private InboundPipeline m_pipeline;
 
     public NettyMQTTHandler(ProtocolProcessor processor) {
         m_processor = processor;
     }
 
+    /**
+     * Hand off protocol processing to the given pipeline instead of running it on the I/O threads.
+     * Must be set before any channel is accepted.
+     */
+    void setInboundPipeline(InboundPipeline pipeline) {
+        m_pipeline = pipeline;
+    }
+
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object message) {
         AbstractMessage msg = (AbstractMessage) message;
         LOG.info("Received a message of type {}", Utils.msgType2String(msg.getMessageType()));
+        if (msg.getMessageType() == PINGREQ) {
+            //doesn't touch any state, answer right away
+            PingRespMessage pingResp = new PingRespMessage();
+            ctx.writeAndFlush(pingResp);
+        } else if (m_pipeline != null) {
+            m_pipeline.publishMessage(ctx.channel(), msg);
+        } else {
+            processMessage(ctx.channel(), msg);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (m_pipeline == null) {
+            //flush once what the messages of this read wrote to any channel
+            m_processor.flushPending();
+        }
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (m_pipeline != null) {
+            //draining the offline queue of the session belongs to the processing thread, like the acks that drain it
+            m_pipeline.publishWritabilityChanged(ctx.channel());
+        } else {
+            processWritabilityChanged(ctx.channel());
+            //not followed by a read complete
+            m_processor.flushPending();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    void processWritabilityChanged(Channel channel) {
+        try {
+            m_processor.processWritabilityChanged(channel);
+        } catch (Exception ex) {
+            LOG.error("Bad error in processing the writability change", ex);
+        }
+    }
+
+    /**
+     * Flush what the messages processed since the last call wrote, when the processing runs off the I/O threads.
+     */
+    void endOfBatch() {
+        m_processor.flushPending();
+    }
+
+    void processMessage(Channel channel, AbstractMessage msg) {
         try {
             switch (msg.getMessageType()) {
                 case CONNECT:
-                    m_processor.processConnect(ctx.channel(), (ConnectMessage) msg);
+                    m_processor.processConnect(channel, (ConnectMessage) msg);
                     break;
                 case SUBSCRIBE:
-                    m_processor.processSubscribe(ctx.channel(), (SubscribeMessage) msg);
+                    m_processor.processSubscribe(channel, (SubscribeMessage) msg);
                     break;
                 case UNSUBSCRIBE:
-                    m_processor.processUnsubscribe(ctx.channel(), (UnsubscribeMessage) msg);
+                    m_processor.processUnsubscribe(channel, (UnsubscribeMessage) msg);
                     break;
                 case PUBLISH:
-                    m_processor.processPublish(ctx.channel(), (PublishMessage) msg);
+                    m_processor.processPublish(channel, (PublishMessage) msg);
                     break;
                 case PUBREC:
-                    m_processor.processPubRec(ctx.channel(), (PubRecMessage) msg);
+                    m_processor.processPubRec(channel, (PubRecMessage) msg);
                     break;
                 case PUBCOMP:
-                    m_processor.processPubComp(ctx.channel(), (PubCompMessage) msg);
+                    m_processor.processPubComp(channel, (PubCompMessage) msg);
                     break;
                 case PUBREL:
-                    m_processor.processPubRel(ctx.channel(), (PubRelMessage) msg);
+                    m_processor.processPubRel(channel, (PubRelMessage) msg);
                     break;
                 case DISCONNECT:
-                    m_processor.processDisconnect(ctx.channel());
+                    m_processor.processDisconnect(channel);
                     break;
                 case PUBACK:
-                    m_processor.processPubAck(ctx.channel(), (PubAckMessage) msg);
-                    break;
-                case PINGREQ:
-                    PingRespMessage pingResp = new PingRespMessage();
-                    ctx.writeAndFlush(pingResp);
+                    m_processor.processPubAck(channel, (PubAckMessage) msg);
                     break;
             }
         } catch (Exception ex) {
@@ -87,18 +142,33 @@ public class NettyMQTTHandler extends ChannelInboundHandlerAdapter {
     
     @Override
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-        String clientID = NettyUtils.clientID(ctx.channel());
+        if (m_pipeline != null) {
+            //the CONNECT of this channel could still be queued, so the clientID has to be read in order
+            m_pipeline.publishInactive(ctx.channel());
+        } else {
+            processInactive(ctx.channel());
+            //a will published on connection lost isn't followed by a read complete
+            m_processor.flushPending();
+        }
+        ctx.close();
+    }
+
+    void processInactive(Channel channel) {
+        String clientID = NettyUtils.clientID(channel);
         if (clientID != null && !clientID.isEmpty()) {
             //if the channel was of a correctly connected client, inform messaging
             //else it was of a not completed CONNECT message or sessionStolen
             boolean stolen = false;
-            Boolean stolenAttr = NettyUtils.sessionStolen(ctx.channel());
+            Boolean stolenAttr = NettyUtils.sessionStolen(channel);
             if (stolenAttr != null && stolenAttr == Boolean.TRUE) {
                 stolen = true;
             }
-            m_processor.processConnectionLost(clientID, stolen, ctx.channel());
+            try {
+                m_processor.processConnectionLost(clientID, stolen, channel);
+            } catch (Exception ex) {
+                LOG.error("Bad error in processing the connection lost", ex);
+            }
         }
-        ctx.close();
     }
 
     @Override
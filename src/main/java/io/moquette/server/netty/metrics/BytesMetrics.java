@@ -16,15 +16,16 @@
 package io.moquette.server.netty.metrics;
 
 public class BytesMetrics {
-    private long m_readBytes = 0;
-    private long m_wroteBytes = 0;
+    private final long m_readBytes;
+    private final long m_wroteBytes;
+    private final RateMetrics m_readRate;
+    private final RateMetrics m_wroteRate;
 
-    void incrementRead(long numBytes) {
-        m_readBytes += numBytes;
-    }
-
-    void incrementWrote(long numBytes) {
-        m_wroteBytes += numBytes;
+    BytesMetrics(long readBytes, long wroteBytes, RateMetrics readRate, RateMetrics wroteRate) {
+        m_readBytes = readBytes;
+        m_wroteBytes = wroteBytes;
+        m_readRate = readRate;
+        m_wroteRate = wroteRate;
     }
 
     public long readBytes() {
@@ -34,4 +35,12 @@ public class BytesMetrics {
     public long wroteBytes() {
         return m_wroteBytes;
     }
-}
\ No newline at end of file
+
+    public RateMetrics readRate() {
+        return m_readRate;
+    }
+
+    public RateMetrics wroteRate() {
+        return m_wroteRate;
+    }
+}
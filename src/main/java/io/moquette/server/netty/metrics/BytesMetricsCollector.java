@@ -15,28 +15,31 @@
  */
 package io.moquette.server.netty.metrics;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * Collects all the metrics from the various pipeline.
  */
 public class BytesMetricsCollector {
 
-    private AtomicLong readBytes = new AtomicLong();
-    private AtomicLong wroteBytes = new AtomicLong();
+    private final RateMeter readBytes = new RateMeter();
+    private final RateMeter wroteBytes = new RateMeter();
 
     public BytesMetrics computeMetrics() {
-        BytesMetrics allMetrics = new BytesMetrics();
-        allMetrics.incrementRead(readBytes.get());
-        allMetrics.incrementWrote(wroteBytes.get());
-        return allMetrics;
+        return new BytesMetrics(readBytes.total(), wroteBytes.total(), readBytes.computeRates(), wroteBytes.computeRates());
     }
 
     public void sumReadBytes(long count) {
-        readBytes.getAndAdd(count);
+        readBytes.add(count);
     }
 
     public void sumWroteBytes(long count) {
-        wroteBytes.getAndAdd(count);
+        wroteBytes.add(count);
+    }
+
+    /**
+     * Take the per second sample the rates are computed on, must be invoked once a second.
+     */
+    public void sample() {
+        readBytes.sample();
+        wroteBytes.sample();
     }
 }
@@ -19,48 +19,24 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
-import io.netty.util.Attribute;
-import io.netty.util.AttributeKey;
 
 public class BytesMetricsHandler extends ChannelDuplexHandler {
 
-    private static final AttributeKey<BytesMetrics> ATTR_KEY_METRICS = AttributeKey.valueOf("BytesMetrics");
-
     private BytesMetricsCollector m_collector;
 
     public BytesMetricsHandler(BytesMetricsCollector collector) {
           m_collector = collector;
     }
 
-    @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        Attribute<BytesMetrics> attr = ctx.attr(ATTR_KEY_METRICS);
-        attr.set(new BytesMetrics());
-
-        super.channelActive(ctx);
-    }
-
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        BytesMetrics metrics = ctx.attr(ATTR_KEY_METRICS).get();
-        metrics.incrementRead(((ByteBuf)msg).readableBytes());
+        m_collector.sumReadBytes(((ByteBuf)msg).readableBytes());
         ctx.fireChannelRead(msg);
     }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        BytesMetrics metrics = ctx.attr(ATTR_KEY_METRICS).get();
-        metrics.incrementWrote(((ByteBuf)msg).writableBytes());
+        m_collector.sumWroteBytes(((ByteBuf)msg).readableBytes());
         ctx.write(msg, promise);
     }
-
-
-    @Override
-    public void close(ChannelHandlerContext ctx,
-                      ChannelPromise promise) throws Exception {
-        BytesMetrics metrics = ctx.attr(ATTR_KEY_METRICS).get();
-        m_collector.sumReadBytes(metrics.readBytes());
-        m_collector.sumWroteBytes(metrics.wroteBytes());
-        super.close(ctx, promise);
-    }
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.server.netty.metrics;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * Percentile snapshot of the latencies recorded for a stage, values are in microseconds.
+ */
+public class LatencyMetrics {
+    private final long m_count;
+    private final double m_mean;
+    private final long m_p50;
+    private final long m_p90;
+    private final long m_p99;
+    private final long m_p999;
+    private final long m_max;
+
+    LatencyMetrics(Histogram histogram) {
+        m_count = histogram.getTotalCount();
+        m_mean = histogram.getMean() / 1000;
+        m_p50 = histogram.getValueAtPercentile(50) / 1000;
+        m_p90 = histogram.getValueAtPercentile(90) / 1000;
+        m_p99 = histogram.getValueAtPercentile(99) / 1000;
+        m_p999 = histogram.getValueAtPercentile(99.9) / 1000;
+        m_max = histogram.getMaxValue() / 1000;
+    }
+
+    public long count() {
+        return m_count;
+    }
+
+    public double mean() {
+        return m_mean;
+    }
+
+    public long p50() {
+        return m_p50;
+    }
+
+    public long p90() {
+        return m_p90;
+    }
+
+    public long p99() {
+        return m_p99;
+    }
+
+    public long p999() {
+        return m_p999;
+    }
+
+    public long max() {
+        return m_max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus",
+                m_count, m_mean, m_p50, m_p90, m_p99, m_p999, m_max);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.server.netty.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects latency distributions of the broker hot paths. Recording is wait free and can be done from any thread,
+ * values are taken in nanoseconds and reported in microseconds.
+ */
+public class LatencyMetricsCollector {
+
+    public enum Stage {
+        CONNECT,
+        PUBLISH,
+        ROUTE,
+        SUBSCRIPTION_MATCH,
+        STORE,
+        COMMIT,
+        END_TO_END
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(LatencyMetricsCollector.class);
+
+    private final Map<Stage, Recorder> m_recorders = new EnumMap<>(Stage.class);
+    private final Map<Stage, Histogram> m_totals = new EnumMap<>(Stage.class);
+    private final Map<Stage, Histogram> m_intervals = new EnumMap<>(Stage.class);
+    private final Map<Stage, Histogram> m_recycled = new EnumMap<>(Stage.class);
+    private ScheduledExecutorService m_scheduler;
+
+    public LatencyMetricsCollector() {
+        for (Stage stage : Stage.values()) {
+            m_recorders.put(stage, new Recorder(2));
+            m_totals.put(stage, new Histogram(2));
+            m_intervals.put(stage, new Histogram(2));
+        }
+    }
+
+    /**
+     * Record the time elapsed since start, as returned by System.nanoTime().
+     */
+    public void record(Stage stage, long startNanos) {
+        recordValue(stage, System.nanoTime() - startNanos);
+    }
+
+    public void recordValue(Stage stage, long nanos) {
+        if (nanos >= 0) {
+            m_recorders.get(stage).recordValue(nanos);
+        }
+    }
+
+    /**
+     * @return the percentiles of every stage since the collector was created.
+     */
+    public synchronized Map<Stage, LatencyMetrics> computeMetrics() {
+        sampleIntervals();
+        Map<Stage, LatencyMetrics> metrics = new EnumMap<>(Stage.class);
+        for (Map.Entry<Stage, Histogram> entry : m_totals.entrySet()) {
+            metrics.put(entry.getKey(), new LatencyMetrics(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    /**
+     * Moves what was recorded since the last call into the totals and into the current logging interval.
+     */
+    private void sampleIntervals() {
+        for (Stage stage : Stage.values()) {
+            Recorder recorder = m_recorders.get(stage);
+            Histogram recycled = m_recycled.get(stage);
+            Histogram interval = recycled == null ? recorder.getIntervalHistogram() : recorder.getIntervalHistogram(recycled);
+            m_totals.get(stage).add(interval);
+            m_intervals.get(stage).add(interval);
+            m_recycled.put(stage, interval);
+        }
+    }
+
+    private synchronized void logIntervals() {
+        sampleIntervals();
+        for (Stage stage : Stage.values()) {
+            Histogram interval = m_intervals.get(stage);
+            if (interval.getTotalCount() > 0) {
+                LOG.info("Latency {}: {}", stage, new LatencyMetrics(interval));
+            }
+            interval.reset();
+        }
+    }
+
+    /**
+     * Periodically log the percentiles of the stages that recorded something in the last period.
+     *
+     * @param intervalSecs the dump period, 0 or less disables it.
+     */
+    public synchronized void startLogging(int intervalSecs) {
+        if (intervalSecs <= 0 || m_scheduler != null) {
+            return;
+        }
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "moquette-latency-metrics");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        m_scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    logIntervals();
+                } catch (Throwable th) {
+                    LOG.error("Error dumping latency metrics", th);
+                }
+            }
+        }, intervalSecs, intervalSecs, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopLogging() {
+        if (m_scheduler != null) {
+            m_scheduler.shutdown();
+            m_scheduler = null;
+        }
+    }
+}
@@ -16,15 +16,21 @@
 package io.moquette.server.netty.metrics;
 
 public class MessageMetrics {
-    private long m_messagesRead = 0;
-    private long m_messageWrote = 0;
+    private final long m_messagesRead;
+    private final long m_messageWrote;
+    private final RateMetrics m_readRate;
+    private final RateMetrics m_wroteRate;
+    private final long[] m_readByType;
+    private final long[] m_wroteByType;
 
-    void incrementRead(long numMessages) {
-        m_messagesRead += numMessages;
-    }
-
-    void incrementWrote(long numMessages) {
-        m_messageWrote += numMessages;
+    MessageMetrics(long messagesRead, long messagesWrote, RateMetrics readRate, RateMetrics wroteRate,
+                   long[] readByType, long[] wroteByType) {
+        m_messagesRead = messagesRead;
+        m_messageWrote = messagesWrote;
+        m_readRate = readRate;
+        m_wroteRate = wroteRate;
+        m_readByType = readByType;
+        m_wroteByType = wroteByType;
     }
 
     public long messagesRead() {
@@ -34,4 +40,26 @@ public class MessageMetrics {
     public long messagesWrote() {
         return m_messageWrote;
     }
-}
\ No newline at end of file
+
+    public RateMetrics readRate() {
+        return m_readRate;
+    }
+
+    public RateMetrics wroteRate() {
+        return m_wroteRate;
+    }
+
+    /**
+     * @param messageType one of the AbstractMessage type constants (e.g. AbstractMessage.PUBLISH)
+     */
+    public long messagesRead(byte messageType) {
+        return m_readByType[messageType];
+    }
+
+    /**
+     * @param messageType one of the AbstractMessage type constants (e.g. AbstractMessage.PUBLISH)
+     */
+    public long messagesWrote(byte messageType) {
+        return m_wroteByType[messageType];
+    }
+}
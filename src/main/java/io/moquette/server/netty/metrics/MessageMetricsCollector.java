@@ -15,27 +15,51 @@
  */
 package io.moquette.server.netty.metrics;
 
-import java.util.concurrent.atomic.AtomicLong;
-
 /**
  * Collects all the metrics from the various pipeline.
  */
 public class MessageMetricsCollector {
-    private AtomicLong readMsgs = new AtomicLong();
-    private AtomicLong wroteMsgs = new AtomicLong();
+    //MQTT message types are 4 bits
+    private static final int MESSAGE_TYPES = 16;
+
+    private final RateMeter readMsgs = new RateMeter();
+    private final RateMeter wroteMsgs = new RateMeter();
+    private final StripedCounter[] readByType = new StripedCounter[MESSAGE_TYPES];
+    private final StripedCounter[] wroteByType = new StripedCounter[MESSAGE_TYPES];
+
+    public MessageMetricsCollector() {
+        for (int i = 0; i < MESSAGE_TYPES; i++) {
+            readByType[i] = new StripedCounter();
+            wroteByType[i] = new StripedCounter();
+        }
+    }
 
     public MessageMetrics computeMetrics() {
-        MessageMetrics allMetrics = new MessageMetrics();
-        allMetrics.incrementRead(readMsgs.get());
-        allMetrics.incrementWrote(wroteMsgs.get());
-        return allMetrics;
+        long[] read = new long[MESSAGE_TYPES];
+        long[] wrote = new long[MESSAGE_TYPES];
+        for (int i = 0; i < MESSAGE_TYPES; i++) {
+            read[i] = readByType[i].sum();
+            wrote[i] = wroteByType[i].sum();
+        }
+        return new MessageMetrics(readMsgs.total(), wroteMsgs.total(), readMsgs.computeRates(), wroteMsgs.computeRates(),
+                read, wrote);
+    }
+
+    public void messageRead(byte messageType) {
+        readMsgs.add(1);
+        readByType[messageType & 0x0F].increment();
     }
 
-    public void sumReadMessages(long count) {
-        readMsgs.getAndAdd(count);
+    public void messageWrote(byte messageType) {
+        wroteMsgs.add(1);
+        wroteByType[messageType & 0x0F].increment();
     }
 
-    public void sumWroteMessages(long count) {
-        wroteMsgs.getAndAdd(count);
+    /**
+     * Take the per second sample the rates are computed on, must be invoked once a second.
+     */
+    public void sample() {
+        readMsgs.sample();
+        wroteMsgs.sample();
     }
 }
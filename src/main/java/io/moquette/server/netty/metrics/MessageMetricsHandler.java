@@ -15,51 +15,35 @@
  */
 package io.moquette.server.netty.metrics;
 
+import io.moquette.proto.messages.AbstractMessage;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelPromise;
-import io.netty.util.Attribute;
-import io.netty.util.AttributeKey;
 
 public class MessageMetricsHandler extends ChannelDuplexHandler {
 
-    private static final AttributeKey<MessageMetrics> ATTR_KEY_METRICS = AttributeKey.valueOf("MessageMetrics");
-
     private MessageMetricsCollector m_collector;
 
     public MessageMetricsHandler(MessageMetricsCollector collector) {
           m_collector = collector;
     }
 
-    @Override
-    public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        Attribute<MessageMetrics> attr = ctx.attr(ATTR_KEY_METRICS);
-        attr.set(new MessageMetrics());
-
-        super.channelActive(ctx);
-    }
-
     @Override
     public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
-        MessageMetrics metrics = ctx.attr(ATTR_KEY_METRICS).get();
-        metrics.incrementRead(1);
+        m_collector.messageRead(((AbstractMessage) msg).getMessageType());
         ctx.fireChannelRead(msg);
     }
 
     @Override
     public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        MessageMetrics metrics = ctx.attr(ATTR_KEY_METRICS).get();
-        metrics.incrementWrote(1);
+        if (msg instanceof AbstractMessage) {
+            m_collector.messageWrote(((AbstractMessage) msg).getMessageType());
+        } else if (msg instanceof ByteBuf) {
+            //already encoded, the type is in the high nibble of the fixed header
+            ByteBuf buf = (ByteBuf) msg;
+            m_collector.messageWrote((byte) ((buf.getByte(buf.readerIndex()) & 0xF0) >> 4));
+        }
         ctx.write(msg, promise);
     }
-
-
-    @Override
-    public void close(ChannelHandlerContext ctx,
-                      ChannelPromise promise) throws Exception {
-        MessageMetrics metrics = ctx.attr(ATTR_KEY_METRICS).get();
-        m_collector.sumReadMessages(metrics.messagesRead());
-        m_collector.sumWroteMessages(metrics.messagesWrote());
-        super.close(ctx, promise);
-    }
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.server.netty.metrics;
+
+/**
+ * A live total with its throughput over the last second, minute and five minutes. The total is updated concurrently
+ * through a {@link StripedCounter}, the rates are computed from the per second samples taken by {@link #sample()},
+ * that is expected to be invoked once a second by a single thread.
+ */
+public class RateMeter {
+
+    private static final int WINDOW_SECONDS = 300;
+
+    private final StripedCounter m_total = new StripedCounter();
+    //per second deltas of the last 5 minutes, used as a circular buffer
+    private final long[] m_samples = new long[WINDOW_SECONDS];
+    private int m_next;
+    private int m_sampled;
+    private long m_lastTotal;
+    private long m_lastMinuteSum;
+    private long m_lastFiveMinutesSum;
+
+    public void add(long value) {
+        m_total.add(value);
+    }
+
+    public long total() {
+        return m_total.sum();
+    }
+
+    public synchronized void sample() {
+        long total = m_total.sum();
+        long delta = total - m_lastTotal;
+        m_lastTotal = total;
+
+        //the deltas leaving the 1 and 5 minutes windows
+        long leavingMinute = m_sampled >= 60 ? m_samples[(m_next + WINDOW_SECONDS - 60) % WINDOW_SECONDS] : 0;
+        long leavingFiveMinutes = m_sampled >= WINDOW_SECONDS ? m_samples[m_next] : 0;
+        m_samples[m_next] = delta;
+        m_next = (m_next + 1) % WINDOW_SECONDS;
+        if (m_sampled < WINDOW_SECONDS) {
+            m_sampled++;
+        }
+        m_lastMinuteSum += delta - leavingMinute;
+        m_lastFiveMinutesSum += delta - leavingFiveMinutes;
+    }
+
+    public synchronized RateMetrics computeRates() {
+        long lastSecond = m_sampled == 0 ? 0 : m_samples[(m_next + WINDOW_SECONDS - 1) % WINDOW_SECONDS];
+        double oneMinute = m_sampled == 0 ? 0 : (double) m_lastMinuteSum / Math.min(60, m_sampled);
+        double fiveMinutes = m_sampled == 0 ? 0 : (double) m_lastFiveMinutesSum / m_sampled;
+        return new RateMetrics(lastSecond, oneMinute, fiveMinutes);
+    }
+}
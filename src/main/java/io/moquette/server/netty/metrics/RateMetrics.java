@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.server.netty.metrics;
+
+/**
+ * Throughput snapshot, expressed in units per second.
+ */
+public class RateMetrics {
+    private final long m_lastSecond;
+    private final double m_oneMinute;
+    private final double m_fiveMinutes;
+
+    RateMetrics(long lastSecond, double oneMinute, double fiveMinutes) {
+        m_lastSecond = lastSecond;
+        m_oneMinute = oneMinute;
+        m_fiveMinutes = fiveMinutes;
+    }
+
+    public long lastSecond() {
+        return m_lastSecond;
+    }
+
+    /**
+     * @return the average per second over the last minute.
+     */
+    public double oneMinute() {
+        return m_oneMinute;
+    }
+
+    /**
+     * @return the average per second over the last five minutes.
+     */
+    public double fiveMinutes() {
+        return m_fiveMinutes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d/s (1m %.1f/s, 5m %.1f/s)", m_lastSecond, m_oneMinute, m_fiveMinutes);
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.server.netty.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent updates over several cells, in the spirit of Java 8's LongAdder, so that the
+ * I/O threads updating it don't contend on a single cache line. Reads sum all the cells and are therefore only
+ * eventually consistent with the writes in progress.
+ */
+public class StripedCounter {
+
+    //one cell every 8 longs, so that each cell sits on its own 64 bytes cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray m_cells;
+    private final int m_mask;
+
+    public StripedCounter() {
+        int stripes = 1;
+        int target = Math.min(64, Runtime.getRuntime().availableProcessors() * 2);
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        m_mask = stripes - 1;
+        m_cells = new AtomicLongArray(stripes * PADDING);
+    }
+
+    public void add(long value) {
+        m_cells.getAndAdd(cellIndex(), value);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < m_cells.length(); i += PADDING) {
+            sum += m_cells.get(i);
+        }
+        return sum;
+    }
+
+    private int cellIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & m_mask) * PADDING;
+    }
+}
@@ -22,10 +22,11 @@ import io.moquette.spi.ISessionsStore.ClientTopicCouple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Model a Session like describe on page 25 of MQTT 3.1.1 specification:
@@ -57,7 +58,11 @@ public class ClientSession {
 
     private volatile boolean cleanSession;
 
-    private boolean active = false;
+    private volatile boolean active = false;
+
+    //counters of the connection the session is live for
+    private final AtomicLong m_received = new AtomicLong();
+    private final AtomicLong m_sent = new AtomicLong();
 
     public ClientSession(String clientID, IMessagesStore messagesStore, ISessionsStore sessionsStore,
                          boolean cleanSession) {
@@ -74,16 +79,18 @@ public class ClientSession {
      * @return the list of messages to be delivered for client related to the session.
      * */
     public List<IMessagesStore.StoredMessage> storedMessages() {
-        //read all messages from enqueued store
-        Collection<String> guids = this.m_sessionsStore.enqueued(clientID);
+        //drain the queue of the enqueued store
+        List<String> guids = this.m_sessionsStore.drainEnqueued(clientID);
         return messagesStore.listMessagesInSession(guids);
     }
 
     /**
-     * Remove the messages stored in a cleanSession false.
-     */
-    public void removeEnqueued(String guid) {
-        this.m_sessionsStore.removeEnqueued(this.clientID, guid);
+     * Like {@link #storedMessages()} but drain at most max messages, the oldest ones.
+     *
+     * @return the drained messages, some of them may not be stored anymore.
+     * */
+    public List<ISessionsStore.Enqueued> drainToDeliver(int max) {
+        return this.m_sessionsStore.drainEnqueued(clientID, max);
     }
 
     @Override
@@ -139,7 +146,7 @@ public class ClientSession {
         m_sessionsStore.wipeSubscriptions(this.clientID);
 
         //remove also the messages stored of type QoS1/2
-        messagesStore.dropMessagesInSession(this.clientID);
+        m_sessionsStore.clearSessionMessages(this.clientID);
     }
 
     public boolean isCleanSession() {
@@ -163,6 +170,28 @@ public class ClientSession {
         return this.active;
     }
 
+    /**
+     * Count a PUBLISH received from the client.
+     */
+    public void published() {
+        m_received.incrementAndGet();
+    }
+
+    /**
+     * Count a PUBLISH sent to the client.
+     */
+    public void delivered() {
+        m_sent.incrementAndGet();
+    }
+
+    public long receivedCount() {
+        return m_received.get();
+    }
+
+    public long sentCount() {
+        return m_sent.get();
+    }
+
     public int nextPacketId() {
         return this.m_sessionsStore.nextPacketID(this.clientID);
     }
@@ -175,6 +204,20 @@ public class ClientSession {
         m_sessionsStore.inFlight(this.clientID, messageID, guid);
     }
 
+    /**
+     * @return the guids of the messages left waiting for PUBACK or PUBREC, by messageID.
+     */
+    public Map<Integer, String> inFlightMessages() {
+        return m_sessionsStore.inFlightMessages(clientID);
+    }
+
+    /**
+     * @return the messageIDs of the QoS2 messages left waiting for PUBCOMP.
+     */
+    public Set<Integer> secondPhaseWaiting() {
+        return m_sessionsStore.secondPhaseWaiting(clientID);
+    }
+
     public void secondPhaseAcknowledged(int messageID) {
         m_sessionsStore.secondPhaseAcknowledged(clientID, messageID);
     }
@@ -187,8 +230,29 @@ public class ClientSession {
         this.m_sessionsStore.bindToDeliver(guid, this.clientID);
     }
 
+    /**
+     * Like {@link #enqueueToDeliver(String)}, retained tells to publish it with the RETAIN flag.
+     */
+    public void enqueueToDeliver(String guid, boolean retained) {
+        this.m_sessionsStore.bindToDeliver(guid, this.clientID, retained);
+    }
+
+    /**
+     * Hold the QoS2 message published by the client until its PUBREL.
+     */
+    public void storeToRelease(int messageID, String guid) {
+        m_sessionsStore.bindGuid(clientID, messageID, guid);
+    }
+
+    public void released(int messageID) {
+        m_sessionsStore.unbindGuid(clientID, messageID);
+    }
+
+    /**
+     * @return the QoS2 message published by the client with messageID, null if it isn't stored.
+     */
     public IMessagesStore.StoredMessage storedMessage(int messageID) {
         final String guid = m_sessionsStore.mapToGuid(clientID, messageID);
-        return messagesStore.getMessageByGuid(guid);
+        return guid == null ? null : messagesStore.getMessageByGuid(guid);
     }
 }
\ No newline at end of file
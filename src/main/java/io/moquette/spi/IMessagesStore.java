@@ -23,7 +23,11 @@ import java.util.Collection;
 import java.util.List;
 
 /**
- * Defines the SPI to be implemented by a StorageService that handle persistence of messages
+ * Defines the SPI to be implemented by a StorageService that handle persistence of messages.
+ *
+ * A message is stored once and shared by all its references: the in flight and queued entries of the subscribers
+ * sessions, the QoS2 message waiting for the PUBREL of its publisher and the retained slot of its topic. Each one
+ * holds a usage counter, the message is dropped when the last is released.
  */
 public interface IMessagesStore {
 
@@ -109,30 +113,36 @@ public interface IMessagesStore {
     void initStore();
 
     /**
-     * Persist the message. 
-     * If the message is empty then the topic is cleaned, else it's stored.
+     * Persist the message as the retained one of the topic, it holds a reference to the message until it's replaced
+     * or cleaned.
      */
     void storeRetained(String topic, String guid);
 
     /**
-     * Return a list of retained messages that satisfy the condition.
+     * Return the retained messages whose topic is matched by the topic filter, that may contain wildcards.
      */
-    Collection<StoredMessage> searchMatching(IMatchingCondition condition);
+    Collection<StoredMessage> searchMatching(String topicFilter);
 
     /**
      * Persist the message.
-     * @return the unique id in the storage (guid).
+     * @return the unique id in the storage (guid), the caller owns a reference to the message and has to release it
+     * with {@link #decUsageCounter(String)} once the message is bound where it's needed.
      * */
     String storePublishForFuture(StoredMessage evt);
 
+    void incUsageCounter(String guid);
+
+    /**
+     * Release a reference to the message, the message is dropped if it was the last.
+     */
+    void decUsageCounter(String guid);
+
     /**
      * Return the list of persisted publishes for the given clientID.
      * For QoS1 and QoS2 with clean session flag, this method return the list of 
      * missed publish events while the client was disconnected.
      */
     List<StoredMessage> listMessagesInSession(Collection<String> guids);
-    
-    void dropMessagesInSession(String clientID);
 
     StoredMessage getMessageByGuid(String guid);
 
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi;
+
+/**
+ * SPI of a storage backend, it provides the messages and sessions stores used by the broker. The implementation is
+ * selected with the store_provider property.
+ *
+ * Implementations loaded by class name must have a public constructor accepting the IConfig and the
+ * LatencyMetricsCollector.
+ */
+public interface IPersistentStore {
+
+    /**
+     * Open the underlying storage, invoked before any store is requested.
+     */
+    void initStore();
+
+    /**
+     * @return the initialized messages store.
+     */
+    IMessagesStore messagesStore();
+
+    /**
+     * @return the initialized sessions store, using msgStore for the sessions messages.
+     */
+    ISessionsStore sessionsStore(IMessagesStore msgStore);
+
+    /**
+     * Flush and release the storage.
+     */
+    void close();
+}
@@ -15,8 +15,9 @@
  */
 package io.moquette.spi;
 
-import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import io.moquette.spi.impl.subscriptions.Subscription;
 
@@ -66,6 +67,39 @@ public interface ISessionsStore {
 
     }
 
+    /**
+     * A message of the offline queue of a session.
+     */
+    class Enqueued {
+        public final String guid;
+        //published with the RETAIN flag, as the retained messages sent on subscribe
+        public final boolean retained;
+
+        public Enqueued(String guid, boolean retained) {
+            this.guid = guid;
+            this.retained = retained;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Enqueued that = (Enqueued) o;
+            return retained == that.retained && guid.equals(that.guid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * guid.hashCode() + (retained ? 1 : 0);
+        }
+
+        @Override
+        public String toString() {
+            return "Enqueued{guid='" + guid + '\'' + ", retained=" + retained + '}';
+        }
+    }
+
     void initStore();
 
     /**
@@ -84,9 +118,9 @@ public interface ISessionsStore {
     void wipeSubscriptions(String sessionID);
 
     /**
-     * Return all topic filters to recreate the subscription tree.
+     * Return all the subscriptions, with their QoS, to recreate the subscription tree.
      * */
-    List<ClientTopicCouple> listAllSubscriptions();
+    List<Subscription> listAllSubscriptions();
 
     /**
      * @return the subscription stored by clientID and topicFilter, if any else null;
@@ -106,36 +140,77 @@ public interface ISessionsStore {
      * */
     ClientSession sessionForClient(String clientID);
 
+    /**
+     * Remove the in flight message, releasing its reference.
+     * */
     void inFlightAck(String clientID, int messageID);
 
     /**
-     * Save the binding messageID, clientID <-> guid
+     * Save the binding messageID, clientID <-> guid, it holds a reference to the message.
      * */
     void inFlight(String clientID, int messageID, String guid);
 
+    /**
+     * @return the guids of the messages sent to the client and waiting for PUBACK or PUBREC, by messageID.
+     * */
+    Map<Integer, String> inFlightMessages(String clientID);
+
     /**
      * Return the next valid packetIdentifier for the given client session.
      * */
     int nextPacketID(String clientID);
 
     /**
-     * Store the guid to be later published.
+     * Append the guid to the queue of messages to publish when the session reconnects. When the queue is at its
+     * maximum depth either the oldest queued guid or this one is dropped, as configured. A queued guid holds a
+     * reference to the message.
      * */
     void bindToDeliver(String guid, String clientID);
 
     /**
-     * List the guids for retained messages for the session
+     * Like {@link #bindToDeliver(String, String)}, retained tells the message has to be published with the RETAIN
+     * flag.
      * */
-    Collection<String> enqueued(String clientID);
+    void bindToDeliver(String guid, String clientID, boolean retained);
 
     /**
-     * Remove form the queue of stored messages for session.
+     * Remove and return, in queue order, the guids stored to be published to the session. The references they held
+     * pass to the caller.
      * */
-    void removeEnqueued(String clientID, String guid);
+    List<String> drainEnqueued(String clientID);
+
+    /**
+     * Like {@link #drainEnqueued(String)} but remove and return at most max messages, the oldest ones, with their
+     * RETAIN flag.
+     * */
+    List<Enqueued> drainEnqueued(String clientID, int max);
+
+    /**
+     * Save the guid of a QoS2 message published by the client until its PUBREL, it holds a reference to the message.
+     * */
+    void bindGuid(String clientID, int messageID, String guid);
+
+    /**
+     * Remove the binding saved by {@link #bindGuid(String, int, String)}, releasing its reference.
+     * */
+    void unbindGuid(String clientID, int messageID);
+
+    /**
+     * Drop the in flight, queued and QoS2 messages of the session, releasing their references.
+     * */
+    void clearSessionMessages(String clientID);
 
     void secondPhaseAcknowledged(String clientID, int messageID);
 
     void secondPhaseAckWaiting(String clientID, int messageID);
 
+    /**
+     * @return the messageIDs of the QoS2 messages sent to the client and waiting for PUBCOMP.
+     * */
+    Set<Integer> secondPhaseWaiting(String clientID);
+
+    /**
+     * @return the guid bound by {@link #bindGuid(String, int, String)}, null if there isn't any.
+     * */
     String mapToGuid(String clientID, int messageID);
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi;
+
+/**
+ * Implemented by the messages stores that slow down the publishers while their writes aren't durable yet. The
+ * broker asks for it before storing a message.
+ */
+public interface IStoreBackpressure {
+
+    /**
+     * Block the caller while the store is over its backpressure bound. Not meant for the I/O threads, which serve
+     * other connections too.
+     */
+    void throttle();
+
+    /**
+     * @return true if the store is over its backpressure bound.
+     */
+    boolean isOverBound();
+
+    /**
+     * Run resume once the store is back under its backpressure bound, right away if it already is.
+     */
+    void whenUnderBound(Runnable resume);
+}
@@ -72,12 +72,12 @@ final class BrokerInterceptor implements Interceptor {
     }
 
     @Override
-    public void notifyTopicPublished(final PublishMessage msg, final String clientID) {
+    public void notifyTopicPublished(final PublishMessage msg, final String clientID, final long receivedNanos) {
         for (final InterceptHandler handler : this.handlers) {
             executor.execute(new Runnable() {
                 @Override
                 public void run() {
-                    handler.onPublish(new InterceptPublishMessage(msg, clientID));
+                    handler.onPublish(new InterceptPublishMessage(msg, clientID, receivedNanos));
                 }
             });
         }
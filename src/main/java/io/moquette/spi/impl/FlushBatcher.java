@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.BrokerConstants;
+import io.moquette.server.config.IConfig;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consolidates the flushes of the packets the processor writes. When enabled a packet is only written to its channel,
+ * the channels written by a thread are flushed once when the thread ends its batch: the read of a channel completes,
+ * or the inbound pipeline reaches the end of the events available. A channel is flushed earlier when its pending
+ * bytes reach the max pending bytes, and after the max delay if no end of batch comes, as for the packets written by
+ * an embedding application thread.
+ *
+ * When disabled every packet is written and flushed right away.
+ */
+class FlushBatcher {
+
+    private static final AttributeKey<PendingFlush> ATTR_KEY_PENDING_FLUSH = AttributeKey.valueOf("pendingFlush");
+
+    /**
+     * Bytes written to a channel and not flushed yet, it's also the task of the max delay timer.
+     */
+    private static final class PendingFlush implements Runnable {
+        final Channel channel;
+        final AtomicInteger bytes = new AtomicInteger();
+        final AtomicBoolean timerArmed = new AtomicBoolean();
+
+        PendingFlush(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            timerArmed.set(false);
+            flush();
+        }
+
+        void flush() {
+            bytes.set(0);
+            channel.flush();
+        }
+    }
+
+    private final boolean m_enabled;
+    private final int m_maxPendingBytes;
+    private final long m_maxDelayMillis;
+    //the channels written by each thread since the end of its last batch
+    private final ThreadLocal<Set<Channel>> m_batch = new ThreadLocal<Set<Channel>>() {
+        @Override
+        protected Set<Channel> initialValue() {
+            return new HashSet<>();
+        }
+    };
+
+    FlushBatcher(boolean enabled, int maxPendingBytes, long maxDelayMillis) {
+        m_enabled = enabled;
+        m_maxPendingBytes = maxPendingBytes;
+        m_maxDelayMillis = maxDelayMillis;
+    }
+
+    static FlushBatcher fromConfig(IConfig props) {
+        boolean enabled = Boolean.parseBoolean(props.getProperty(
+                BrokerConstants.FLUSH_CONSOLIDATION_PROPERTY_NAME, "false"));
+        int maxPendingBytes = Integer.parseInt(props.getProperty(
+                BrokerConstants.FLUSH_MAX_PENDING_BYTES_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.FLUSH_MAX_PENDING_BYTES)));
+        long maxDelay = Long.parseLong(props.getProperty(BrokerConstants.FLUSH_MAX_DELAY_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.FLUSH_MAX_DELAY)));
+        return new FlushBatcher(enabled, maxPendingBytes, maxDelay);
+    }
+
+    boolean isEnabled() {
+        return m_enabled;
+    }
+
+    /**
+     * @param estimatedBytes the approximate size of the encoded packet, counted against the max pending bytes.
+     */
+    void write(Channel channel, Object msg, int estimatedBytes) {
+        if (!m_enabled) {
+            channel.writeAndFlush(msg);
+            return;
+        }
+        PendingFlush pending = pendingFlush(channel);
+        channel.write(msg);
+        if (pending.bytes.addAndGet(estimatedBytes) >= m_maxPendingBytes) {
+            pending.flush();
+            return;
+        }
+        m_batch.get().add(channel);
+        if (pending.timerArmed.compareAndSet(false, true)) {
+            channel.eventLoop().schedule(pending, m_maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flush the channels the calling thread wrote since its last batch ended.
+     */
+    void endOfBatch() {
+        if (!m_enabled) {
+            return;
+        }
+        Set<Channel> batch = m_batch.get();
+        if (batch.isEmpty()) {
+            return;
+        }
+        for (Channel channel : batch) {
+            pendingFlush(channel).flush();
+        }
+        batch.clear();
+    }
+
+    private static PendingFlush pendingFlush(Channel channel) {
+        Attribute<PendingFlush> attr = channel.attr(ATTR_KEY_PENDING_FLUSH);
+        PendingFlush pending = attr.get();
+        if (pending == null) {
+            pending = new PendingFlush(channel);
+            PendingFlush existing = attr.setIfAbsent(pending);
+            if (existing != null) {
+                pending = existing;
+            }
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.BrokerConstants;
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.proto.messages.PubRelMessage;
+import io.moquette.proto.messages.PublishMessage;
+import io.moquette.server.config.IConfig;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.ISessionsStore;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Windows of the QoS 1 and 2 messages in flight to each connection, bounded by the inflight_max count. A message that
+ * doesn't fit in the window goes to the offline queue of the session, and once a message is queued the next ones
+ * follow it there so they keep their order. The queue is drained into the window as the acks free it.
+ *
+ * Each message in flight has a deadline on a hashed wheel timer: if its PUBACK or PUBREC doesn't arrive in time the
+ * PUBLISH is sent again with the DUP flag, if the PUBCOMP doesn't the PUBREL is sent again. So a lossy link recovers
+ * without waiting for the client to reconnect. The acks find their message by packet identifier in constant time.
+ */
+class InflightWindows {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InflightWindows.class);
+
+    private static final AttributeKey<Window> ATTR_KEY_INFLIGHT_WINDOW = AttributeKey.valueOf("inflightWindow");
+
+    /**
+     * A message in flight, it's also the task of its retry deadline.
+     */
+    private final class Inflight implements TimerTask {
+        final Window window;
+        final int messageID;
+        final String guid;
+        final QOSType qos;
+        final boolean retained;
+        //waiting for PUBCOMP, after the PUBREC
+        boolean released;
+        Timeout timeout;
+
+        Inflight(Window window, int messageID, String guid, QOSType qos, boolean retained) {
+            this.window = window;
+            this.messageID = messageID;
+            this.guid = guid;
+            this.qos = qos;
+            this.retained = retained;
+        }
+
+        @Override
+        public void run(Timeout expired) {
+            boolean pubRel;
+            synchronized (window) {
+                if (window.closed || window.inflight.get(messageID) != this) {
+                    //acknowledged meanwhile
+                    return;
+                }
+                timeout = schedule(this);
+                pubRel = released;
+            }
+            if (!window.channel.isWritable()) {
+                //the packets already queued to the slow consumer go first, try on the next deadline
+                return;
+            }
+            resend(pubRel);
+        }
+
+        void resend(boolean pubRel) {
+            Channel channel = window.channel;
+            if (pubRel) {
+                LOG.debug("Resending PUBREL to <{}> for messageID {}", window.session.clientID, messageID);
+                PubRelMessage pubRelMessage = new PubRelMessage();
+                pubRelMessage.setMessageID(messageID);
+                pubRelMessage.setQos(QOSType.LEAST_ONE);
+                channel.writeAndFlush(pubRelMessage);
+                return;
+            }
+            IMessagesStore.StoredMessage stored = m_messagesStore.getMessageByGuid(guid);
+            if (stored == null) {
+                LOG.warn("Message {} in flight to <{}> isn't stored anymore, can't resend it", guid,
+                        window.session.clientID);
+                return;
+            }
+            LOG.debug("Resending PUBLISH to <{}> for messageID {}", window.session.clientID, messageID);
+            PublishMessage pubMessage = new PublishMessage();
+            pubMessage.setDupFlag(true);
+            pubMessage.setRetainFlag(retained);
+            pubMessage.setTopicName(stored.getTopic());
+            pubMessage.setQos(qos);
+            pubMessage.setMessageID(messageID);
+            pubMessage.setPayload(stored.getMessage());
+            channel.writeAndFlush(pubMessage);
+            window.session.delivered();
+        }
+    }
+
+    private final class Window {
+        final Channel channel;
+        final ClientSession session;
+        final Map<Integer, Inflight> inflight = new HashMap<>();
+        //slots taken, by the messages in flight and the ones about to be sent
+        int count;
+        //messages wait in the offline queue of the session
+        boolean queued;
+        boolean closed;
+
+        Window(Channel channel, ClientSession session) {
+            this.channel = channel;
+            this.session = session;
+        }
+    }
+
+    private final IMessagesStore m_messagesStore;
+    private final int m_maxInflight;
+    private final long m_retryIntervalMillis;
+    private final Timer m_timer;
+
+    /**
+     * @param maxInflight the size of the windows, 0 means unbounded.
+     * @param retryIntervalMillis the time to wait for an ack before resending, 0 disables the resend.
+     */
+    InflightWindows(IMessagesStore messagesStore, int maxInflight, long retryIntervalMillis) {
+        this(messagesStore, maxInflight, retryIntervalMillis, new HashedWheelTimer(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "moquette-inflight-timer");
+                t.setDaemon(true);
+                return t;
+            }
+        }, 100, TimeUnit.MILLISECONDS));
+    }
+
+    InflightWindows(IMessagesStore messagesStore, int maxInflight, long retryIntervalMillis, Timer timer) {
+        m_messagesStore = messagesStore;
+        m_maxInflight = maxInflight > 0 ? maxInflight : Integer.MAX_VALUE;
+        m_retryIntervalMillis = retryIntervalMillis;
+        m_timer = timer;
+    }
+
+    static InflightWindows fromConfig(IConfig props, IMessagesStore messagesStore) {
+        int maxInflight = Integer.parseInt(props.getProperty(BrokerConstants.INFLIGHT_MAX_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.INFLIGHT_MAX)));
+        int retryInterval = Integer.parseInt(props.getProperty(BrokerConstants.INFLIGHT_RETRY_INTERVAL_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.INFLIGHT_RETRY_INTERVAL)));
+        return new InflightWindows(messagesStore, maxInflight, TimeUnit.SECONDS.toMillis(retryInterval));
+    }
+
+    /**
+     * Open the window of a connection that just connected.
+     */
+    void open(Channel channel, ClientSession session) {
+        channel.attr(ATTR_KEY_INFLIGHT_WINDOW).set(new Window(channel, session));
+    }
+
+    /**
+     * Take a slot of the window for the message, or append it to the offline queue of the session if the window is
+     * full or other messages are queued. On a closed connection the message is queued too, so a not clean session
+     * gets it on reconnect.
+     *
+     * @param retained the message is published with the RETAIN flag, it keeps it in the queue.
+     * @return true if the message has to be sent, false if it was queued.
+     */
+    boolean acquireOrEnqueue(Channel channel, String guid, boolean retained) {
+        Window window = window(channel);
+        synchronized (window) {
+            if (window.closed || window.queued || window.count >= m_maxInflight) {
+                window.session.enqueueToDeliver(guid, retained);
+                window.queued = true;
+                return false;
+            }
+            window.count++;
+            return true;
+        }
+    }
+
+    /**
+     * Track the message sent in the slot taken by {@link #acquireOrEnqueue} or {@link #drain}, arming its deadline.
+     */
+    void sent(Channel channel, int messageID, String guid, QOSType qos, boolean retained) {
+        Window window = window(channel);
+        synchronized (window) {
+            Inflight msg = new Inflight(window, messageID, guid, qos, retained);
+            window.inflight.put(messageID, msg);
+            msg.timeout = schedule(msg);
+        }
+    }
+
+    /**
+     * Track a message the previous connection of the not clean session left waiting for PUBACK or PUBREC, and send
+     * the PUBLISH again with the DUP flag. It keeps its messageID and takes a slot even over the window size, so the
+     * offline queue waits for it.
+     */
+    void resumed(Channel channel, int messageID, String guid, QOSType qos) {
+        resume(channel, new Inflight(window(channel), messageID, guid, qos, false));
+    }
+
+    /**
+     * Like {@link #resumed} for a QoS 2 message left waiting for PUBCOMP, the PUBREL is sent again.
+     */
+    void resumedRelease(Channel channel, int messageID) {
+        Inflight msg = new Inflight(window(channel), messageID, null, QOSType.EXACTLY_ONCE, false);
+        msg.released = true;
+        resume(channel, msg);
+    }
+
+    private void resume(Channel channel, Inflight msg) {
+        Window window = msg.window;
+        synchronized (window) {
+            if (window.closed) {
+                //lost again, the store still has it for the next connection
+                return;
+            }
+            Inflight previous = window.inflight.put(msg.messageID, msg);
+            if (previous != null) {
+                cancel(previous);
+            } else {
+                window.count++;
+            }
+            msg.timeout = schedule(msg);
+        }
+        msg.resend(msg.released);
+    }
+
+    /**
+     * The PUBREC of a QoS 2 message arrived and the PUBREL is sent, the deadline is now for the PUBCOMP.
+     */
+    void released(Channel channel, int messageID) {
+        Window window = window(channel);
+        synchronized (window) {
+            Inflight msg = window.inflight.get(messageID);
+            if (msg == null) {
+                return;
+            }
+            cancel(msg);
+            msg.released = true;
+            msg.timeout = schedule(msg);
+        }
+    }
+
+    /**
+     * The PUBACK or the PUBCOMP of the message arrived, free its slot.
+     *
+     * @return true if messages are queued and have to be drained.
+     */
+    boolean acknowledged(Channel channel, int messageID) {
+        Window window = window(channel);
+        synchronized (window) {
+            Inflight msg = window.inflight.remove(messageID);
+            if (msg == null) {
+                //a duplicated ack
+                return false;
+            }
+            cancel(msg);
+            window.count--;
+            return window.queued;
+        }
+    }
+
+    /**
+     * The message left the in flight zone for the offline queue of the session, free its slot.
+     */
+    void spilled(Channel channel, int messageID) {
+        Window window = window(channel);
+        synchronized (window) {
+            Inflight msg = window.inflight.remove(messageID);
+            if (msg != null) {
+                cancel(msg);
+                window.count--;
+            }
+            window.queued = true;
+        }
+    }
+
+    /**
+     * Messages were appended to the offline queue of the session out of this window, as the spilled ones.
+     */
+    void markQueued(Channel channel) {
+        Window window = window(channel);
+        synchronized (window) {
+            window.queued = true;
+        }
+    }
+
+    /**
+     * Take from the offline queue as many messages as the window has free slots and reserve a slot for each of them,
+     * the caller frees with {@link #skipped} the ones it doesn't send in flight. Call it until it returns an empty
+     * list.
+     *
+     * @return the drained messages.
+     */
+    List<ISessionsStore.Enqueued> drain(Channel channel) {
+        Window window = window(channel);
+        synchronized (window) {
+            if (window.closed || !window.queued || window.count >= m_maxInflight) {
+                return Collections.emptyList();
+            }
+            //the messages evicted meanwhile are drained too, only an empty queue ends the draining
+            List<ISessionsStore.Enqueued> drained = window.session.drainToDeliver(m_maxInflight - window.count);
+            if (drained.isEmpty()) {
+                window.queued = false;
+            }
+            window.count += drained.size();
+            return drained;
+        }
+    }
+
+    /**
+     * A message taken by {@link #drain} isn't sent in flight, because it goes at QoS 0 or isn't stored anymore, free
+     * its slot.
+     */
+    void skipped(Channel channel) {
+        Window window = window(channel);
+        synchronized (window) {
+            window.count--;
+        }
+    }
+
+    /**
+     * Cancel the deadlines of the closed connection.
+     */
+    void closed(Channel channel) {
+        Window window = channel.attr(ATTR_KEY_INFLIGHT_WINDOW).get();
+        if (window == null) {
+            return;
+        }
+        synchronized (window) {
+            window.closed = true;
+            for (Inflight msg : window.inflight.values()) {
+                cancel(msg);
+            }
+            window.inflight.clear();
+        }
+    }
+
+    void stop() {
+        m_timer.stop();
+    }
+
+    private Window window(Channel channel) {
+        Attribute<Window> attr = channel.attr(ATTR_KEY_INFLIGHT_WINDOW);
+        Window window = attr.get();
+        if (window == null) {
+            throw new IllegalStateException("No inflight window for channel " + channel + ", it isn't connected");
+        }
+        return window;
+    }
+
+    private Timeout schedule(Inflight msg) {
+        if (m_retryIntervalMillis <= 0) {
+            return null;
+        }
+        return m_timer.newTimeout(msg, m_retryIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static void cancel(Inflight msg) {
+        if (msg.timeout != null) {
+            msg.timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.BrokerConstants;
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.server.config.IConfig;
+import io.moquette.spi.ClientSession;
+import io.netty.channel.Channel;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded queues of the PUBLISH packets to send to slow consumers. A packet is written to its channel while the
+ * channel is writable, once Netty's outbound buffer is over its high water mark the packets wait in the queue of the
+ * connection and are written when the channel turns writable again.
+ *
+ * When the bytes queued for a connection would go over the high water mark the policy is applied:
+ * <ul>
+ *     <li>drop_oldest: drop the oldest QoS 0 packets down to the low water mark, the QoS 1 and 2 ones are never
+ *     dropped so if they alone are over the high water mark the client is disconnected.</li>
+ *     <li>disconnect: close the connection.</li>
+ *     <li>spill: drop the QoS 0 packets and move the QoS 1 and 2 ones to the session's offline queue, down to the low
+ *     water mark. Until the spilled messages are republished the new QoS 1 and 2 ones are spilled too, so they
+ *     don't overtake them.</li>
+ * </ul>
+ * On close the queued QoS 1 and 2 packets of a not clean session are moved to its offline queue, to be published
+ * on reconnect.
+ */
+class OutboundQueues {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OutboundQueues.class);
+
+    private static final AttributeKey<ClientQueue> ATTR_KEY_OUTBOUND_QUEUE = AttributeKey.valueOf("outboundQueue");
+
+    enum Policy {
+        DROP_OLDEST, DISCONNECT, SPILL
+    }
+
+    private static final class Entry {
+        final Object msg;
+        final int bytes;
+        final QOSType qos;
+        final String guid;
+        final Integer messageID;
+        final boolean retained;
+
+        Entry(Object msg, int bytes, QOSType qos, String guid, Integer messageID, boolean retained) {
+            this.msg = msg;
+            this.bytes = bytes;
+            this.qos = qos;
+            this.guid = guid;
+            this.messageID = messageID;
+            this.retained = retained;
+        }
+    }
+
+    private final class ClientQueue {
+        final Channel channel;
+        final ClientSession session;
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        long bytes;
+        //some QoS 1 and 2 messages wait in the offline queue
+        boolean spilled;
+        boolean closed;
+
+        ClientQueue(Channel channel, ClientSession session) {
+            this.channel = channel;
+            this.session = session;
+        }
+
+        /**
+         * @return false if the queue is over its high water mark and the connection has to be closed.
+         */
+        synchronized boolean send(Object msg, int msgBytes, QOSType qos, String guid, Integer messageID,
+                                  boolean retained) {
+            if (closed) {
+                //the connection is going away, Netty releases what it can't write
+                m_flushBatcher.write(channel, msg, msgBytes);
+                return true;
+            }
+            if (channel.isWritable()) {
+                drain();
+            }
+            Entry entry = new Entry(msg, msgBytes, qos, guid, messageID, retained);
+            if (spilled && qos != QOSType.MOST_ONE) {
+                spill(entry);
+                return true;
+            }
+            if (entries.isEmpty() && channel.isWritable()) {
+                m_flushBatcher.write(channel, msg, msgBytes);
+                return true;
+            }
+            if (bytes + msgBytes > m_highWaterMark && !shed(msgBytes)) {
+                entries.addLast(entry);
+                bytes += msgBytes;
+                return false;
+            }
+            entries.addLast(entry);
+            bytes += msgBytes;
+            return true;
+        }
+
+        /**
+         * Apply the policy to make room for msgBytes.
+         *
+         * @return false if the connection has to be closed.
+         */
+        private boolean shed(int msgBytes) {
+            if (m_policy == Policy.DISCONNECT) {
+                LOG.warn("Outbound queue of client <{}> over {} bytes, disconnecting it", session.clientID,
+                        m_highWaterMark);
+                return false;
+            }
+            int dropped = 0;
+            int spilledCount = 0;
+            Iterator<Entry> it = entries.iterator();
+            while (bytes + msgBytes > m_lowWaterMark && it.hasNext()) {
+                Entry oldest = it.next();
+                if (oldest.qos == QOSType.MOST_ONE) {
+                    ReferenceCountUtil.release(oldest.msg);
+                    dropped++;
+                } else if (m_policy == Policy.SPILL) {
+                    spill(oldest);
+                    spilledCount++;
+                } else {
+                    continue;
+                }
+                it.remove();
+                bytes -= oldest.bytes;
+            }
+            LOG.warn("Outbound queue of client <{}> over {} bytes, dropped {} QoS 0 and spilled {} QoS 1/2 packets",
+                    session.clientID, m_highWaterMark, dropped, spilledCount);
+            if (bytes + msgBytes > m_highWaterMark) {
+                LOG.warn("Outbound queue of client <{}> still over {} bytes, disconnecting it", session.clientID,
+                        m_highWaterMark);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Move the message of entry from the in flight zone to the session's offline queue.
+         */
+        private void spill(Entry entry) {
+            //the offline queue takes its reference before the in flight one is released
+            session.enqueueToDeliver(entry.guid, entry.retained);
+            session.inFlightAcknowledged(entry.messageID);
+            m_inflightWindows.spilled(channel, entry.messageID);
+            ReferenceCountUtil.release(entry.msg);
+            spilled = true;
+        }
+
+        /**
+         * Write the queued packets while the channel is writable.
+         */
+        synchronized void drain() {
+            boolean written = false;
+            while (!entries.isEmpty() && channel.isWritable()) {
+                Entry entry = entries.pollFirst();
+                bytes -= entry.bytes;
+                channel.write(entry.msg);
+                written = true;
+            }
+            if (written) {
+                channel.flush();
+            }
+        }
+
+        /**
+         * @return true if the queue is empty and messages were spilled, clearing the flag.
+         */
+        synchronized boolean takeSpilled() {
+            if (!entries.isEmpty() || !spilled) {
+                return false;
+            }
+            spilled = false;
+            return true;
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Entry entry : entries) {
+                if (entry.qos != QOSType.MOST_ONE && !session.isCleanSession()) {
+                    session.enqueueToDeliver(entry.guid, entry.retained);
+                    session.inFlightAcknowledged(entry.messageID);
+                }
+                ReferenceCountUtil.release(entry.msg);
+            }
+            entries.clear();
+            bytes = 0;
+        }
+
+        synchronized int depth() {
+            return entries.size();
+        }
+    }
+
+    private final FlushBatcher m_flushBatcher;
+    private final InflightWindows m_inflightWindows;
+    private final long m_highWaterMark;
+    private final long m_lowWaterMark;
+    private final Policy m_policy;
+    //by clientID, for the metrics
+    private final ConcurrentMap<String, ClientQueue> m_queues = new ConcurrentHashMap<>();
+
+    OutboundQueues(FlushBatcher flushBatcher, InflightWindows inflightWindows, long highWaterMark, long lowWaterMark,
+                   Policy policy) {
+        if (lowWaterMark > highWaterMark) {
+            throw new IllegalArgumentException("Outbound queue low water mark " + lowWaterMark
+                    + " is over the high water mark " + highWaterMark);
+        }
+        m_flushBatcher = flushBatcher;
+        m_inflightWindows = inflightWindows;
+        m_highWaterMark = highWaterMark;
+        m_lowWaterMark = lowWaterMark;
+        m_policy = policy;
+    }
+
+    static OutboundQueues fromConfig(IConfig props, FlushBatcher flushBatcher, InflightWindows inflightWindows) {
+        long highWaterMark = Long.parseLong(props.getProperty(
+                BrokerConstants.OUTBOUND_QUEUE_HIGH_WATER_MARK_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.OUTBOUND_QUEUE_HIGH_WATER_MARK)));
+        long lowWaterMark = Long.parseLong(props.getProperty(
+                BrokerConstants.OUTBOUND_QUEUE_LOW_WATER_MARK_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.OUTBOUND_QUEUE_LOW_WATER_MARK)));
+        String policy = props.getProperty(BrokerConstants.OUTBOUND_QUEUE_POLICY_PROPERTY_NAME,
+                BrokerConstants.OUTBOUND_QUEUE_DROP_OLDEST);
+        switch (policy) {
+            case BrokerConstants.OUTBOUND_QUEUE_DROP_OLDEST:
+                return new OutboundQueues(flushBatcher, inflightWindows, highWaterMark, lowWaterMark, Policy.DROP_OLDEST);
+            case BrokerConstants.OUTBOUND_QUEUE_DISCONNECT:
+                return new OutboundQueues(flushBatcher, inflightWindows, highWaterMark, lowWaterMark, Policy.DISCONNECT);
+            case BrokerConstants.OUTBOUND_QUEUE_SPILL:
+                return new OutboundQueues(flushBatcher, inflightWindows, highWaterMark, lowWaterMark, Policy.SPILL);
+            default:
+                throw new IllegalArgumentException("Unknown outbound_queue_policy: " + policy);
+        }
+    }
+
+    /**
+     * Write the PUBLISH to the channel of the session, or queue it if the channel isn't writable.
+     *
+     * @param guid the stored message, used to spill it, null for QoS 0.
+     * @param messageID the packet identifier of the message in flight, null for QoS 0.
+     * @param retained the PUBLISH has the RETAIN flag, kept if the message is moved to the offline queue.
+     */
+    void send(Channel channel, ClientSession session, Object msg, int msgBytes, QOSType qos, String guid,
+              Integer messageID, boolean retained) {
+        if (!channel.isActive()) {
+            m_flushBatcher.write(channel, msg, msgBytes);
+            return;
+        }
+        ClientQueue queue = queueFor(channel, session);
+        if (!queue.send(msg, msgBytes, qos, guid, messageID, retained)) {
+            channel.close();
+        }
+    }
+
+    /**
+     * Write what was queued for the channel, now writable again.
+     *
+     * @return true if QoS 1 and 2 messages were spilled to the offline queue and have to be republished.
+     */
+    boolean writable(Channel channel) {
+        ClientQueue queue = channel.attr(ATTR_KEY_OUTBOUND_QUEUE).get();
+        if (queue == null) {
+            return false;
+        }
+        queue.drain();
+        return queue.takeSpilled();
+    }
+
+    /**
+     * Release the packets queued for the closed channel.
+     */
+    void closed(Channel channel) {
+        ClientQueue queue = channel.attr(ATTR_KEY_OUTBOUND_QUEUE).get();
+        if (queue == null) {
+            return;
+        }
+        queue.close();
+        m_queues.remove(queue.session.clientID, queue);
+    }
+
+    /**
+     * @return the number of packets queued for each connected client that has a queue.
+     */
+    Map<String, Integer> depths() {
+        Map<String, Integer> depths = new HashMap<>();
+        for (Map.Entry<String, ClientQueue> entry : m_queues.entrySet()) {
+            depths.put(entry.getKey(), entry.getValue().depth());
+        }
+        return depths;
+    }
+
+    private ClientQueue queueFor(Channel channel, ClientSession session) {
+        Attribute<ClientQueue> attr = channel.attr(ATTR_KEY_OUTBOUND_QUEUE);
+        ClientQueue queue = attr.get();
+        if (queue == null) {
+            queue = new ClientQueue(channel, session);
+            ClientQueue existing = attr.setIfAbsent(queue);
+            if (existing != null) {
+                queue = existing;
+            } else {
+                m_queues.put(session.clientID, queue);
+            }
+        }
+        return queue;
+    }
+}
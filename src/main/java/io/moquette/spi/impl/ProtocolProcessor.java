@@ -22,15 +22,17 @@ import java.util.concurrent.ConcurrentMap;
 
 import io.moquette.server.ConnectionDescriptor;
 import io.moquette.server.netty.NettyUtils;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
 import io.moquette.spi.ClientSession;
-import io.moquette.spi.IMatchingCondition;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.IStoreBackpressure;
 import io.moquette.spi.security.IAuthenticator;
 import io.moquette.spi.security.IAuthorizator;
 import io.moquette.spi.impl.subscriptions.SubscriptionsStore;
 import io.moquette.spi.impl.subscriptions.Subscription;
 
+import static io.moquette.server.netty.metrics.LatencyMetricsCollector.Stage;
 import static io.moquette.parser.netty.Utils.VERSION_3_1;
 import static io.moquette.parser.netty.Utils.VERSION_3_1_1;
 import io.moquette.proto.messages.AbstractMessage;
@@ -46,6 +48,7 @@ import io.moquette.proto.messages.SubAckMessage;
 import io.moquette.proto.messages.SubscribeMessage;
 import io.moquette.proto.messages.UnsubAckMessage;
 import io.moquette.proto.messages.UnsubscribeMessage;
+import io.netty.buffer.ByteBuf;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.timeout.IdleStateHandler;
@@ -100,9 +103,16 @@ public class ProtocolProcessor {
     private boolean allowAnonymous;
     private IAuthorizator m_authorizator;
     private IMessagesStore m_messagesStore;
+    //null if the store doesn't slow down the publishers
+    private IStoreBackpressure m_storeBackpressure;
     private ISessionsStore m_sessionsStore;
+    private SessionsRegistry m_sessions;
     private IAuthenticator m_authenticator;
     private BrokerInterceptor m_interceptor;
+    private LatencyMetricsCollector m_latencyMetrics;
+    private FlushBatcher m_flushBatcher;
+    private OutboundQueues m_outboundQueues;
+    private InflightWindows m_inflightWindows;
 
     //maps clientID to Will testament, if specified on CONNECT
     private ConcurrentMap<String, WillMessage> m_willStore = new ConcurrentHashMap<>();
@@ -119,23 +129,44 @@ public class ProtocolProcessor {
      * @param allowAnonymous true connection to clients without credentials.
      * @param authorizator used to apply ACL policies to publishes and subscriptions.
      * @param interceptor to notify events to an intercept handler
+     * @param latencyMetrics where the latencies of connect, publish and routing are recorded
+     * @param flushBatcher used to write the PUBLISH and acks packets, flushed at the end of each batch.
+     * @param outboundQueues where the PUBLISH packets to slow consumers wait for their channel to be writable.
+     * @param inflightWindows bounds the QoS1 and QoS2 messages in flight to each client and resends them.
      */
     void init(SubscriptionsStore subscriptions, IMessagesStore storageService,
               ISessionsStore sessionsStore,
               IAuthenticator authenticator,
-              boolean allowAnonymous, IAuthorizator authorizator, BrokerInterceptor interceptor) {
+              boolean allowAnonymous, IAuthorizator authorizator, BrokerInterceptor interceptor,
+              LatencyMetricsCollector latencyMetrics, FlushBatcher flushBatcher,
+              OutboundQueues outboundQueues, InflightWindows inflightWindows) {
         this.m_clientIDs = new ConcurrentHashMap<>();
         this.m_interceptor = interceptor;
+        this.m_latencyMetrics = latencyMetrics;
+        this.m_flushBatcher = flushBatcher;
+        this.m_outboundQueues = outboundQueues;
+        this.m_inflightWindows = inflightWindows;
         this.subscriptions = subscriptions;
         this.allowAnonymous = allowAnonymous;
         m_authorizator = authorizator;
         LOG.trace("subscription tree on init {}", subscriptions.dumpTree());
         m_authenticator = authenticator;
         m_messagesStore = storageService;
+        m_storeBackpressure = storageService instanceof IStoreBackpressure ? (IStoreBackpressure) storageService : null;
         m_sessionsStore = sessionsStore;
+        m_sessions = new SessionsRegistry(sessionsStore);
     }
 
     public void processConnect(Channel channel, ConnectMessage msg) {
+        long start = System.nanoTime();
+        try {
+            connect(channel, msg);
+        } finally {
+            m_latencyMetrics.record(Stage.CONNECT, start);
+        }
+    }
+
+    private void connect(Channel channel, ConnectMessage msg) {
         LOG.debug("CONNECT for client <{}>", msg.getClientID());
         if (msg.getProtocolVersion() != VERSION_3_1 && msg.getProtocolVersion() != VERSION_3_1_1) {
             ConnAckMessage badProto = new ConnAckMessage();
@@ -179,8 +210,12 @@ public class ProtocolProcessor {
             LOG.info("Found an existing connection with same client ID <{}>, forcing to close", msg.getClientID());
             //clean the subscriptions if the old used a cleanSession = true
             Channel oldChannel = m_clientIDs.get(msg.getClientID()).channel;
-            ClientSession oldClientSession = m_sessionsStore.sessionForClient(msg.getClientID());
+            ClientSession oldClientSession = m_sessions.sessionForClient(msg.getClientID());
             oldClientSession.disconnect();
+            m_sessions.disconnected(oldClientSession);
+            if (oldClientSession.isCleanSession()) {
+                subscriptions.removeForClient(msg.getClientID());
+            }
             NettyUtils.sessionStolen(oldChannel, true);
             oldChannel.close();
             LOG.debug("Existing connection with same client ID <{}>, forced to close", msg.getClientID());
@@ -229,14 +264,18 @@ public class ProtocolProcessor {
             LOG.info("Create persistent session for clientID <{}>", msg.getClientID());
             clientSession = m_sessionsStore.createNewSession(msg.getClientID(), msg.isCleanSession());
         }
-        clientSession.activate();
+        m_inflightWindows.open(channel, clientSession);
+        m_sessions.connected(clientSession);
         if (msg.isCleanSession()) {
             clientSession.cleanSession();
+            subscriptions.removeForClient(msg.getClientID());
         }
         LOG.info("Connected client ID <{}> with clean session {}", msg.getClientID(), msg.isCleanSession());
         if (!msg.isCleanSession()) {
-            //force the republish of stored QoS1 and QoS2
-            republishStoredInSession(clientSession);
+            //what the previous connection left in flight goes first, then the stored QoS1 and QoS2
+            resumeInflight(channel, clientSession);
+            m_inflightWindows.markQueued(channel);
+            republishStoredInSession(channel, clientSession);
         }
         LOG.info("CONNECT processed");
 //        LOG.info("CONNECT clients descriptors {}", m_clientIDs);
@@ -256,37 +295,100 @@ public class ProtocolProcessor {
     }
 
     /**
-     * Republish QoS1 and QoS2 messages stored into the session for the clientID.
+     * Send again, with their messageIDs, the PUBLISHes not acknowledged on the previous connection of the session and
+     * the PUBRELs of the QoS2 messages not completed, as MQTT 3.1.1 section 4.4 requires on reconnect.
      * */
-    private void republishStoredInSession(ClientSession clientSession) {
-        LOG.trace("republishStoredInSession for client <{}>", clientSession);
-        List<IMessagesStore.StoredMessage> publishedEvents = clientSession.storedMessages();
-        if (publishedEvents.isEmpty()) {
-            LOG.info("No stored messages for client <{}>", clientSession.clientID);
-            return;
+    private void resumeInflight(Channel channel, ClientSession clientSession) {
+        //by messageID, the order they were sent in as long as the identifiers didn't wrap
+        for (Map.Entry<Integer, String> inflight : new TreeMap<>(clientSession.inFlightMessages()).entrySet()) {
+            int messageID = inflight.getKey();
+            String guid = inflight.getValue();
+            IMessagesStore.StoredMessage pubEvt = m_messagesStore.getMessageByGuid(guid);
+            if (pubEvt == null) {
+                LOG.debug("Message {} in flight to client <{}> was evicted", guid, clientSession.clientID);
+                clientSession.inFlightAcknowledged(messageID);
+                continue;
+            }
+            AbstractMessage.QOSType qos = grantedQos(clientSession.clientID, pubEvt);
+            if (qos == AbstractMessage.QOSType.MOST_ONE) {
+                //it was sent in flight, so at least once, before the subscription changed
+                qos = AbstractMessage.QOSType.LEAST_ONE;
+            }
+            m_inflightWindows.resumed(channel, messageID, guid, qos);
         }
+        for (Integer messageID : new TreeSet<>(clientSession.secondPhaseWaiting())) {
+            m_inflightWindows.resumedRelease(channel, messageID);
+        }
+    }
 
-        LOG.info("republishing stored messages to client <{}>", clientSession.clientID);
-        for (IMessagesStore.StoredMessage pubEvt : publishedEvents) {
-            //TODO put in flight zone
-            directSend(clientSession, pubEvt.getTopic(), pubEvt.getQos(),
-                    pubEvt.getMessage(), false, pubEvt.getMessageID());
-            clientSession.removeEnqueued(pubEvt.getGuid());
+    /**
+     * Republish QoS1 and QoS2 messages stored into the session for the clientID, as many as its inflight window has
+     * room for. The others are republished as the acks free the window.
+     * */
+    private void republishStoredInSession(Channel channel, ClientSession clientSession) {
+        LOG.trace("republishStoredInSession for client <{}>", clientSession);
+        List<ISessionsStore.Enqueued> drained;
+        while (!(drained = m_inflightWindows.drain(channel)).isEmpty()) {
+            LOG.info("republishing {} stored messages to client <{}>", drained.size(), clientSession.clientID);
+            for (ISessionsStore.Enqueued enqueued : drained) {
+                String guid = enqueued.guid;
+                IMessagesStore.StoredMessage pubEvt = m_messagesStore.getMessageByGuid(guid);
+                if (pubEvt == null) {
+                    LOG.debug("Stored message {} for client <{}> was evicted", guid, clientSession.clientID);
+                    m_inflightWindows.skipped(channel);
+                } else {
+                    republish(channel, clientSession, guid, enqueued.retained, pubEvt);
+                }
+                //the drained queue passed its references here, the in flight zone took a new one
+                m_messagesStore.decUsageCounter(guid);
+            }
         }
     }
     
+    private void republish(Channel channel, ClientSession clientSession, String guid, boolean retained,
+                           IMessagesStore.StoredMessage pubEvt) {
+        AbstractMessage.QOSType qos = grantedQos(clientSession.clientID, pubEvt);
+        if (qos == AbstractMessage.QOSType.MOST_ONE) {
+            m_inflightWindows.skipped(channel);
+            directSend(clientSession, pubEvt.getTopic(), qos, pubEvt.getMessage(), retained, null, null);
+        } else {
+            //the window slot was reserved by the drain
+            int messageId = clientSession.nextPacketId();
+            clientSession.inFlightAckWaiting(guid, messageId);
+            m_inflightWindows.sent(channel, messageId, guid, qos, retained);
+            directSend(clientSession, pubEvt.getTopic(), qos, pubEvt.getMessage(), retained, messageId, guid);
+        }
+    }
+
+    /**
+     * The offline queue keeps only the guid, so the QoS granted to the subscriber is found again from its
+     * subscriptions.
+     *
+     * @return the QoS of the publish capped by the best subscription of the client matching its topic, the QoS of the
+     * publish if the client doesn't subscribe to it anymore.
+     */
+    private AbstractMessage.QOSType grantedQos(String clientID, IMessagesStore.StoredMessage pubEvt) {
+        AbstractMessage.QOSType granted = null;
+        for (Subscription sub : subscriptions.matches(pubEvt.getTopic())) {
+            if (sub.getClientId().equals(clientID)
+                    && (granted == null || sub.getRequestedQos().byteValue() > granted.byteValue())) {
+                granted = sub.getRequestedQos();
+            }
+        }
+        if (granted == null || pubEvt.getQos().byteValue() <= granted.byteValue()) {
+            return pubEvt.getQos();
+        }
+        return granted;
+    }
+
     public void processPubAck(Channel session, PubAckMessage msg) {
         String clientID = NettyUtils.clientID(session);
         int messageID = msg.getMessageID();
         //Remove the message from message store
-        ClientSession targetSession = m_sessionsStore.sessionForClient(clientID);
-        verifyToActivate(clientID, targetSession);
+        ClientSession targetSession = m_sessions.sessionForClient(clientID);
         targetSession.inFlightAcknowledged(messageID);
-    }
-
-    private void verifyToActivate(String clientID, ClientSession targetSession) {
-        if (m_clientIDs.containsKey(clientID)) {
-            targetSession.activate();
+        if (m_inflightWindows.acknowledged(session, messageID)) {
+            republishStoredInSession(session, targetSession);
         }
     }
 
@@ -304,6 +406,15 @@ public class ProtocolProcessor {
     }
     
     public void processPublish(Channel session, PublishMessage msg) {
+        long start = System.nanoTime();
+        try {
+            publish(session, msg, start);
+        } finally {
+            m_latencyMetrics.record(Stage.PUBLISH, start);
+        }
+    }
+
+    private void publish(Channel session, PublishMessage msg, long receivedNanos) {
         LOG.trace("PUB --PUBLISH--> SRV executePublish invoked with {}", msg);
         String clientID = NettyUtils.clientID(session);
         final String topic = msg.getTopicName();
@@ -316,40 +427,71 @@ public class ProtocolProcessor {
         final AbstractMessage.QOSType qos = msg.getQos();
         final Integer messageID = msg.getMessageID();
         LOG.info("PUBLISH from clientID <{}> on topic <{}> with QoS {}", clientID, topic, qos);
+        ClientSession clientSession = m_sessions.sessionForClient(clientID);
+        clientSession.published();
 
-        String guid = null;
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
         toStoreMsg.setClientID(clientID);
-        if (qos == AbstractMessage.QOSType.MOST_ONE) { //QoS0
-            route2Subscribers(toStoreMsg);
-        } else if (qos == AbstractMessage.QOSType.LEAST_ONE) { //QoS1
-            route2Subscribers(toStoreMsg);
-            sendPubAck(clientID, messageID);
-            LOG.debug("replying with PubAck to MSG ID {}", messageID);
-        } else if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) { //QoS2
+        //QoS 1 and 2 payloads are stored once, shared by the subscribers sessions and the retained slot
+        String guid = null;
+        if (qos != AbstractMessage.QOSType.MOST_ONE) {
+            storeBackpressure(session);
             guid = m_messagesStore.storePublishForFuture(toStoreMsg);
-            sendPubRec(clientID, messageID);
-            //Next the client will send us a pub rel
-            //NB publish to subscribers for QoS 2 happen upon PUBREL from publisher
         }
+        try {
+            if (qos == AbstractMessage.QOSType.MOST_ONE) { //QoS0
+                route2Subscribers(toStoreMsg);
+            } else if (qos == AbstractMessage.QOSType.LEAST_ONE) { //QoS1
+                route2Subscribers(toStoreMsg);
+                sendPubAck(clientID, messageID);
+                LOG.debug("replying with PubAck to MSG ID {}", messageID);
+            } else if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) { //QoS2
+                clientSession.storeToRelease(messageID, guid);
+                sendPubRec(clientID, messageID);
+                //Next the client will send us a pub rel
+                //NB publish to subscribers for QoS 2 happen upon PUBREL from publisher
+            }
 
-        if (msg.isRetainFlag()) {
-            if (qos == AbstractMessage.QOSType.MOST_ONE) {
-                //QoS == 0 && retain => clean old retained
-                m_messagesStore.cleanRetained(topic);
-            } else {
-                if (!msg.getPayload().hasRemaining()) {
+            if (msg.isRetainFlag()) {
+                if (qos == AbstractMessage.QOSType.MOST_ONE || !msg.getPayload().hasRemaining()) {
+                    //QoS == 0 && retain => clean old retained
                     m_messagesStore.cleanRetained(topic);
                 } else {
-                    if (guid == null) {
-                        //before wasn't stored
-                        guid = m_messagesStore.storePublishForFuture(toStoreMsg);
-                    }
                     m_messagesStore.storeRetained(topic, guid);
                 }
             }
+        } finally {
+            if (guid != null) {
+                m_messagesStore.decUsageCounter(guid);
+            }
+        }
+        m_interceptor.notifyTopicPublished(msg, clientID, receivedNanos);
+    }
+
+    /**
+     * Slow down the publisher while the store is over its backpressure bound. An I/O thread serves the acks of all
+     * its connections so it isn't blocked: the publisher's channel stops reading until the store catches up.
+     *
+     * @param channel the publisher's channel, null if the caller is the application embedding the broker.
+     */
+    private void storeBackpressure(final Channel channel) {
+        if (m_storeBackpressure == null) {
+            return;
+        }
+        if (channel == null || !channel.eventLoop().inEventLoop()) {
+            m_storeBackpressure.throttle();
+            return;
+        }
+        if (m_storeBackpressure.isOverBound() && channel.config().isAutoRead()) {
+            LOG.debug("Store over its backpressure bound, pausing the reads of channel {}", channel);
+            channel.config().setAutoRead(false);
+            m_storeBackpressure.whenUnderBound(new Runnable() {
+                @Override
+                public void run() {
+                    channel.config().setAutoRead(true);
+                }
+            });
         }
-        m_interceptor.notifyTopicPublished(msg, clientID);
     }
 
     /**
@@ -365,44 +507,72 @@ public class ProtocolProcessor {
         final String topic = msg.getTopicName();
         LOG.info("embedded PUBLISH on topic <{}> with QoS {}", topic, qos);
 
-        String guid = null;
         IMessagesStore.StoredMessage toStoreMsg = asStoredMessage(msg);
         toStoreMsg.setClientID("BROKER_SELF");
-        toStoreMsg.setMessageID(1);
-        if (qos == AbstractMessage.QOSType.EXACTLY_ONCE) { //QoS2
+        String guid = null;
+        if (qos != AbstractMessage.QOSType.MOST_ONE) {
+            storeBackpressure(null);
             guid = m_messagesStore.storePublishForFuture(toStoreMsg);
         }
-        route2Subscribers(toStoreMsg);
+        try {
+            route2Subscribers(toStoreMsg);
 
-        if (!msg.isRetainFlag()) {
-            return;
+            if (!msg.isRetainFlag()) {
+                return;
+            }
+            if (qos == AbstractMessage.QOSType.MOST_ONE || !msg.getPayload().hasRemaining()) {
+                //QoS == 0 && retain => clean old retained
+                m_messagesStore.cleanRetained(topic);
+                return;
+            }
+            m_messagesStore.storeRetained(topic, guid);
+        } finally {
+            if (guid != null) {
+                m_messagesStore.decUsageCounter(guid);
+            }
+            //not called from a channel read, nothing else ends the batch
+            flushPending();
         }
-        if (qos == AbstractMessage.QOSType.MOST_ONE || !msg.getPayload().hasRemaining()) {
-            //QoS == 0 && retain => clean old retained
-            m_messagesStore.cleanRetained(topic);
+    }
+
+    /**
+     * Flush the channels written by the calling thread since the last call, to be invoked when it completes a batch
+     * of inbound messages.
+     */
+    public void flushPending() {
+        m_flushBatcher.endOfBatch();
+    }
+
+    /**
+     * Write the PUBLISH packets queued while the channel wasn't writable, then the messages spilled to the offline
+     * queue of its session.
+     */
+    public void processWritabilityChanged(Channel channel) {
+        if (!channel.isWritable() || !m_outboundQueues.writable(channel)) {
             return;
         }
-        if (guid == null) {
-            //before wasn't stored
-            guid = m_messagesStore.storePublishForFuture(toStoreMsg);
+        String clientID = NettyUtils.clientID(channel);
+        ClientSession clientSession = clientID == null ? null : m_sessions.connectedSession(clientID);
+        if (clientSession != null) {
+            m_inflightWindows.markQueued(channel);
+            republishStoredInSession(channel, clientSession);
         }
-        m_messagesStore.storeRetained(topic, guid);
+    }
+
+    /**
+     * @return the number of PUBLISH packets waiting for the channel of each client to be writable.
+     */
+    public Map<String, Integer> outboundQueueDepths() {
+        return m_outboundQueues.depths();
     }
         
     /**
      * Specialized version to publish will testament message.
      */
     private void forwardPublishWill(WillMessage will, String clientID) {
-        //it has just to publish the message downstream to the subscribers
-        //NB it's a will publish, it needs a PacketIdentifier for this conn, default to 1
-        Integer messageId = null;
-        if (will.getQos() != AbstractMessage.QOSType.MOST_ONE) {
-            messageId = m_sessionsStore.nextPacketID(clientID);
-        }
-
+        //it has just to publish the message downstream to the subscribers, each one with its own packet identifier
         IMessagesStore.StoredMessage tobeStored = asStoredMessage(will);
         tobeStored.setClientID(clientID);
-        tobeStored.setMessageID(messageId);
         route2Subscribers(tobeStored);
     }
 
@@ -411,6 +581,15 @@ public class ProtocolProcessor {
      * Flood the subscribers with the message to notify. MessageID is optional and should only used for QoS 1 and 2
      * */
     void route2Subscribers(IMessagesStore.StoredMessage pubMsg) {
+        long start = System.nanoTime();
+        try {
+            routeToSubscribers(pubMsg);
+        } finally {
+            m_latencyMetrics.record(Stage.ROUTE, start);
+        }
+    }
+
+    private void routeToSubscribers(IMessagesStore.StoredMessage pubMsg) {
         final String topic = pubMsg.getTopic();
         final AbstractMessage.QOSType publishingQos = pubMsg.getQos();
         final ByteBuffer origMessage = pubMsg.getMessage();
@@ -419,45 +598,81 @@ public class ProtocolProcessor {
             LOG.trace("content <{}>", DebugUtils.payload2Str(origMessage));
             LOG.trace("subscription tree {}", subscriptions.dumpTree());
         }
-        //if QoS 1 or 2 store the message
-        String guid = null;
-        if (publishingQos == QOSType.EXACTLY_ONCE || publishingQos == QOSType.LEAST_ONE) {
+        //if QoS 1 or 2 store the message, unless the caller already did
+        String guid = pubMsg.getGuid();
+        boolean stored = false;
+        if (guid == null && (publishingQos == QOSType.EXACTLY_ONCE || publishingQos == QOSType.LEAST_ONE)) {
             guid = m_messagesStore.storePublishForFuture(pubMsg);
+            stored = true;
         }
+        try {
+            routeStored(pubMsg, guid);
+        } finally {
+            if (stored) {
+                m_messagesStore.decUsageCounter(guid);
+            }
+        }
+    }
 
-        for (final Subscription sub : subscriptions.matches(topic)) {
+    private void routeStored(IMessagesStore.StoredMessage pubMsg, String guid) {
+        final String topic = pubMsg.getTopic();
+        final AbstractMessage.QOSType publishingQos = pubMsg.getQos();
+        final ByteBuffer origMessage = pubMsg.getMessage();
+        long matchStart = System.nanoTime();
+        List<Subscription> matchingSubscriptions = subscriptions.matches(topic);
+        m_latencyMetrics.record(Stage.SUBSCRIPTION_MATCH, matchStart);
+        //encoded once for all the subscribers
+        PublishFrame frame = new PublishFrame(topic, origMessage);
+        try {
+            routeFrame(frame, publishingQos, guid, matchingSubscriptions);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void routeFrame(PublishFrame frame, AbstractMessage.QOSType publishingQos, String guid,
+                            List<Subscription> matchingSubscriptions) {
+        for (final Subscription sub : matchingSubscriptions) {
             AbstractMessage.QOSType qos = publishingQos;
             if (qos.byteValue() > sub.getRequestedQos().byteValue()) {
                 qos = sub.getRequestedQos();
             }
-            ClientSession targetSession = m_sessionsStore.sessionForClient(sub.getClientId());
-            verifyToActivate(sub.getClientId(), targetSession);
+            ClientSession targetSession = m_sessions.sessionForClient(sub.getClientId());
 
             LOG.debug("Broker republishing to client <{}> topic <{}> qos <{}>, active {}",
                     sub.getClientId(), sub.getTopicFilter(), qos, targetSession.isActive());
-            ByteBuffer message = origMessage.duplicate();
             if (qos == AbstractMessage.QOSType.MOST_ONE && targetSession.isActive()) {
                 //QoS 0
-                directSend(targetSession, topic, qos, message, false, null);
+                sendFrame(targetSession, frame, qos, null, null);
             } else {
                 //QoS 1 or 2
                 //if the target subscription is not clean session and is not connected => store it
                 if (!targetSession.isCleanSession() && !targetSession.isActive()) {
-                    //store the message in targetSession queue to deliver
-                    targetSession.enqueueToDeliver(guid);
+                    //store the message in targetSession queue to deliver, QoS 0 publishes aren't stored
+                    if (guid != null) {
+                        targetSession.enqueueToDeliver(guid);
+                    }
                 } else  {
-                    //publish
+                    //publish, unless the inflight window of the client is full
                     if (targetSession.isActive()) {
-                        int messageId = targetSession.nextPacketId();
-                        targetSession.inFlightAckWaiting(guid, messageId);
-                        directSend(targetSession, topic, qos, message, false, messageId);
+                        Channel channel = channelFor(targetSession.clientID);
+                        if (m_inflightWindows.acquireOrEnqueue(channel, guid, false)) {
+                            int messageId = targetSession.nextPacketId();
+                            targetSession.inFlightAckWaiting(guid, messageId);
+                            m_inflightWindows.sent(channel, messageId, guid, qos, false);
+                            sendFrame(targetSession, frame, qos, messageId, guid);
+                        }
                     }
                 }
             }
         }
     }
 
-    protected void directSend(ClientSession clientsession, String topic, AbstractMessage.QOSType qos, ByteBuffer message, boolean retained, Integer messageID) {
+    /**
+     * @param guid the stored message, null for QoS 0, used to move it to the offline queue of a slow consumer.
+     */
+    protected void directSend(ClientSession clientsession, String topic, AbstractMessage.QOSType qos, ByteBuffer message,
+                              boolean retained, Integer messageID, String guid) {
         String clientId = clientsession.clientID;
         LOG.debug("directSend invoked clientId <{}> on topic <{}> QoS {} retained {} messageID {}", clientId, topic, qos, retained, messageID);
         PublishMessage pubMessage = new PublishMessage();
@@ -479,6 +694,26 @@ public class ProtocolProcessor {
             }
         }
 
+        Channel channel = channelFor(clientId);
+        m_outboundQueues.send(channel, clientsession, pubMessage, message.remaining() + topic.length() + 4, qos, guid,
+                messageID, retained);
+        clientsession.delivered();
+    }
+
+    /**
+     * Like {@link #directSend} for a PUBLISH routed to the subscribers, not retained, already encoded.
+     */
+    private void sendFrame(ClientSession clientsession, PublishFrame frame, AbstractMessage.QOSType qos,
+                           Integer messageID, String guid) {
+        String clientId = clientsession.clientID;
+        LOG.info("send publish frame to <{}> with QoS {} messageID {}", clientId, qos, messageID);
+        Channel channel = channelFor(clientId);
+        ByteBuf encoded = frame.encode(channel.alloc(), qos, messageID);
+        m_outboundQueues.send(channel, clientsession, encoded, encoded.readableBytes(), qos, guid, messageID, false);
+        clientsession.delivered();
+    }
+
+    private Channel channelFor(String clientId) {
         if (m_clientIDs == null) {
             throw new RuntimeException("Internal bad error, found m_clientIDs to null while it should be initialized, somewhere it's overwritten!!");
         }
@@ -490,14 +725,14 @@ public class ProtocolProcessor {
         }
         Channel channel = m_clientIDs.get(clientId).channel;
         LOG.debug("Session for clientId {} is {}", clientId, channel);
-        channel.writeAndFlush(pubMessage);
+        return channel;
     }
     
     private void sendPubRec(String clientID, int messageID) {
         LOG.trace("PUB <--PUBREC-- SRV sendPubRec invoked for clientID {} with messageID {}", clientID, messageID);
         PubRecMessage pubRecMessage = new PubRecMessage();
         pubRecMessage.setMessageID(messageID);
-        m_clientIDs.get(clientID).channel.writeAndFlush(pubRecMessage);
+        m_flushBatcher.write(m_clientIDs.get(clientID).channel, pubRecMessage, 4);
     }
     
     private void sendPubAck(String clientId, int messageID) {
@@ -513,7 +748,7 @@ public class ProtocolProcessor {
             if (m_clientIDs.get(clientId) == null) {
                 throw new RuntimeException(String.format("Can't find a ConnectionDescriptor for client %s in cache %s", clientId, m_clientIDs));
             }
-            m_clientIDs.get(clientId).channel.writeAndFlush(pubAckMessage);
+            m_flushBatcher.write(m_clientIDs.get(clientId).channel, pubAckMessage, 4);
         } catch(Throwable t) {
             LOG.error(null, t);
         }
@@ -527,18 +762,25 @@ public class ProtocolProcessor {
         String clientID = NettyUtils.clientID(channel);
         int messageID = msg.getMessageID();
         LOG.debug("PUB --PUBREL--> SRV processPubRel invoked for clientID {} ad messageID {}", clientID, messageID);
-        ClientSession targetSession = m_sessionsStore.sessionForClient(clientID);
-        verifyToActivate(clientID, targetSession);
+        ClientSession targetSession = m_sessions.sessionForClient(clientID);
         IMessagesStore.StoredMessage evt = targetSession.storedMessage(messageID);
-        route2Subscribers(evt);
+        if (evt == null) {
+            //a PUBREL retransmitted after the message was already forwarded, or a message lost by the store: drop the
+            //mapping if there's still one
+            LOG.debug("No stored message for clientID {} and messageID {}, already released", clientID, messageID);
+            targetSession.released(messageID);
+        } else {
+            route2Subscribers(evt);
 
-        if (evt.isRetained()) {
-            final String topic = evt.getTopic();
-            if (!evt.getMessage().hasRemaining()) {
-                m_messagesStore.cleanRetained(topic);
-            } else {
-                m_messagesStore.storeRetained(topic, evt.getGuid());
+            if (evt.isRetained()) {
+                final String topic = evt.getTopic();
+                if (!evt.getMessage().hasRemaining()) {
+                    m_messagesStore.cleanRetained(topic);
+                } else {
+                    m_messagesStore.storeRetained(topic, evt.getGuid());
+                }
             }
+            targetSession.released(messageID);
         }
 
         sendPubComp(clientID, messageID);
@@ -549,24 +791,25 @@ public class ProtocolProcessor {
         PubCompMessage pubCompMessage = new PubCompMessage();
         pubCompMessage.setMessageID(messageID);
 
-        m_clientIDs.get(clientID).channel.writeAndFlush(pubCompMessage);
+        m_flushBatcher.write(m_clientIDs.get(clientID).channel, pubCompMessage, 4);
     }
     
     public void processPubRec(Channel channel, PubRecMessage msg) {
         String clientID = NettyUtils.clientID(channel);
         int messageID = msg.getMessageID();
-        ClientSession targetSession = m_sessionsStore.sessionForClient(clientID);
-        verifyToActivate(clientID, targetSession);
-        //remove from the inflight and move to the QoS2 second phase queue
-        targetSession.inFlightAcknowledged(messageID);
+        ClientSession targetSession = m_sessions.sessionForClient(clientID);
+        //move to the QoS2 second phase queue and then remove from the inflight, the packet identifier stays
+        //reserved until PUBCOMP
         targetSession.secondPhaseAckWaiting(messageID);
+        targetSession.inFlightAcknowledged(messageID);
         //once received a PUBREC reply with a PUBREL(messageID)
         LOG.debug("\t\tSRV <--PUBREC-- SUB processPubRec invoked for clientID {} ad messageID {}", clientID, messageID);
         PubRelMessage pubRelMessage = new PubRelMessage();
         pubRelMessage.setMessageID(messageID);
         pubRelMessage.setQos(AbstractMessage.QOSType.LEAST_ONE);
 
-        channel.writeAndFlush(pubRelMessage);
+        m_flushBatcher.write(channel, pubRelMessage, 4);
+        m_inflightWindows.released(channel, messageID);
     }
 
     public void processPubComp(Channel channel, PubCompMessage msg) {
@@ -574,36 +817,48 @@ public class ProtocolProcessor {
         int messageID = msg.getMessageID();
         LOG.debug("\t\tSRV <--PUBCOMP-- SUB processPubComp invoked for clientID {} ad messageID {}", clientID, messageID);
         //once received the PUBCOMP then remove the message from the temp memory
-        ClientSession targetSession = m_sessionsStore.sessionForClient(clientID);
-        verifyToActivate(clientID, targetSession);
+        ClientSession targetSession = m_sessions.sessionForClient(clientID);
         targetSession.secondPhaseAcknowledged(messageID);
+        if (m_inflightWindows.acknowledged(channel, messageID)) {
+            republishStoredInSession(channel, targetSession);
+        }
     }
     
     public void processDisconnect(Channel channel) throws InterruptedException {
         String clientID = NettyUtils.clientID(channel);
         boolean cleanSession = NettyUtils.cleanSession(channel);
         LOG.info("DISCONNECT client <{}> with clean session {}", clientID, cleanSession);
-        ClientSession clientSession = m_sessionsStore.sessionForClient(clientID);
-        clientSession.disconnect();
+        m_outboundQueues.closed(channel);
+        m_inflightWindows.closed(channel);
+        //a connection whose session was already stolen doesn't touch the new one
+        if (m_clientIDs.remove(clientID, new ConnectionDescriptor(clientID, channel, cleanSession))) {
+            ClientSession clientSession = m_sessions.sessionForClient(clientID);
+            clientSession.disconnect();
+            m_sessions.disconnected(clientSession);
+            if (clientSession.isCleanSession()) {
+                subscriptions.removeForClient(clientID);
+            }
 
-        m_clientIDs.remove(clientID);
+            //cleanup the will store
+            m_willStore.remove(clientID);
+        }
         channel.close();
-
-        //cleanup the will store
-        m_willStore.remove(clientID);
         
         m_interceptor.notifyClientDisconnected(clientID);
         LOG.info("DISCONNECT client <{}> finished", clientID, cleanSession);
     }
 
     public void processConnectionLost(String clientID, boolean sessionStolen, Channel channel) {
+        m_outboundQueues.closed(channel);
+        m_inflightWindows.closed(channel);
         ConnectionDescriptor oldConnDescr = new ConnectionDescriptor(clientID, channel, true);
-        m_clientIDs.remove(clientID, oldConnDescr);
-        //If already removed a disconnect message was already processed for this clientID
-        if (sessionStolen) {
-            //de-activate the subscriptions for this ClientID
-            ClientSession clientSession = m_sessionsStore.sessionForClient(clientID);
-            clientSession.deactivate();
+        //If already removed a disconnect message was already processed for this clientID, or a new connection
+        //stole the session and it stays active
+        if (m_clientIDs.remove(clientID, oldConnDescr)) {
+            ClientSession clientSession = m_sessions.connectedSession(clientID);
+            if (clientSession != null) {
+                m_sessions.disconnected(clientSession);
+            }
             LOG.info("Lost connection with client <{}>", clientID);
         }
         //publish the Will message (if any) for the clientID
@@ -625,8 +880,7 @@ public class ProtocolProcessor {
 
         LOG.debug("UNSUBSCRIBE subscription on topics {} for clientID <{}>", topics, clientID);
 
-        ClientSession clientSession = m_sessionsStore.sessionForClient(clientID);
-        verifyToActivate(clientID, clientSession);
+        ClientSession clientSession = m_sessions.sessionForClient(clientID);
         for (String topic : topics) {
             boolean validTopic = SubscriptionsStore.validate(topic);
             if (!validTopic) {
@@ -653,8 +907,7 @@ public class ProtocolProcessor {
         String clientID = NettyUtils.clientID(channel);
         LOG.debug("SUBSCRIBE client <{}> packetID {}", clientID, msg.getMessageID());
 
-        ClientSession clientSession = m_sessionsStore.sessionForClient(clientID);
-        verifyToActivate(clientID, clientSession);
+        ClientSession clientSession = m_sessions.sessionForClient(clientID);
         //ack the client
         SubAckMessage ackMessage = new SubAckMessage();
         ackMessage.setMessageID(msg.getMessageID());
@@ -685,6 +938,9 @@ public class ProtocolProcessor {
         }
         channel.writeAndFlush(ackMessage);
 
+        //add all the filters of the SUBSCRIBE to the tree at once
+        subscriptions.addAll(newSubscriptions);
+
         //fire the publish
         for(Subscription subscription : newSubscriptions) {
             subscribeSingleTopic(subscription);
@@ -692,25 +948,29 @@ public class ProtocolProcessor {
     }
     
     private boolean subscribeSingleTopic(final Subscription newSubscription) {
-        subscriptions.add(newSubscription.asClientTopicCouple());
+        //retained messages to be published to the new subscription
+        Collection<IMessagesStore.StoredMessage> messages =
+                m_messagesStore.searchMatching(newSubscription.getTopicFilter());
 
-        //scans retained messages to be published to the new subscription
-        //TODO this is ugly, it does a linear scan on potential big dataset
-        Collection<IMessagesStore.StoredMessage> messages = m_messagesStore.searchMatching(new IMatchingCondition() {
-            public boolean match(String key) {
-                return SubscriptionsStore.matchTopics(key, newSubscription.getTopicFilter());
-            }
-        });
-
-        ClientSession targetSession = m_sessionsStore.sessionForClient(newSubscription.getClientId());
-        verifyToActivate(newSubscription.getClientId(), targetSession);
+        ClientSession targetSession = m_sessions.sessionForClient(newSubscription.getClientId());
         for (IMessagesStore.StoredMessage storedMsg : messages) {
             //fire the as retained the message
             LOG.debug("send publish message for topic {}", newSubscription.getTopicFilter());
             //forwardPublishQoS0(newSubscription.getClientId(), storedMsg.getTopic(), storedMsg.getQos(), storedMsg.getPayload(), true);
-            Integer packetID = storedMsg.getQos() == QOSType.MOST_ONE ? null :
-                    targetSession.nextPacketId();
-            directSend(targetSession, storedMsg.getTopic(), storedMsg.getQos(), storedMsg.getPayload(), true, packetID);
+            Integer packetID = null;
+            if (storedMsg.getQos() != QOSType.MOST_ONE) {
+                Channel channel = channelFor(targetSession.clientID);
+                if (!m_inflightWindows.acquireOrEnqueue(channel, storedMsg.getGuid(), true)) {
+                    //the inflight window is full, published from the offline queue as it frees, still retained
+                    continue;
+                }
+                //in flight until acknowledged, so the message outlives a replacement of the retained one
+                packetID = targetSession.nextPacketId();
+                targetSession.inFlightAckWaiting(storedMsg.getGuid(), packetID);
+                m_inflightWindows.sent(channel, packetID, storedMsg.getGuid(), storedMsg.getQos(), true);
+            }
+            directSend(targetSession, storedMsg.getTopic(), storedMsg.getQos(), storedMsg.getPayload(), true, packetID,
+                    storedMsg.getGuid());
         }
 
         //notify the Observables
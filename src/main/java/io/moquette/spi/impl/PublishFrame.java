@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A PUBLISH routed to many subscribers, encoded once and shared by the writes to each of them.
+ *
+ * The QoS 0 frame is the same for every subscriber, each write gets a duplicate of it. The frames with a QoS greater
+ * than 0 differ only in the QoS bits of the fixed header and in the packet identifier, so each write is composed of
+ * the shared header of its QoS, its own 2 bytes packet identifier and the shared payload.
+ *
+ * The buffers are allocated the first time a QoS is requested, with the allocator of the channel requesting it. The
+ * writes hold their own references to them, so the frame can be released once the routing loop ends.
+ */
+final class PublishFrame {
+
+    private final byte[] m_topic;
+    private final ByteBuffer m_payload;
+    //index by QoS value
+    private final ByteBuf[] m_headers = new ByteBuf[3];
+    private ByteBuf m_qos0Frame;
+    private ByteBuf m_payloadBuf;
+
+    PublishFrame(String topic, ByteBuffer payload) {
+        m_topic = topic.getBytes(StandardCharsets.UTF_8);
+        m_payload = payload;
+    }
+
+    /**
+     * @param messageID the packet identifier, must be null for QoS 0.
+     * @return the encoded PUBLISH, its reference passes to the caller.
+     */
+    ByteBuf encode(ByteBufAllocator allocator, QOSType qos, Integer messageID) {
+        if (qos == QOSType.MOST_ONE) {
+            if (m_qos0Frame == null) {
+                m_qos0Frame = header(allocator, qos, m_payload.remaining());
+                m_qos0Frame.writeBytes(m_payload.duplicate());
+            }
+            return m_qos0Frame.duplicate().retain();
+        }
+        ByteBuf header = m_headers[qos.byteValue()];
+        if (header == null) {
+            header = header(allocator, qos, m_payload.remaining());
+            m_headers[qos.byteValue()] = header;
+        }
+        if (m_payloadBuf == null) {
+            m_payloadBuf = allocator.buffer(m_payload.remaining());
+            m_payloadBuf.writeBytes(m_payload.duplicate());
+        }
+        ByteBuf packetId = allocator.buffer(2);
+        packetId.writeShort(messageID);
+        return Unpooled.wrappedBuffer(header.duplicate().retain(), packetId, m_payloadBuf.duplicate().retain());
+    }
+
+    /**
+     * Release the shared buffers, the frames returned by {@link #encode} stay valid until they are released.
+     */
+    void release() {
+        release(m_qos0Frame);
+        for (ByteBuf header : m_headers) {
+            release(header);
+        }
+        release(m_payloadBuf);
+    }
+
+    private static void release(ByteBuf buf) {
+        if (buf != null) {
+            buf.release();
+        }
+    }
+
+    /**
+     * Encode the fixed header, the remaining length and the topic name, with room for the payload of a QoS 0 frame.
+     */
+    private ByteBuf header(ByteBufAllocator allocator, QOSType qos, int payloadSize) {
+        int remainingLength = 2 + m_topic.length + payloadSize;
+        if (qos != QOSType.MOST_ONE) {
+            remainingLength += 2;
+        }
+        int headerSize = 1 + remainingLengthSize(remainingLength) + 2 + m_topic.length;
+        ByteBuf buf = allocator.buffer(qos == QOSType.MOST_ONE ? headerSize + payloadSize : headerSize);
+        buf.writeByte(AbstractMessage.PUBLISH << 4 | qos.byteValue() << 1);
+        int value = remainingLength;
+        do {
+            int digit = value % 128;
+            value = value / 128;
+            if (value > 0) {
+                digit |= 0x80;
+            }
+            buf.writeByte(digit);
+        } while (value > 0);
+        buf.writeShort(m_topic.length);
+        buf.writeBytes(m_topic);
+        return buf;
+    }
+
+    private static int remainingLengthSize(int remainingLength) {
+        int size = 1;
+        while (remainingLength >= 128) {
+            remainingLength /= 128;
+            size++;
+        }
+        return size;
+    }
+}
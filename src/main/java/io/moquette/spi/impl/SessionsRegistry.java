@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.ISessionsStore;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Live sessions of the connected clients, one long lived ClientSession per client from its CONNECT until it
+ * disconnects, so the packets of a connection don't load the session from the store each time and its active flag
+ * and counters survive between them. The sessions of the clients not connected are loaded from the store on demand
+ * and are never active.
+ */
+final class SessionsRegistry {
+
+    private final ISessionsStore m_sessionsStore;
+    private final ConcurrentMap<String, ClientSession> m_connected = new ConcurrentHashMap<>();
+
+    SessionsRegistry(ISessionsStore sessionsStore) {
+        m_sessionsStore = sessionsStore;
+    }
+
+    /**
+     * Activate the session of a client that just connected, replacing the one of its previous connection if any.
+     */
+    void connected(ClientSession session) {
+        session.activate();
+        ClientSession previous = m_connected.put(session.clientID, session);
+        if (previous != null && previous != session) {
+            previous.deactivate();
+        }
+    }
+
+    /**
+     * Deactivate the session, unless a newer connection of the same client already replaced it.
+     *
+     * @return true if the session was the live one.
+     */
+    boolean disconnected(ClientSession session) {
+        if (!m_connected.remove(session.clientID, session)) {
+            return false;
+        }
+        session.deactivate();
+        return true;
+    }
+
+    /**
+     * @return the live session of a connected client, or the one stored for the clientID, null if there isn't any.
+     */
+    ClientSession sessionForClient(String clientID) {
+        ClientSession session = m_connected.get(clientID);
+        return session != null ? session : m_sessionsStore.sessionForClient(clientID);
+    }
+
+    /**
+     * @return the live session of the client, null if it isn't connected.
+     */
+    ClientSession connectedSession(String clientID) {
+        return m_connected.get(clientID);
+    }
+
+    int connectedCount() {
+        return m_connected.size();
+    }
+}
@@ -17,23 +17,31 @@ package io.moquette.spi.impl;
 
 import io.moquette.BrokerConstants;
 import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IPersistentStore;
 import io.moquette.interception.InterceptHandler;
 import io.moquette.server.config.IConfig;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.impl.security.*;
 import io.moquette.spi.impl.subscriptions.SubscriptionsStore;
+import io.moquette.spi.persistence.EvictionMetrics;
 import io.moquette.spi.persistence.MapDBPersistentStore;
+import io.moquette.spi.persistence.MemoryPersistentStore;
+import io.moquette.spi.persistence.WALPersistentStore;
 import io.moquette.spi.security.IAuthenticator;
 import io.moquette.spi.security.IAuthorizator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
@@ -49,10 +57,15 @@ public class SimpleMessaging {
 
     private SubscriptionsStore subscriptions;
 
-    private MapDBPersistentStore m_mapStorage;
+    private IPersistentStore m_storage;
 
     private BrokerInterceptor m_interceptor;
 
+    private LatencyMetricsCollector m_latencyMetrics;
+    private InflightWindows m_inflightWindows;
+
+    private File m_subscriptionsSnapshot;
+
     private static SimpleMessaging INSTANCE;
     
     private final ProtocolProcessor m_processor = new ProtocolProcessor();
@@ -80,12 +93,16 @@ public class SimpleMessaging {
      * */
     public ProtocolProcessor init(IConfig props, List<? extends InterceptHandler> embeddedObservers,
                                   IAuthenticator authenticator, IAuthorizator authorizator) {
+        long start = System.nanoTime();
         subscriptions = new SubscriptionsStore();
 
-        m_mapStorage = new MapDBPersistentStore(props);
-        m_mapStorage.initStore();
-        IMessagesStore messagesStore = m_mapStorage.messagesStore();
-        ISessionsStore sessionsStore = m_mapStorage.sessionsStore(messagesStore);
+        m_latencyMetrics = new LatencyMetricsCollector();
+        m_latencyMetrics.startLogging(Integer.parseInt(props.getProperty(BrokerConstants.LATENCY_METRICS_LOG_INTERVAL_PROPERTY_NAME, "0")));
+
+        m_storage = createPersistentStore(props);
+        m_storage.initStore();
+        IMessagesStore messagesStore = m_storage.messagesStore();
+        ISessionsStore sessionsStore = m_storage.sessionsStore(messagesStore);
 
         List<InterceptHandler> observers = new ArrayList<>(embeddedObservers);
         String interceptorClassName = props.getProperty("intercept.handler");
@@ -99,7 +116,8 @@ public class SimpleMessaging {
         }
         m_interceptor = new BrokerInterceptor(observers);
 
-        subscriptions.init(sessionsStore);
+        m_subscriptionsSnapshot = subscriptionsSnapshot(props);
+        subscriptions.init(sessionsStore, m_subscriptionsSnapshot);
 
         String configPath = System.getProperty("moquette.path", null);
         String authenticatorClassName = props.getProperty(BrokerConstants.AUTHENTICATOR_CLASS_NAME, "");
@@ -142,11 +160,63 @@ public class SimpleMessaging {
 
         }
 
+        FlushBatcher flushBatcher = FlushBatcher.fromConfig(props);
+        m_inflightWindows = InflightWindows.fromConfig(props, messagesStore);
         boolean allowAnonymous = Boolean.parseBoolean(props.getProperty(BrokerConstants.ALLOW_ANONYMOUS_PROPERTY_NAME, "true"));
-        m_processor.init(subscriptions, messagesStore, sessionsStore, authenticator, allowAnonymous, authorizator, m_interceptor);
+        m_processor.init(subscriptions, messagesStore, sessionsStore, authenticator, allowAnonymous, authorizator, m_interceptor, m_latencyMetrics,
+                flushBatcher, OutboundQueues.fromConfig(props, flushBatcher, m_inflightWindows), m_inflightWindows);
+        LOG.info("Broker initialized in {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
         return m_processor;
     }
+
+    /**
+     * The subscriptions snapshot is at the subscriptions_snapshot path, by default next to the MapDB store file.
+     * The other providers don't use it unless the path is configured.
+     *
+     * @return the snapshot file, null if not used.
+     */
+    private static File subscriptionsSnapshot(IConfig props) {
+        String path = props.getProperty(BrokerConstants.SUBSCRIPTIONS_SNAPSHOT_PROPERTY_NAME, "");
+        if (!path.isEmpty()) {
+            return new File(path);
+        }
+        String provider = props.getProperty(BrokerConstants.STORE_PROVIDER_PROPERTY_NAME, BrokerConstants.STORE_PROVIDER_MAPDB);
+        String storePath = props.getProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME, "");
+        if (!BrokerConstants.STORE_PROVIDER_MAPDB.equals(provider) || storePath.isEmpty()) {
+            return null;
+        }
+        return new File(storePath + BrokerConstants.SUBSCRIPTIONS_SNAPSHOT_SUFFIX);
+    }
     
+    /**
+     * Select the storage backend from the store_provider property: mapdb (the default), memory, wal or the name of
+     * a class implementing IPersistentStore.
+     */
+    private IPersistentStore createPersistentStore(IConfig props) {
+        String provider = props.getProperty(BrokerConstants.STORE_PROVIDER_PROPERTY_NAME, BrokerConstants.STORE_PROVIDER_MAPDB);
+        LOG.info("Using {} store provider", provider);
+        if (BrokerConstants.STORE_PROVIDER_MAPDB.equals(provider)) {
+            return new MapDBPersistentStore(props, m_latencyMetrics);
+        }
+        if (BrokerConstants.STORE_PROVIDER_MEMORY.equals(provider)) {
+            return new MemoryPersistentStore(props);
+        }
+        if (BrokerConstants.STORE_PROVIDER_WAL.equals(provider)) {
+            return new WALPersistentStore(props, m_latencyMetrics);
+        }
+        try {
+            Constructor<? extends IPersistentStore> constructor = this.getClass().getClassLoader()
+                    .loadClass(provider)
+                    .asSubclass(IPersistentStore.class)
+                    .getConstructor(IConfig.class, LatencyMetricsCollector.class);
+            return constructor.newInstance(props, m_latencyMetrics);
+        } catch (ClassNotFoundException | NoSuchMethodException | InstantiationException | IllegalAccessException
+                | InvocationTargetException ex) {
+            LOG.error(null, ex);
+            throw new RuntimeException("Cannot load store provider class " + provider, ex);
+        }
+    }
+
     private Object loadClass(String className, Class<?> cls) {
         Object instance = null;
         try {
@@ -182,7 +252,31 @@ public class SimpleMessaging {
         return instance;
     }
 
+    public LatencyMetricsCollector getLatencyMetrics() {
+        return m_latencyMetrics;
+    }
+
+    /**
+     * @return the totals of the stored messages evicted so far, null if the store doesn't evict them.
+     */
+    public EvictionMetrics getEvictionMetrics() {
+        if (m_storage instanceof MapDBPersistentStore) {
+            return ((MapDBPersistentStore) m_storage).evictionMetrics();
+        }
+        return null;
+    }
+
     public void shutdown() {
-        this.m_mapStorage.close();
+        m_inflightWindows.stop();
+        this.m_storage.close();
+        if (m_subscriptionsSnapshot != null) {
+            //written after the store is closed, so it's never ahead of what was committed
+            try {
+                subscriptions.writeSnapshot(m_subscriptionsSnapshot);
+            } catch (IOException ex) {
+                LOG.error("Can't write the subscriptions snapshot {}", m_subscriptionsSnapshot, ex);
+            }
+        }
+        this.m_latencyMetrics.stopLogging();
     }
 }
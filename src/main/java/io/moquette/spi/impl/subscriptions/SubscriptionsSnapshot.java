@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * File with all the subscriptions of the tree, written at shutdown so that the next startup can rebuild the tree with
+ * one sequential read instead of walking the sessions store:
+ * <pre>
+ * magic int | version byte | count int | (clientID UTF | topic filter UTF | qos byte) * count | crc32 long
+ * </pre>
+ * It's only valid right after the clean shutdown that wrote it, so it's deleted as soon as it's read.
+ */
+final class SubscriptionsSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubscriptionsSnapshot.class);
+
+    private static final int MAGIC = 0x4D515353;
+    private static final byte VERSION = 1;
+
+    private SubscriptionsSnapshot() {
+    }
+
+    /**
+     * Write the subscriptions to a temporary file then rename it to file, so a broken write never leaves a valid
+     * looking snapshot.
+     */
+    static void write(File file, Collection<Subscription> subscriptions) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            checked.writeInt(MAGIC);
+            checked.writeByte(VERSION);
+            checked.writeInt(subscriptions.size());
+            for (Subscription sub : subscriptions) {
+                checked.writeUTF(sub.getClientId());
+                checked.writeUTF(sub.getTopicFilter());
+                checked.writeByte(sub.getRequestedQos().byteValue());
+            }
+            checked.flush();
+            out.writeLong(crc.getValue());
+        }
+        if (!tmpFile.renameTo(file)) {
+            //renameTo doesn't replace an existing file on every platform
+            if (!file.delete() || !tmpFile.renameTo(file)) {
+                throw new IOException("Can't rename " + tmpFile + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * Read the subscriptions and delete the file.
+     *
+     * @return the subscriptions, or null if there isn't a snapshot or it isn't valid.
+     */
+    static List<Subscription> readAndDelete(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return read(file);
+        } catch (IOException | RuntimeException ex) {
+            LOG.warn("Ignoring the invalid subscriptions snapshot {}", file, ex);
+            return null;
+        } finally {
+            if (!file.delete()) {
+                LOG.warn("Can't delete the subscriptions snapshot {}", file);
+            }
+        }
+    }
+
+    private static List<Subscription> read(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            DataInputStream checked = new DataInputStream(new CheckedInputStream(in, crc));
+            if (checked.readInt() != MAGIC) {
+                throw new IOException("Not a subscriptions snapshot");
+            }
+            byte version = checked.readByte();
+            if (version != VERSION) {
+                throw new IOException("Unsupported subscriptions snapshot version " + version);
+            }
+            int count = checked.readInt();
+            List<Subscription> subscriptions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String clientID = checked.readUTF();
+                String topicFilter = checked.readUTF();
+                QOSType qos = QOSType.valueOf(checked.readByte());
+                subscriptions.add(new Subscription(clientID, topicFilter, qos));
+            }
+            if (in.readLong() != crc.getValue() || in.read() != -1) {
+                throw new IOException("Checksum mismatch");
+            }
+            return subscriptions;
+        }
+    }
+}
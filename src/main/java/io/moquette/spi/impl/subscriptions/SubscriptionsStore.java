@@ -15,9 +15,10 @@
  */
 package io.moquette.spi.impl.subscriptions;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicReference;
 
 import io.moquette.spi.ISessionsStore;
@@ -28,6 +29,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Represents a tree of topics subscriptions.
  *
+ * Readers match against the current root without locking, mutations are serialized on a lock, copy only the nodes
+ * on the paths they change and then publish the new root. A reverse index of the topic filters each client is
+ * subscribed to lets removing a client touch only its own paths. Bulk changes go through {@link #apply} that copies
+ * each node at most once and publishes the result with a single swap.
+ *
  * @author andrea
  */
 public class SubscriptionsStore {
@@ -69,8 +75,8 @@ public class SubscriptionsStore {
         public void visit(TreeNode node, int deep) {
             String subScriptionsStr = "";
             String indentTabs = indentTabs(deep);
-            for (ClientTopicCouple couple : node.m_subscriptions) {
-                subScriptionsStr += indentTabs + couple.toString() + "\n";
+            for (Subscription sub : node.subscriptions()) {
+                subScriptionsStr += indentTabs + sub.toString() + "\n";
             }
             s += node.getToken() == null ? "" : node.getToken().toString();
             s +=  "\n" + (node.m_subscriptions.isEmpty() ? indentTabs : "") + subScriptionsStr /*+ "\n"*/;
@@ -92,45 +98,155 @@ public class SubscriptionsStore {
     }
     
     private AtomicReference<TreeNode> subscriptions = new AtomicReference<>(new TreeNode());
+    private final Object m_writeLock = new Object();
+    //clientID -> topic filters the client is subscribed to, guarded by m_writeLock
+    private final Map<String, Set<String>> m_clientFilters = new HashMap<>();
     private static final Logger LOG = LoggerFactory.getLogger(SubscriptionsStore.class);
-    private volatile ISessionsStore m_sessionsStore;
 
     /**
      * Initialize the subscription tree with the list of subscriptions.
      * Maintained for compatibility reasons.
      */
     public void init(ISessionsStore sessionsStore) {
+        init(sessionsStore, null);
+    }
+
+    /**
+     * Initialize the subscription tree from the snapshot written at the last shutdown, if there is a valid one, else
+     * with the subscriptions of the sessions store. The snapshot is deleted once read.
+     *
+     * @param snapshot the snapshot file, null if not used.
+     */
+    public void init(ISessionsStore sessionsStore, File snapshot) {
         LOG.debug("init invoked");
-        m_sessionsStore = sessionsStore;
-        List<ClientTopicCouple> subscriptions = sessionsStore.listAllSubscriptions();
-        //reload any subscriptions persisted
-        if (LOG.isDebugEnabled()) {
-            LOG.debug("Reloading all stored subscriptions...subscription tree before {}", dumpTree());
+        List<Subscription> subscriptions = snapshot == null ? null : SubscriptionsSnapshot.readAndDelete(snapshot);
+        if (subscriptions != null) {
+            LOG.info("Loading {} subscriptions from the snapshot {}", subscriptions.size(), snapshot);
+        } else {
+            subscriptions = sessionsStore.listAllSubscriptions();
         }
 
-        for (ClientTopicCouple clientTopic : subscriptions) {
-            LOG.debug("Re-subscribing {} to topic {}", clientTopic.clientID, clientTopic.topicFilter);
-            add(clientTopic);
-        }
-        if (LOG.isTraceEnabled()) {
-            LOG.trace("Finished loading. Subscription tree after {}", dumpTree());
+        apply(subscriptions, Collections.<ClientTopicCouple>emptyList());
+        LOG.debug("Re-subscribed {} stored subscriptions", subscriptions.size());
+    }
+
+    /**
+     * Write all the subscriptions of the tree to the snapshot file read by {@link #init(ISessionsStore, File)}.
+     */
+    public void writeSnapshot(File snapshot) throws IOException {
+        List<Subscription> subscriptions = listAll();
+        SubscriptionsSnapshot.write(snapshot, subscriptions);
+        LOG.info("Wrote {} subscriptions to the snapshot {}", subscriptions.size(), snapshot);
+    }
+
+    /**
+     * @return all the subscriptions of the tree.
+     */
+    List<Subscription> listAll() {
+        List<Subscription> all = new ArrayList<>();
+        Deque<TreeNode> pending = new ArrayDeque<>();
+        pending.push(subscriptions.get());
+        while (!pending.isEmpty()) {
+            TreeNode node = pending.pop();
+            all.addAll(node.subscriptions());
+            for (TreeNode child : node.children()) {
+                pending.push(child);
+            }
         }
+        return all;
+    }
+
+    /**
+     * Add the subscription to the tree, if the client is already subscribed to the same topic filter the
+     * subscription with the greater QoS is kept.
+     */
+    public void add(Subscription newSubscription) {
+        apply(Collections.singletonList(newSubscription), Collections.<ClientTopicCouple>emptyList());
     }
 
-    public void add(ClientTopicCouple newSubscription) {
-        TreeNode oldRoot;
-        NodeCouple couple;
-        do {
-            oldRoot = subscriptions.get();
-            couple = recreatePath(newSubscription.topicFilter, oldRoot);
-            couple.createdNode.addSubscription(newSubscription); //createdNode could be null?
-            //spin lock repeating till we can, swap root, if can't swap just re-do the operation
-        } while(!subscriptions.compareAndSet(oldRoot, couple.root));
-        LOG.debug("root ref {}, original root was {}", couple.root, oldRoot);
+    public void addAll(Collection<Subscription> newSubscriptions) {
+        apply(newSubscriptions, Collections.<ClientTopicCouple>emptyList());
     }
 
+    public void removeSubscription(String topic, String clientID) {
+        apply(Collections.<Subscription>emptyList(), Collections.singletonList(new ClientTopicCouple(clientID, topic)));
+    }
+
+    /**
+     * Remove all the subscriptions of clientID. Only the paths of the topic filters the client is subscribed to
+     * are copied, so the cost depends on the client's subscriptions and not on the size of the tree.
+     */
+    public void removeForClient(String clientID) {
+        synchronized (m_writeLock) {
+            Set<String> filters = m_clientFilters.get(clientID);
+            if (filters == null) {
+                return;
+            }
+            List<ClientTopicCouple> toRemove = new ArrayList<>(filters.size());
+            for (String topic : filters) {
+                toRemove.add(new ClientTopicCouple(clientID, topic));
+            }
+            apply(Collections.<Subscription>emptyList(), toRemove);
+        }
+    }
+
+    /**
+     * Apply all the additions and then all the removals building a single new tree, every node on the changed paths
+     * is copied once no matter how many changes traverse it, and readers see either none or all of the changes.
+     * Removals of subscriptions not present are ignored.
+     */
+    public void apply(Collection<Subscription> toAdd, Collection<ClientTopicCouple> toRemove) {
+        synchronized (m_writeLock) {
+            TreeNode oldRoot = subscriptions.get();
+            Set<TreeNode> copied = Collections.newSetFromMap(new IdentityHashMap<TreeNode, Boolean>());
+            TreeNode newRoot = oldRoot.copy();
+            copied.add(newRoot);
+            boolean changed = !toAdd.isEmpty();
+
+            for (Subscription newSubscription : toAdd) {
+                copyPath(newSubscription.getTopicFilter(), newRoot, copied).addSubscription(newSubscription);
+                Set<String> filters = m_clientFilters.get(newSubscription.getClientId());
+                if (filters == null) {
+                    filters = new HashSet<>();
+                    m_clientFilters.put(newSubscription.getClientId(), filters);
+                }
+                filters.add(newSubscription.getTopicFilter());
+            }
+
+            for (ClientTopicCouple couple : toRemove) {
+                Set<String> filters = m_clientFilters.get(couple.clientID);
+                if (filters == null || !filters.remove(couple.topicFilter)) {
+                    //not subscribed, don't copy the path
+                    continue;
+                }
+                if (filters.isEmpty()) {
+                    m_clientFilters.remove(couple.clientID);
+                }
+                copyPath(couple.topicFilter, newRoot, copied).remove(couple.clientID);
+                changed = true;
+            }
+
+            if (changed) {
+                subscriptions.set(newRoot);
+                LOG.debug("root ref {}, original root was {}", newRoot, oldRoot);
+            }
+        }
+    }
 
     protected NodeCouple recreatePath(String topic, final TreeNode oldRoot) {
+        final TreeNode newRoot = oldRoot.copy();
+        Set<TreeNode> copied = Collections.newSetFromMap(new IdentityHashMap<TreeNode, Boolean>());
+        copied.add(newRoot);
+        return new NodeCouple(newRoot, copyPath(topic, newRoot, copied));
+    }
+
+    /**
+     * Walk the path of topic from the already copied newRoot, copying the nodes not yet in copied and creating the
+     * missing ones.
+     *
+     * @return the node of the last token of the topic.
+     */
+    private TreeNode copyPath(String topic, TreeNode newRoot, Set<TreeNode> copied) {
         List<Token> tokens = new ArrayList<>();
         try {
             tokens = parseTopic(topic);
@@ -139,54 +255,30 @@ public class SubscriptionsStore {
             LOG.error(null, ex);
         }
 
-        final TreeNode newRoot = oldRoot.copy();
-        TreeNode parent = newRoot;
         TreeNode current = newRoot;
         for (Token token : tokens) {
             TreeNode matchingChildren;
 
             //check if a children with the same token already exists
             if ((matchingChildren = current.childWithToken(token)) != null) {
-                //copy the traversed node
-                current = matchingChildren.copy();
-                //update the child just added in the children list
-                parent.updateChild(matchingChildren, current);
-                parent = current;
+                if (!copied.contains(matchingChildren)) {
+                    //copy the traversed node and update it in the children list
+                    TreeNode copy = matchingChildren.copy();
+                    current.updateChild(matchingChildren, copy);
+                    copied.add(copy);
+                    matchingChildren = copy;
+                }
+                current = matchingChildren;
             } else {
                 //create a new node for the newly inserted token
                 matchingChildren = new TreeNode();
                 matchingChildren.setToken(token);
                 current.addChild(matchingChildren);
+                copied.add(matchingChildren);
                 current = matchingChildren;
             }
         }
-        return new NodeCouple(newRoot, current);
-    }
-
-    public void removeSubscription(String topic, String clientID) {
-        TreeNode oldRoot;
-        NodeCouple couple;
-        do {
-            oldRoot = subscriptions.get();
-            couple = recreatePath(topic, oldRoot);
-
-            couple.createdNode.remove(new ClientTopicCouple(clientID, topic));
-            //spin lock repeating till we can, swap root, if can't swap just re-do the operation
-        } while(!subscriptions.compareAndSet(oldRoot, couple.root));
-    }
-    
-    /**
-     * Visit the topics tree to remove matching subscriptions with clientID.
-     * It's a mutating structure operation so create a new subscription tree (partial or total).
-     */
-    public void removeForClient(String clientID) {
-        TreeNode oldRoot;
-        TreeNode newRoot;
-        do {
-            oldRoot = subscriptions.get();
-            newRoot = oldRoot.removeClientSubscriptions(clientID);
-            //spin lock repeating till we can, swap root, if can't swap just re-do the operation
-        } while(!subscriptions.compareAndSet(oldRoot, newRoot));
+        return current;
     }
 
 
@@ -194,33 +286,28 @@ public class SubscriptionsStore {
      * Given a topic string return the clients subscriptions that matches it.
      * Topic string can't contain character # and + because they are reserved to
      * listeners subscriptions, and not topic publishing.
+     * The subscriptions are those held in the tree, no store is accessed.
      */
     public List<Subscription> matches(String topic) {
-        List<Token> tokens;
-        try {
-            tokens = parseTopic(topic);
-        } catch (ParseException ex) {
-            //TODO handle the parse exception
-            LOG.error(null, ex);
+        String[] tokens = splitTopic(topic);
+        if (tokens == null) {
+            LOG.warn("Can't match subscriptions for published topic <{}> containing wildcards", topic);
             return Collections.emptyList();
         }
 
-        Queue<Token> tokenQueue = new LinkedBlockingDeque<>(tokens);
-        List<ClientTopicCouple> matchingSubs = new ArrayList<>();
-        subscriptions.get().matches(tokenQueue, matchingSubs);
+        List<Subscription> matchingSubs = new ArrayList<>();
+        subscriptions.get().matches(tokens, 0, matchingSubs);
+        if (matchingSubs.size() <= 1) {
+            return matchingSubs;
+        }
 
         //remove the overlapping subscriptions, selecting ones with greatest qos
         Map<String, Subscription> subsForClient = new HashMap<>();
-        for (ClientTopicCouple matchingCouple : matchingSubs) {
-            Subscription existingSub = subsForClient.get(matchingCouple.clientID);
-            Subscription sub = m_sessionsStore.getSubscription(matchingCouple);
-            if (sub == null) {
-                //if the m_sessionStore hasn't the sub because the client disconnected
-                continue;
-            }
+        for (Subscription sub : matchingSubs) {
+            Subscription existingSub = subsForClient.get(sub.getClientId());
             //update the selected subscriptions if not present or if has a greater qos
             if (existingSub == null || existingSub.getRequestedQos().byteValue() < sub.getRequestedQos().byteValue()) {
-                subsForClient.put(matchingCouple.clientID, sub);
+                subsForClient.put(sub.getClientId(), sub);
             }
         }
         return new ArrayList<>(subsForClient.values());
@@ -233,6 +320,10 @@ public class SubscriptionsStore {
     public int size() {
         return subscriptions.get().size();
     }
+
+    TreeNode root() {
+        return subscriptions.get();
+    }
     
     public String dumpTree() {
         DumpTreeVisitor visitor = new DumpTreeVisitor();
@@ -245,7 +336,7 @@ public class SubscriptionsStore {
             return;
         }
         visitor.visit(node, deep);
-        for (TreeNode child : node.m_children) {
+        for (TreeNode child : node.children()) {
             bfsVisit(child, visitor, ++deep);
         }
     }
@@ -289,6 +380,34 @@ public class SubscriptionsStore {
         }
     }
     
+    /**
+     * Split a published topic in its levels, without the regex and token allocations of {@link #parseTopic(String)}.
+     * An empty level is kept as an empty string, as parseTopic does with {@link Token#EMPTY}.
+     *
+     * @return the levels or null if the topic contains wildcards, which aren't valid in published topic names.
+     */
+    static String[] splitTopic(String topic) {
+        int levels = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            char c = topic.charAt(i);
+            if (c == '/') {
+                levels++;
+            } else if (c == '+' || c == '#') {
+                return null;
+            }
+        }
+
+        String[] tokens = new String[levels];
+        int start = 0;
+        for (int level = 0; level < levels - 1; level++) {
+            int end = topic.indexOf('/', start);
+            tokens[level] = topic.substring(start, end);
+            start = end + 1;
+        }
+        tokens[levels - 1] = topic.substring(start);
+        return tokens;
+    }
+
     protected static List<Token> parseTopic(String topic) throws ParseException {
         List<Token> res = new ArrayList<>();
         String[] splitted = topic.split("/");
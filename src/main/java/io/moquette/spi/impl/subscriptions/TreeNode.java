@@ -15,17 +15,24 @@
  */
 package io.moquette.spi.impl.subscriptions;
 
-import io.moquette.spi.ISessionsStore.ClientTopicCouple;
-
 import java.util.*;
-import java.util.concurrent.LinkedBlockingQueue;
 
+/**
+ * Node of the subscriptions tree. Children with a literal token are kept in a map keyed by the token name, while
+ * the single level (+) and multi level (#) wildcards have a dedicated slot, so that matching a topic level costs
+ * one hash lookup plus the two wildcard checks whatever the number of siblings.
+ *
+ * The subscriptions of a node are keyed by clientID, a client has at most one subscription per topic filter.
+ *
+ * Nodes reachable from the published root are never modified, every change copies the nodes on its path.
+ */
 class TreeNode {
 
     Token m_token;
-    List<TreeNode> m_children = new ArrayList<>();
-    //TODO move to set of ClientIDthe set of clientIDs that has subscriptions to this topic
-    Set<ClientTopicCouple> m_subscriptions = new HashSet<>();
+    Map<String, TreeNode> m_children = new HashMap<>();
+    TreeNode m_singleChild;
+    TreeNode m_multiChild;
+    Map<String, Subscription> m_subscriptions = new HashMap<>();
 
     TreeNode() {
     }
@@ -38,12 +45,25 @@ class TreeNode {
         this.m_token = topic;
     }
 
-    void addSubscription(ClientTopicCouple s) {
-        m_subscriptions.add(s);
+    /**
+     * Add the subscription unless the client is already subscribed with a greater QoS.
+     */
+    void addSubscription(Subscription s) {
+        Subscription existing = m_subscriptions.get(s.getClientId());
+        if (existing == null || existing.getRequestedQos().byteValue() < s.getRequestedQos().byteValue()) {
+            m_subscriptions.put(s.getClientId(), s);
+        }
     }
 
     void addChild(TreeNode child) {
-        m_children.add(child);
+        Token token = child.getToken();
+        if (token == Token.SINGLE) {
+            m_singleChild = child;
+        } else if (token == Token.MULTI) {
+            m_multiChild = child;
+        } else {
+            m_children.put(token.name(), child);
+        }
     }
 
     /**
@@ -52,8 +72,10 @@ class TreeNode {
      * */
     TreeNode copy() {
         final TreeNode copy = new TreeNode();
-        copy.m_children = new ArrayList<>(m_children);
-        copy.m_subscriptions = new HashSet<>(m_subscriptions);
+        copy.m_children = new HashMap<>(m_children);
+        copy.m_singleChild = m_singleChild;
+        copy.m_multiChild = m_multiChild;
+        copy.m_subscriptions = new HashMap<>(m_subscriptions);
         copy.m_token = m_token;
         return copy;
     }
@@ -63,57 +85,76 @@ class TreeNode {
      * null;
      */
     TreeNode childWithToken(Token token) {
-        for (TreeNode child : m_children) {
-            if (child.getToken().equals(token)) {
-                return child;
-            }
+        if (token == Token.SINGLE) {
+            return m_singleChild;
         }
-
-        return null;
+        if (token == Token.MULTI) {
+            return m_multiChild;
+        }
+        return m_children.get(token.name());
     }
 
     void updateChild(TreeNode oldChild, TreeNode newChild) {
-        m_children.remove(oldChild);
-        m_children.add(newChild);
+        addChild(newChild);
     }
 
-    Collection<ClientTopicCouple> subscriptions() {
-        return m_subscriptions;
+    /**
+     * @return all the children, literal and wildcards.
+     */
+    Collection<TreeNode> children() {
+        List<TreeNode> children = new ArrayList<>(m_children.values());
+        if (m_singleChild != null) {
+            children.add(m_singleChild);
+        }
+        if (m_multiChild != null) {
+            children.add(m_multiChild);
+        }
+        return children;
     }
 
-    public void remove(ClientTopicCouple clientTopicCouple) {
-        m_subscriptions.remove(clientTopicCouple);
+    Collection<Subscription> subscriptions() {
+        return m_subscriptions.values();
     }
 
-    void matches(Queue<Token> tokens, List<ClientTopicCouple> matchingSubs) {
-        Token t = tokens.poll();
-
-        //check if t is null <=> tokens finished
-        if (t == null) {
-            matchingSubs.addAll(m_subscriptions);
-            //check if it has got a MULTI child and add its subscriptions
-            for (TreeNode n : m_children) {
-                if (n.getToken() == Token.MULTI || n.getToken() == Token.SINGLE) {
-                    matchingSubs.addAll(n.subscriptions());
-                }
-            }
+    public void remove(String clientID) {
+        m_subscriptions.remove(clientID);
+    }
 
+    /**
+     * Collect the subscriptions matching the topic levels from index onward, this node having matched the level
+     * before index.
+     *
+     * @param tokens the levels of the published topic, as returned by {@link SubscriptionsStore#splitTopic(String)}
+     * */
+    void matches(String[] tokens, int index, List<Subscription> matchingSubs) {
+        //check if tokens finished
+        if (index == tokens.length) {
+            matchingSubs.addAll(m_subscriptions.values());
+            //a MULTI or SINGLE child also matches the parent level
+            if (m_multiChild != null) {
+                matchingSubs.addAll(m_multiChild.m_subscriptions.values());
+            }
+            if (m_singleChild != null) {
+                matchingSubs.addAll(m_singleChild.m_subscriptions.values());
+            }
             return;
         }
 
         //we are on MULTI, than add subscriptions and return
         if (m_token == Token.MULTI) {
-            matchingSubs.addAll(m_subscriptions);
+            matchingSubs.addAll(m_subscriptions.values());
             return;
         }
 
-        for (TreeNode n : m_children) {
-            if (n.getToken().match(t)) {
-                //Create a copy of token, else if navigate 2 sibling it
-                //consumes 2 elements on the queue instead of one
-                n.matches(new LinkedBlockingQueue<>(tokens), matchingSubs);
-                //TODO don't create a copy n.matches(tokens, matchingSubs);
-            }
+        TreeNode literal = m_children.get(tokens[index]);
+        if (literal != null) {
+            literal.matches(tokens, index + 1, matchingSubs);
+        }
+        if (m_singleChild != null) {
+            m_singleChild.matches(tokens, index + 1, matchingSubs);
+        }
+        if (m_multiChild != null) {
+            m_multiChild.matches(tokens, index + 1, matchingSubs);
         }
     }
 
@@ -122,35 +163,9 @@ class TreeNode {
      */
     int size() {
         int res = m_subscriptions.size();
-        for (TreeNode child : m_children) {
+        for (TreeNode child : children()) {
             res += child.size();
         }
         return res;
     }
-
-    /**
-     * Create a copied subtree rooted on this node but purged of clientID's subscriptions.
-     * */
-    TreeNode removeClientSubscriptions(String clientID) {
-        //collect what to delete and then delete to avoid ConcurrentModification
-        TreeNode newSubRoot = this.copy();
-        List<ClientTopicCouple> subsToRemove = new ArrayList<>();
-        for (ClientTopicCouple s : newSubRoot.m_subscriptions) {
-            if (s.clientID.equals(clientID)) {
-                subsToRemove.add(s);
-            }
-        }
-
-        for (ClientTopicCouple s : subsToRemove) {
-            newSubRoot.m_subscriptions.remove(s);
-        }
-
-        //go deep
-        List<TreeNode> newChildren = new ArrayList<>(newSubRoot.m_children.size());
-        for (TreeNode child : newSubRoot.m_children) {
-            newChildren.add(child.removeClientSubscriptions(clientID));
-        }
-        newSubRoot.m_children = newChildren;
-        return newSubRoot;
-    }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.moquette.server.netty.metrics.LatencyMetricsCollector.Stage.COMMIT;
+
+/**
+ * Commits the MapDB store on its own thread when the writes since the last commit reach either a number of entries or
+ * of bytes, or when the oldest of them waited the max delay, whichever comes first. While nothing is written the
+ * thread sleeps without timeout.
+ *
+ * The stores report their writes with dirty(). Before storing a message the publish path calls throttle(), which
+ * blocks while the bytes not committed yet are over the backpressure bound, or on an I/O thread stops reading from
+ * the publisher until whenUnderBound() resumes it. So a fast publisher is slowed down to the pace of the disk instead
+ * of growing the store's write cache.
+ */
+class CommitScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CommitScheduler.class);
+    //a failed commit is retried after the max delay, but not sooner than this
+    private static final long MIN_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Runnable m_commit;
+    private final LatencyMetricsCollector m_latencyMetrics;
+    //0 disables the threshold
+    private final long m_maxDirtyEntries;
+    private final long m_maxDirtyBytes;
+    private final long m_maxDelayNanos;
+    private final long m_backpressureBytes;
+
+    private final Lock m_lock = new ReentrantLock();
+    private final Condition m_dirtyCondition = m_lock.newCondition();
+    private final Condition m_committedCondition = m_lock.newCondition();
+    //guarded by m_lock
+    private long m_dirtyEntries;
+    private long m_dirtyBytes;
+    private long m_firstDirtyNanos;
+    //the dirty bytes plus the ones of the commit in progress
+    private long m_uncommittedBytes;
+    private boolean m_running;
+    private Thread m_thread;
+    //run once the bytes not committed are back under the backpressure bound
+    private final List<Runnable> m_underBound = new ArrayList<>();
+
+    CommitScheduler(Runnable commit, long maxDirtyEntries, long maxDirtyBytes, long maxDelay, TimeUnit unit,
+                    long backpressureBytes, LatencyMetricsCollector latencyMetrics) {
+        m_commit = commit;
+        m_maxDirtyEntries = maxDirtyEntries;
+        m_maxDirtyBytes = maxDirtyBytes;
+        m_maxDelayNanos = unit.toNanos(maxDelay);
+        m_backpressureBytes = backpressureBytes;
+        m_latencyMetrics = latencyMetrics;
+    }
+
+    void start() {
+        m_lock.lock();
+        try {
+            if (m_running) {
+                return;
+            }
+            m_running = true;
+            m_thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    commitLoop();
+                }
+            }, "moquette-mapdb-commit");
+            m_thread.setDaemon(true);
+            m_thread.start();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the commit thread, waiting for the commit in progress if any. What's still dirty is left to the caller.
+     */
+    void stop() {
+        Thread thread;
+        m_lock.lock();
+        try {
+            m_running = false;
+            m_dirtyCondition.signalAll();
+            m_committedCondition.signalAll();
+            thread = m_thread;
+            m_thread = null;
+        } finally {
+            m_lock.unlock();
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        //nothing waits for the commits anymore
+        runUnderBound();
+    }
+
+    void dirty() {
+        dirty(0);
+    }
+
+    /**
+     * Account an entry written to the store.
+     *
+     * @param bytes the size of the entry, when it's worth counting.
+     */
+    void dirty(long bytes) {
+        m_lock.lock();
+        try {
+            boolean wasClean = m_dirtyEntries == 0;
+            m_dirtyEntries++;
+            m_dirtyBytes += bytes;
+            m_uncommittedBytes += bytes;
+            if (wasClean) {
+                m_firstDirtyNanos = System.nanoTime();
+                m_dirtyCondition.signal();
+            } else if (thresholdReached()) {
+                m_dirtyCondition.signal();
+            }
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Block the caller while the bytes not committed are over the backpressure bound.
+     */
+    void throttle() {
+        if (m_backpressureBytes <= 0) {
+            return;
+        }
+        m_lock.lock();
+        try {
+            if (m_uncommittedBytes <= m_backpressureBytes) {
+                return;
+            }
+            LOG.debug("{} bytes not committed yet, throttling {}", m_uncommittedBytes, Thread.currentThread().getName());
+            while (m_running && m_uncommittedBytes > m_backpressureBytes) {
+                m_dirtyCondition.signal();
+                m_committedCondition.await();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    boolean isOverBound() {
+        if (m_backpressureBytes <= 0) {
+            return false;
+        }
+        m_lock.lock();
+        try {
+            return m_uncommittedBytes > m_backpressureBytes;
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Run resume, on the commit thread, once the bytes not committed are back under the backpressure bound. Right away
+     * if they already are.
+     */
+    void whenUnderBound(Runnable resume) {
+        m_lock.lock();
+        try {
+            if (m_running && m_backpressureBytes > 0 && m_uncommittedBytes > m_backpressureBytes) {
+                m_underBound.add(resume);
+                m_dirtyCondition.signal();
+                return;
+            }
+        } finally {
+            m_lock.unlock();
+        }
+        resume.run();
+    }
+
+    private void runUnderBound() {
+        List<Runnable> resumes;
+        m_lock.lock();
+        try {
+            if (m_underBound.isEmpty()) {
+                return;
+            }
+            resumes = new ArrayList<>(m_underBound);
+            m_underBound.clear();
+        } finally {
+            m_lock.unlock();
+        }
+        for (Runnable resume : resumes) {
+            try {
+                resume.run();
+            } catch (Throwable th) {
+                LOG.error("Resuming a throttled publisher failed", th);
+            }
+        }
+    }
+
+    private boolean thresholdReached() {
+        return (m_maxDirtyEntries > 0 && m_dirtyEntries >= m_maxDirtyEntries)
+                || (m_maxDirtyBytes > 0 && m_dirtyBytes >= m_maxDirtyBytes)
+                || (m_backpressureBytes > 0 && m_uncommittedBytes > m_backpressureBytes);
+    }
+
+    private void commitLoop() {
+        m_lock.lock();
+        try {
+            while (m_running) {
+                if (m_dirtyEntries == 0) {
+                    m_dirtyCondition.await();
+                    continue;
+                }
+                long wait = m_firstDirtyNanos + m_maxDelayNanos - System.nanoTime();
+                if (wait > 0 && !thresholdReached()) {
+                    m_dirtyCondition.awaitNanos(wait);
+                    continue;
+                }
+                long entries = m_dirtyEntries;
+                long bytes = m_dirtyBytes;
+                m_dirtyEntries = 0;
+                m_dirtyBytes = 0;
+                boolean committed;
+                m_lock.unlock();
+                try {
+                    committed = commit(entries, bytes);
+                } finally {
+                    m_lock.lock();
+                }
+                if (!committed) {
+                    //the writes are still pending in MapDB, retry even if nothing else is written
+                    m_dirtyEntries += entries;
+                    m_dirtyBytes += bytes;
+                    m_firstDirtyNanos = System.nanoTime();
+                    m_dirtyCondition.awaitNanos(Math.max(m_maxDelayNanos, MIN_RETRY_NANOS));
+                    continue;
+                }
+                m_uncommittedBytes -= bytes;
+                m_committedCondition.signalAll();
+                if (!m_underBound.isEmpty() && m_uncommittedBytes <= m_backpressureBytes) {
+                    m_lock.unlock();
+                    try {
+                        runUnderBound();
+                    } finally {
+                        m_lock.lock();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.warn("Commit thread interrupted");
+        } finally {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * @return false if the commit failed.
+     */
+    private boolean commit(long entries, long bytes) {
+        long start = System.nanoTime();
+        try {
+            m_commit.run();
+        } catch (Throwable th) {
+            //the writes stay pending in MapDB and go with the retry, keep the thread alive for it
+            LOG.error("Commit of {} entries failed", entries, th);
+            return false;
+        }
+        m_latencyMetrics.record(COMMIT, start);
+        LOG.debug("Committed {} entries, {} bytes in {} ms", entries, bytes,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return true;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+/**
+ * Totals of the stored messages evicted so far, by reason, and of the space they reclaimed.
+ */
+public class EvictionMetrics {
+    private final long m_evictedByAge;
+    private final long m_evictedBySize;
+    private final long m_evictedByClient;
+    private final long m_reclaimedBytes;
+    private final long m_storedBytes;
+
+    EvictionMetrics(long evictedByAge, long evictedBySize, long evictedByClient, long reclaimedBytes,
+                    long storedBytes) {
+        m_evictedByAge = evictedByAge;
+        m_evictedBySize = evictedBySize;
+        m_evictedByClient = evictedByClient;
+        m_reclaimedBytes = reclaimedBytes;
+        m_storedBytes = storedBytes;
+    }
+
+    public long evictedByAge() {
+        return m_evictedByAge;
+    }
+
+    public long evictedBySize() {
+        return m_evictedBySize;
+    }
+
+    public long evictedByClient() {
+        return m_evictedByClient;
+    }
+
+    public long reclaimedBytes() {
+        return m_reclaimedBytes;
+    }
+
+    /**
+     * @return the bytes of the messages still stored.
+     */
+    public long storedBytes() {
+        return m_storedBytes;
+    }
+}
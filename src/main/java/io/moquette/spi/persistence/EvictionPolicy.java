@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.server.config.IConfig;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the stored messages are evicted to, and how much work an eviction pass may do. A limit of 0 is disabled.
+ */
+final class EvictionPolicy {
+
+    final long maxBytes;
+    final long maxAgeMillis;
+    final int maxMessagesPerClient;
+    //stored messages visited by a single pass
+    final int batchSize;
+
+    EvictionPolicy(long maxBytes, long maxAgeMillis, int maxMessagesPerClient, int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("eviction_batch_size must be positive, got " + batchSize);
+        }
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMessagesPerClient = maxMessagesPerClient;
+        this.batchSize = batchSize;
+    }
+
+    static EvictionPolicy fromConfig(IConfig props) {
+        long maxBytes = Long.parseLong(props.getProperty(BrokerConstants.EVICTION_MAX_BYTES_PROPERTY_NAME, "0"));
+        long maxAge = Long.parseLong(props.getProperty(BrokerConstants.EVICTION_MAX_AGE_PROPERTY_NAME, "0"));
+        int maxPerClient = Integer.parseInt(props.getProperty(
+                BrokerConstants.EVICTION_MAX_MESSAGES_PER_CLIENT_PROPERTY_NAME, "0"));
+        int batchSize = Integer.parseInt(props.getProperty(BrokerConstants.EVICTION_BATCH_SIZE_PROPERTY_NAME,
+                String.valueOf(BrokerConstants.EVICTION_BATCH_SIZE)));
+        return new EvictionPolicy(maxBytes, TimeUnit.SECONDS.toMillis(maxAge), maxPerClient, batchSize);
+    }
+
+    boolean isEnabled() {
+        return maxBytes > 0 || maxAgeMillis > 0 || maxMessagesPerClient > 0;
+    }
+}
@@ -15,60 +15,122 @@
  */
 package io.moquette.spi.persistence;
 
-import io.moquette.spi.IMatchingCondition;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
 import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IStoreBackpressure;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
+import org.mapdb.Serializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.moquette.server.netty.metrics.LatencyMetricsCollector.Stage.STORE;
 
 /**
  * IMessagesStore implementation backed by MapDB.
  *
+ * Messages are stored as byte arrays in the StoredMessageCodec layout, keyed by a 64 bit sequence number whose decimal
+ * form is the guid. Messages stored with the UUID guids of older stores are still read from their map.
+ *
+ * The store keeps the bytes and the number of messages stored per publisher, and records from time to time the last
+ * sequence number stored, so that the MessageEvictor can find the messages over its limits without decoding them all.
+ *
  * @author andrea
  */
-class MapDBMessagesStore implements IMessagesStore {
+class MapDBMessagesStore implements IMessagesStore, IStoreBackpressure {
 
     private static final Logger LOG = LoggerFactory.getLogger(MapDBMessagesStore.class);
+    private static final String LEGACY_MESSAGES = "persistedMessages";
 
     private DB m_db;
+    private final CommitScheduler m_commits;
+    private final LatencyMetricsCollector m_latencyMetrics;
 
     //maps clientID -> guid
     private ConcurrentMap<String, String> m_retainedStore;
-    //maps guid to message, it's message store
-    private ConcurrentMap<String, IMessagesStore.StoredMessage> m_persistentMessageStore;
+    //maps message sequence number -> encoded message, it's message store
+    private BTreeMap<Long, byte[]> m_messages;
+    private Atomic.Long m_messageSequence;
+    private TopicDictionary m_topics;
+    //maps UUID guid -> message, written by older stores, null if there isn't any
+    private ConcurrentMap<String, IMessagesStore.StoredMessage> m_legacyMessages;
+    private final RetainedTopicIndex m_retainedIndex = new RetainedTopicIndex();
+    //rebuilt at startup by rebuildReferences
+    private final ReferenceCounts m_references = new ReferenceCounts();
+    //maps time -> last sequence number stored at that time
+    private BTreeMap<Long, Long> m_epochs;
+    //the guids of the retained messages, they aren't evicted
+    private final Set<String> m_retainedGuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    //the guids of the QoS2 messages acknowledged with PUBREC and waiting for their PUBREL, they aren't evicted
+    private final ReferenceCounts m_awaitingRelease = new ReferenceCounts();
+    //rebuilt at startup with the references
+    private final AtomicLong m_storedBytes = new AtomicLong();
+    private final ConcurrentMap<String, AtomicInteger> m_messagesByClient = new ConcurrentHashMap<>();
 
 
-    MapDBMessagesStore(DB db) {
+    MapDBMessagesStore(DB db, CommitScheduler commits, LatencyMetricsCollector latencyMetrics) {
         m_db = db;
+        m_commits = commits;
+        m_latencyMetrics = latencyMetrics;
     }
 
     @Override
     public void initStore() {
         m_retainedStore = m_db.getHashMap("retained");
-        m_persistentMessageStore = m_db.getHashMap("persistedMessages");
+        m_messages = m_db.createTreeMap("messages")
+                .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                .valueSerializer(Serializer.BYTE_ARRAY)
+                .makeOrGet();
+        m_messageSequence = m_db.getAtomicLong("messageSequence");
+        BTreeMap<Integer, String> topicDictionary = m_db.createTreeMap("topicDictionary").makeOrGet();
+        m_topics = new TopicDictionary(topicDictionary);
+        m_epochs = m_db.createTreeMap("messageEpochs").makeOrGet();
+        if (m_db.getAll().containsKey(LEGACY_MESSAGES)) {
+            m_legacyMessages = m_db.getHashMap(LEGACY_MESSAGES);
+        }
+        for (Map.Entry<String, String> entry : m_retainedStore.entrySet()) {
+            m_retainedIndex.put(entry.getKey(), entry.getValue());
+            m_retainedGuids.add(entry.getValue());
+        }
     }
 
     @Override
     public void storeRetained(String topic, String guid) {
-        m_retainedStore.put(topic, guid);
+        long start = System.nanoTime();
+        incUsageCounter(guid);
+        m_retainedGuids.add(guid);
+        String previous = m_retainedStore.put(topic, guid);
+        m_retainedIndex.put(topic, guid);
+        m_commits.dirty();
+        if (previous != null) {
+            if (!previous.equals(guid)) {
+                m_retainedGuids.remove(previous);
+            }
+            decUsageCounter(previous);
+        }
+        m_latencyMetrics.record(STORE, start);
     }
 
     @Override
-    public Collection<StoredMessage> searchMatching(IMatchingCondition condition) {
-        LOG.debug("searchMatching scanning all retained messages, presents are {}", m_retainedStore.size());
+    public Collection<StoredMessage> searchMatching(String topicFilter) {
+        Collection<String> guids = m_retainedIndex.matching(topicFilter);
+        LOG.debug("searchMatching found {} retained messages for <{}>", guids.size(), topicFilter);
 
-        List<StoredMessage> results = new ArrayList<>();
-        for (Map.Entry<String, String> entry : m_retainedStore.entrySet()) {
-            final String guid = entry.getValue();
-            StoredMessage storedMsg = m_persistentMessageStore.get(guid);
-            if (condition.match(entry.getKey())) {
+        List<StoredMessage> results = new ArrayList<>(guids.size());
+        for (String guid : guids) {
+            StoredMessage storedMsg = load(guid);
+            if (storedMsg != null) {
                 results.add(storedMsg);
             }
         }
-
         return results;
     }
 
@@ -79,36 +141,258 @@ class MapDBMessagesStore implements IMessagesStore {
             LOG.error("persisting a message without a clientID, bad programming error msg: {}", evt);
             throw new IllegalArgumentException("\"persisting a message without a clientID, bad programming error");
         }
-        String guid = UUID.randomUUID().toString();
+        long start = System.nanoTime();
+        long sequence = m_messageSequence.incrementAndGet();
+        String guid = Long.toString(sequence);
         evt.setGuid(guid);
-        m_persistentMessageStore.put(guid, evt);
-        ConcurrentMap<Integer, String> messageIdToGuid = m_db.getHashMap(MapDBSessionsStore.messageId2GuidsMapName(evt.getClientID()));
-        messageIdToGuid.put(evt.getMessageID(), guid);
+        byte[] bytes = StoredMessageCodec.encode(evt, m_topics);
+        m_messages.put(sequence, bytes);
+        m_references.increment(guid);
+        stored(evt.getClientID(), bytes.length);
+        m_commits.dirty(bytes.length);
+        m_latencyMetrics.record(STORE, start);
         return guid;
     }
 
+    @Override
+    public void throttle() {
+        m_commits.throttle();
+    }
+
+    @Override
+    public boolean isOverBound() {
+        return m_commits.isOverBound();
+    }
+
+    @Override
+    public void whenUnderBound(Runnable resume) {
+        m_commits.whenUnderBound(resume);
+    }
+
+    @Override
+    public void incUsageCounter(String guid) {
+        m_references.increment(guid);
+    }
+
+    @Override
+    public void decUsageCounter(String guid) {
+        if (m_references.decrement(guid)) {
+            remove(guid);
+        }
+    }
+
+    private void remove(String guid) {
+        Long sequence = sequenceOf(guid);
+        if (sequence != null) {
+            byte[] bytes = m_messages.remove(sequence);
+            if (bytes != null) {
+                removed(bytes);
+            }
+        } else if (m_legacyMessages != null) {
+            m_legacyMessages.remove(guid);
+        }
+        m_commits.dirty();
+    }
+
+    /**
+     * Recompute the usage counters from the retained topics and the guids referenced by the sessions, then drop the
+     * messages nothing references, as the ones acknowledged by older stores that never dropped them.
+     *
+     * @param awaitingRelease the guids of the QoS2 messages waiting for their PUBREL.
+     */
+    void rebuildReferences(Collection<String> sessionGuids, Collection<String> awaitingRelease) {
+        m_references.clear();
+        m_awaitingRelease.clear();
+        for (String guid : awaitingRelease) {
+            m_awaitingRelease.increment(guid);
+        }
+        for (String guid : m_retainedStore.values()) {
+            m_references.increment(guid);
+        }
+        for (String guid : sessionGuids) {
+            m_references.increment(guid);
+        }
+        m_storedBytes.set(0);
+        m_messagesByClient.clear();
+        int dropped = 0;
+        Iterator<Map.Entry<Long, byte[]>> entries = m_messages.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Long, byte[]> entry = entries.next();
+            if (m_references.isReferenced(Long.toString(entry.getKey()))) {
+                stored(StoredMessageCodec.clientIDOf(entry.getValue()), entry.getValue().length);
+            } else {
+                entries.remove();
+                dropped++;
+            }
+        }
+        if (m_legacyMessages != null) {
+            Iterator<String> guids = m_legacyMessages.keySet().iterator();
+            while (guids.hasNext()) {
+                if (!m_references.isReferenced(guids.next())) {
+                    guids.remove();
+                    dropped++;
+                }
+            }
+        }
+        if (dropped > 0) {
+            m_db.commit();
+        }
+        LOG.info("Dropped {} messages not referenced anymore", dropped);
+    }
+
+    private void stored(String clientID, int length) {
+        m_storedBytes.addAndGet(length);
+        AtomicInteger count = m_messagesByClient.get(clientID);
+        if (count == null) {
+            count = m_messagesByClient.putIfAbsent(clientID, new AtomicInteger(1));
+            if (count == null) {
+                return;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private void removed(byte[] bytes) {
+        m_storedBytes.addAndGet(-bytes.length);
+        AtomicInteger count = m_messagesByClient.get(StoredMessageCodec.clientIDOf(bytes));
+        if (count != null) {
+            count.decrementAndGet();
+        }
+    }
+
+    long storedBytes() {
+        return m_storedBytes.get();
+    }
+
+    int messagesOf(String clientID) {
+        AtomicInteger count = m_messagesByClient.get(clientID);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return true if any publisher has more than max messages stored.
+     */
+    boolean anyClientAbove(int max) {
+        for (AtomicInteger count : m_messagesByClient.values()) {
+            if (count.get() > max) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record the last sequence number stored at the given time, if anything was stored since the previous one.
+     */
+    void markEpoch(long time) {
+        long sequence = m_messageSequence.get();
+        Map.Entry<Long, Long> last = m_epochs.lastEntry();
+        if (last == null || last.getValue() != sequence) {
+            m_epochs.put(time, sequence);
+            m_commits.dirty();
+        }
+    }
+
+    /**
+     * @return the last sequence number stored at or before the given time, null if the store doesn't know it. The
+     * epochs older than that one aren't needed anymore and are dropped.
+     */
+    Long sequenceStoredBefore(long time) {
+        Map.Entry<Long, Long> epoch = m_epochs.floorEntry(time);
+        if (epoch == null) {
+            return null;
+        }
+        m_epochs.headMap(epoch.getKey()).clear();
+        return epoch.getValue();
+    }
+
+    /**
+     * @return the stored message following the given sequence number, the first one if it's null.
+     */
+    Map.Entry<Long, byte[]> nextStored(Long sequence) {
+        return sequence == null ? m_messages.firstEntry() : m_messages.higherEntry(sequence);
+    }
+
+    /**
+     * The message was acknowledged to its QoS2 publisher with PUBREC, it's kept until the PUBREL forwards it.
+     */
+    void awaitRelease(String guid) {
+        m_awaitingRelease.increment(guid);
+    }
+
+    void released(String guid) {
+        m_awaitingRelease.decrement(guid);
+    }
+
+    /**
+     * Remove the message even if it's still referenced, the sessions holding it skip it when they find it missing.
+     * Retained messages and the ones waiting for a PUBREL are kept.
+     *
+     * @return the bytes reclaimed, -1 if the message wasn't evicted.
+     */
+    int evict(long sequence) {
+        String guid = Long.toString(sequence);
+        if (m_retainedGuids.contains(guid) || m_awaitingRelease.isReferenced(guid)) {
+            return -1;
+        }
+        byte[] bytes = m_messages.remove(sequence);
+        if (bytes == null) {
+            return -1;
+        }
+        removed(bytes);
+        m_references.forget(guid);
+        m_commits.dirty();
+        return bytes.length;
+    }
+
     @Override
     public List<StoredMessage> listMessagesInSession(Collection<String> guids) {
         List<StoredMessage> ret = new ArrayList<>();
         for (String guid : guids) {
-            ret.add(m_persistentMessageStore.get(guid));
+            StoredMessage msg = load(guid);
+            if (msg != null) {
+                ret.add(msg);
+            }
         }
         return ret;
     }
 
     @Override
-    public void dropMessagesInSession(String clientID) {
-        m_db.getHashMap(MapDBSessionsStore.messageId2GuidsMapName(clientID)).clear();
-        m_persistentMessageStore.remove(clientID);
+    public StoredMessage getMessageByGuid(String guid) {
+        long start = System.nanoTime();
+        StoredMessage msg = load(guid);
+        m_latencyMetrics.record(STORE, start);
+        return msg;
     }
 
-    @Override
-    public StoredMessage getMessageByGuid(String guid) {
-        return m_persistentMessageStore.get(guid);
+    private StoredMessage load(String guid) {
+        Long sequence = sequenceOf(guid);
+        if (sequence == null) {
+            return m_legacyMessages == null ? null : m_legacyMessages.get(guid);
+        }
+        byte[] bytes = m_messages.get(sequence);
+        return bytes == null ? null : StoredMessageCodec.decode(guid, bytes, m_topics);
+    }
+
+    /**
+     * @return the sequence number of the guid, null if it's the UUID of an older store.
+     */
+    static Long sequenceOf(String guid) {
+        try {
+            return Long.valueOf(guid);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
     }
 
     @Override
     public void cleanRetained(String topic) {
-        m_retainedStore.remove(topic);
+        String previous = m_retainedStore.remove(topic);
+        m_retainedIndex.remove(topic);
+        if (previous != null) {
+            m_commits.dirty();
+            m_retainedGuids.remove(previous);
+            decUsageCounter(previous);
+        }
     }
 }
@@ -17,7 +17,9 @@
 package io.moquette.spi.persistence;
 
 import io.moquette.server.config.IConfig;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
 import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IPersistentStore;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.proto.MQTTException;
 import org.mapdb.DB;
@@ -34,11 +36,19 @@ import java.util.concurrent.TimeUnit;
 
 import static io.moquette.BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME;
 import static io.moquette.BrokerConstants.AUTOSAVE_INTERVAL_PROPERTY_NAME;
+import static io.moquette.BrokerConstants.COMMIT_BACKPRESSURE_BYTES;
+import static io.moquette.BrokerConstants.COMMIT_BACKPRESSURE_BYTES_PROPERTY_NAME;
+import static io.moquette.BrokerConstants.COMMIT_MAX_DIRTY_BYTES;
+import static io.moquette.BrokerConstants.COMMIT_MAX_DIRTY_BYTES_PROPERTY_NAME;
+import static io.moquette.BrokerConstants.COMMIT_MAX_DIRTY_ENTRIES;
+import static io.moquette.BrokerConstants.COMMIT_MAX_DIRTY_ENTRIES_PROPERTY_NAME;
+import static io.moquette.BrokerConstants.EVICTION_INTERVAL;
+import static io.moquette.BrokerConstants.EVICTION_INTERVAL_PROPERTY_NAME;
 
 /**
  * MapDB main persistence implementation
  */
-public class MapDBPersistentStore {
+public class MapDBPersistentStore implements IPersistentStore {
 
     /**
      * This is a DTO used to persist minimal status (clean session and activation status) of
@@ -55,32 +65,81 @@ public class MapDBPersistentStore {
     private static final Logger LOG = LoggerFactory.getLogger(MapDBPersistentStore.class);
 
     private DB m_db;
+    private volatile MapDBSessionsStore m_sessionsStore;
     private final String m_storePath;
-    private final int m_autosaveInterval; // in seconds
+    private final int m_autosaveInterval; // in seconds, the max delay of a write before its commit
+    private final int m_maxDirtyEntries;
+    private final int m_maxDirtyBytes;
+    private final int m_backpressureBytes;
+    private CommitScheduler m_commits;
+    private final LatencyMetricsCollector m_latencyMetrics;
+    private final OfflineQueuePolicy m_offlineQueuePolicy;
+    private final EvictionPolicy m_evictionPolicy;
+    private final int m_evictionInterval; // in seconds
+    //null if the eviction is disabled
+    private volatile MessageEvictor m_evictor;
 
     protected final ScheduledExecutorService m_scheduler = Executors.newScheduledThreadPool(1);
 
     public MapDBPersistentStore(IConfig props) {
+        this(props, new LatencyMetricsCollector());
+    }
+
+    public MapDBPersistentStore(IConfig props, LatencyMetricsCollector latencyMetrics) {
         this.m_storePath = props.getProperty(PERSISTENT_STORE_PROPERTY_NAME, "");
         this.m_autosaveInterval = Integer.parseInt(props.getProperty(AUTOSAVE_INTERVAL_PROPERTY_NAME, "30"));
+        this.m_maxDirtyEntries = Integer.parseInt(props.getProperty(COMMIT_MAX_DIRTY_ENTRIES_PROPERTY_NAME,
+                String.valueOf(COMMIT_MAX_DIRTY_ENTRIES)));
+        this.m_maxDirtyBytes = Integer.parseInt(props.getProperty(COMMIT_MAX_DIRTY_BYTES_PROPERTY_NAME,
+                String.valueOf(COMMIT_MAX_DIRTY_BYTES)));
+        this.m_backpressureBytes = Integer.parseInt(props.getProperty(COMMIT_BACKPRESSURE_BYTES_PROPERTY_NAME,
+                String.valueOf(COMMIT_BACKPRESSURE_BYTES)));
+        this.m_latencyMetrics = latencyMetrics;
+        this.m_offlineQueuePolicy = OfflineQueuePolicy.fromConfig(props);
+        this.m_evictionPolicy = EvictionPolicy.fromConfig(props);
+        this.m_evictionInterval = Integer.parseInt(props.getProperty(EVICTION_INTERVAL_PROPERTY_NAME,
+                String.valueOf(EVICTION_INTERVAL)));
     }
 
     /**
      * Factory method to create message store backed by MapDB
      * */
+    @Override
     public IMessagesStore messagesStore() {
         //TODO check m_db is valid and
-        IMessagesStore msgStore = new MapDBMessagesStore(m_db);
+        MapDBMessagesStore msgStore = new MapDBMessagesStore(m_db, m_commits, m_latencyMetrics);
         msgStore.initStore();
+        if (m_evictionPolicy.isEnabled()) {
+            m_evictor = new MessageEvictor(msgStore, m_evictionPolicy);
+            m_scheduler.scheduleWithFixedDelay(m_evictor, m_evictionInterval, m_evictionInterval, TimeUnit.SECONDS);
+            LOG.info("Evicting stored messages every {} seconds", m_evictionInterval);
+        }
         return msgStore;
     }
 
+    /**
+     * @return the totals of the messages evicted so far, null if the eviction is disabled.
+     */
+    public EvictionMetrics evictionMetrics() {
+        MessageEvictor evictor = m_evictor;
+        return evictor == null ? null : evictor.metrics();
+    }
+
+    @Override
     public ISessionsStore sessionsStore(IMessagesStore msgStore) {
-        ISessionsStore sessionsStore = new MapDBSessionsStore(m_db, msgStore);
+        MapDBSessionsStore sessionsStore = new MapDBSessionsStore(m_db, msgStore, m_offlineQueuePolicy, m_commits,
+                m_latencyMetrics);
         sessionsStore.initStore();
+        if (msgStore instanceof MapDBMessagesStore) {
+            //the usage counters aren't persisted, they are recomputed from the sessions and the retained topics
+            ((MapDBMessagesStore) msgStore).rebuildReferences(sessionsStore.referencedGuids(),
+                    sessionsStore.awaitingRelease());
+        }
+        m_sessionsStore = sessionsStore;
         return sessionsStore;
     }
     
+    @Override
     public void initStore() {
         ClassLoader old = Thread.currentThread().getContextClassLoader();
         try {
@@ -99,27 +158,45 @@ public class MapDBPersistentStore {
                 }
                 m_db = DBMaker.newFileDB(tmpFile).make();
             }
-            m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            m_commits = new CommitScheduler(new Runnable() {
                 @Override
                 public void run() {
-                    m_db.commit();
+                    commit();
                 }
-            }, this.m_autosaveInterval, this.m_autosaveInterval, TimeUnit.SECONDS);
+            }, m_maxDirtyEntries, m_maxDirtyBytes, m_autosaveInterval, TimeUnit.SECONDS, m_backpressureBytes,
+                    m_latencyMetrics);
+            m_commits.start();
         } finally {
             Thread.currentThread().setContextClassLoader(old);
         }
     }
 
+    private void commit() {
+        MapDBSessionsStore sessionsStore = m_sessionsStore;
+        if (sessionsStore != null) {
+            sessionsStore.flushPacketIds();
+        }
+        m_db.commit();
+    }
+
+    @Override
     public void close() {
         if (this.m_db.isClosed()) {
             LOG.debug("already closed");
             return;
         }
-        this.m_db.commit();
+        this.m_scheduler.shutdown();
+        try {
+            //let an eviction pass in progress finish before the last commit
+            this.m_scheduler.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_commits.stop();
+        LOG.debug("Persistence commit scheduler is shutdown");
+        commit();
         //LOG.debug("persisted subscriptions {}", m_persistentSubscriptions);
         this.m_db.close();
         LOG.debug("closed disk storage");
-        this.m_scheduler.shutdown();
-        LOG.debug("Persistence commit scheduler is shutdown");
     }
 }
@@ -15,140 +15,243 @@
  */
 package io.moquette.spi.persistence;
 
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
 import io.moquette.spi.ClientSession;
 import io.moquette.spi.IMessagesStore;
 import io.moquette.spi.ISessionsStore;
 import io.moquette.spi.impl.Utils;
 import io.moquette.spi.impl.subscriptions.Subscription;
 import io.moquette.spi.persistence.MapDBPersistentStore.PersistentSession;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
 import org.mapdb.DB;
+import org.mapdb.Fun;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import static io.moquette.server.netty.metrics.LatencyMetricsCollector.Stage.STORE;
 
 /**
  * ISessionsStore implementation backed by MapDB.
  *
+ * Subscriptions and messageID to guid mappings of all the clients live in two tree maps keyed by
+ * (clientID, ...) tuples, so the collections handles are resolved once and the catalog doesn't grow with the number
+ * of clients. A subscription is stored as its requested QoS byte, clientID and topic filter being in the key. The
+ * maps of older stores are migrated at startup.
+ *
  * @author andrea
  */
 class MapDBSessionsStore implements ISessionsStore {
 
     private static final Logger LOG = LoggerFactory.getLogger(MapDBSessionsStore.class);
+    private static final String LEGACY_SUBSCRIPTIONS_PREFIX = "subscriptions_";
+    private static final String LEGACY_GUIDS_MAPPING_PREFIX = "guidsMapping_";
+    private static final String LEGACY_PACKET_IDS = "inflightPacketIDs";
+    private static final String LEGACY_SESSION_QUEUE = "sessionQueue";
+
+    /**
+     * Sequence numbers of the first queued and of the next to queue entry of a client offline queue.
+     */
+    private static final class QueueCursor {
+        long head;
+        long tail;
+    }
 
     //maps clientID->[MessageId -> guid]
     private ConcurrentMap<String, Map<Integer, String>> m_inflightStore;
-    //map clientID <-> set of currently in flight packet identifiers
-    private Map<String, Set<Integer>> m_inFlightIds;
+    //maps clientID -> packet identifiers in use, loaded on first use
+    private final ConcurrentMap<String, PacketIdAllocator> m_packetIds = new ConcurrentHashMap<>();
+    //clients whose packet identifiers changed since the last flush
+    private final Set<String> m_dirtyPacketIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    //maps clientID -> packet identifiers in use, only for the not clean sessions
+    private ConcurrentMap<String, int[]> m_persistedPacketIds;
     private ConcurrentMap<String, PersistentSession> m_persistentSessions;
-    //maps clientID->[guid*], insertion order cares, it's queue
-    private ConcurrentMap<String, List<String>> m_enqueuedStore;
+    //maps (clientID, sequence number) -> guid, the offline queues
+    private BTreeMap<Fun.Tuple2<String, Long>, String> m_enqueuedStore;
+    //the entries of the offline queues to publish with the RETAIN flag, same keys as m_enqueuedStore
+    private BTreeMap<Fun.Tuple2<String, Long>, Boolean> m_retainedEnqueued;
+    //maps clientID -> bounds of its queue, loaded on first use, guards the queue
+    private final ConcurrentMap<String, QueueCursor> m_queueCursors = new ConcurrentHashMap<>();
     //maps clientID->[messageID*]
     private ConcurrentMap<String, Set<Integer>> m_secondPhaseStore;
+    //maps (clientID, topicFilter) -> requested QoS
+    private BTreeMap<Fun.Tuple2<String, String>, Byte> m_subscriptions;
+    //maps (clientID, messageID) -> guid of the QoS2 messages published by the client, until PUBREL
+    private BTreeMap<Fun.Tuple2<String, Integer>, String> m_guidsMappings;
 
     private final DB m_db;
     private final IMessagesStore m_messagesStore;
-
-    MapDBSessionsStore(DB db, IMessagesStore messagesStore) {
+    //the same store when it's the MapDB one, it keeps the messages waiting for a PUBREL out of eviction
+    private final MapDBMessagesStore m_evictableStore;
+    private final LatencyMetricsCollector m_latencyMetrics;
+    private final OfflineQueuePolicy m_offlineQueuePolicy;
+    private final CommitScheduler m_commits;
+
+    MapDBSessionsStore(DB db, IMessagesStore messagesStore, OfflineQueuePolicy offlineQueuePolicy,
+                       CommitScheduler commits, LatencyMetricsCollector latencyMetrics) {
         m_db = db;
         m_messagesStore = messagesStore;
+        m_evictableStore = messagesStore instanceof MapDBMessagesStore ? (MapDBMessagesStore) messagesStore : null;
+        m_offlineQueuePolicy = offlineQueuePolicy;
+        m_commits = commits;
+        m_latencyMetrics = latencyMetrics;
     }
 
     @Override
     public void initStore() {
         m_inflightStore = m_db.getHashMap("inflight");
-        m_inFlightIds = m_db.getHashMap("inflightPacketIDs");
+        m_persistedPacketIds = m_db.getHashMap("packetIDs");
         m_persistentSessions = m_db.getHashMap("sessions");
-        m_enqueuedStore = m_db.getHashMap("sessionQueue");
+        m_enqueuedStore = m_db.createTreeMap("offlineQueue")
+                .keySerializer(BTreeKeySerializer.TUPLE2)
+                .makeOrGet();
+        m_retainedEnqueued = m_db.createTreeMap("offlineQueueRetained")
+                .keySerializer(BTreeKeySerializer.TUPLE2)
+                .makeOrGet();
         m_secondPhaseStore = m_db.getHashMap("secondPhase");
+        m_subscriptions = m_db.createTreeMap("subscriptionsQos")
+                .keySerializer(BTreeKeySerializer.TUPLE2)
+                .makeOrGet();
+        m_guidsMappings = m_db.createTreeMap("guidsMappings")
+                .keySerializer(BTreeKeySerializer.TUPLE2)
+                .makeOrGet();
+        migrateClientMaps();
+        if (m_db.getAll().containsKey(LEGACY_PACKET_IDS)) {
+            //the identifiers in use are rebuilt from the inflight and second phase records
+            m_db.delete(LEGACY_PACKET_IDS);
+            m_db.commit();
+        }
+        if (m_db.getAll().containsKey(LEGACY_SESSION_QUEUE)) {
+            ConcurrentMap<String, List<String>> legacyQueues = m_db.getHashMap(LEGACY_SESSION_QUEUE);
+            for (Map.Entry<String, List<String>> entry : legacyQueues.entrySet()) {
+                for (String guid : entry.getValue()) {
+                    bindToDeliver(guid, entry.getKey());
+                }
+            }
+            m_db.delete(LEGACY_SESSION_QUEUE);
+            m_db.commit();
+            LOG.info("Migrated {} session queues to the offline queue", legacyQueues.size());
+        }
     }
 
-    @Override
-    public void addNewSubscription(Subscription newSubscription) {
+    /**
+     * Move the content of the per client subscriptions_ and guidsMapping_ maps, used by older stores, in the
+     * global maps.
+     */
+    private void migrateClientMaps() {
         ClassLoader old = Thread.currentThread().getContextClassLoader();
         try {
             Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-            LOG.debug("addNewSubscription invoked with subscription {}", newSubscription);
-            final String clientID = newSubscription.getClientId();
-            m_db.getHashMap("subscriptions_" + clientID).put(newSubscription.getTopicFilter(), newSubscription);
-
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("subscriptions_{}: {}", clientID, m_db.getHashMap("subscriptions_" + clientID));
+            int migrated = 0;
+            for (String name : new ArrayList<>(m_db.getAll().keySet())) {
+                if (name.startsWith(LEGACY_SUBSCRIPTIONS_PREFIX)) {
+                    String clientID = name.substring(LEGACY_SUBSCRIPTIONS_PREFIX.length());
+                    ConcurrentMap<String, Subscription> clientSubscriptions = m_db.getHashMap(name);
+                    for (Map.Entry<String, Subscription> entry : clientSubscriptions.entrySet()) {
+                        m_subscriptions.put(Fun.t2(clientID, entry.getKey()), qosOf(entry.getValue()));
+                    }
+                } else if (name.startsWith(LEGACY_GUIDS_MAPPING_PREFIX)) {
+                    String clientID = name.substring(LEGACY_GUIDS_MAPPING_PREFIX.length());
+                    ConcurrentMap<Integer, String> messageIdToGuid = m_db.getHashMap(name);
+                    for (Map.Entry<Integer, String> entry : messageIdToGuid.entrySet()) {
+                        m_guidsMappings.put(Fun.t2(clientID, entry.getKey()), entry.getValue());
+                    }
+                } else {
+                    continue;
+                }
+                m_db.delete(name);
+                migrated++;
+            }
+            if (migrated > 0) {
+                m_db.commit();
+                LOG.info("Migrated {} per client maps to the global subscriptions and guids maps", migrated);
             }
         } finally {
             Thread.currentThread().setContextClassLoader(old);
         }
     }
 
+    private static Byte qosOf(Subscription subscription) {
+        return subscription.getRequestedQos().byteValue();
+    }
+
+    private static Subscription subscription(Fun.Tuple2<String, String> key, Byte qos) {
+        return new Subscription(key.a, key.b, AbstractMessage.QOSType.valueOf(qos));
+    }
+
+    private ConcurrentNavigableMap<Fun.Tuple2<String, String>, Byte> subscriptionsOf(String clientID) {
+        return m_subscriptions.subMap(Fun.t2(clientID, (String) null), true, Fun.t2(clientID, Fun.<String>HI()), true);
+    }
+
+    private QueueCursor queueCursor(String clientID) {
+        QueueCursor cursor = m_queueCursors.get(clientID);
+        if (cursor != null) {
+            return cursor;
+        }
+        cursor = new QueueCursor();
+        ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> queue = m_enqueuedStore.subMap(
+                Fun.t2(clientID, (Long) null), true, Fun.t2(clientID, Fun.<Long>HI()), true);
+        if (!queue.isEmpty()) {
+            cursor.head = queue.firstKey().b;
+            cursor.tail = queue.lastKey().b + 1;
+        }
+        QueueCursor existing = m_queueCursors.putIfAbsent(clientID, cursor);
+        return existing != null ? existing : cursor;
+    }
+
+    static <V> ConcurrentNavigableMap<Fun.Tuple2<String, Integer>, V> clientRange(
+            BTreeMap<Fun.Tuple2<String, Integer>, V> map, String clientID) {
+        return map.subMap(Fun.t2(clientID, (Integer) null), true, Fun.t2(clientID, Fun.<Integer>HI()), true);
+    }
+
+    @Override
+    public void addNewSubscription(Subscription newSubscription) {
+        LOG.debug("addNewSubscription invoked with subscription {}", newSubscription);
+        m_subscriptions.put(Fun.t2(newSubscription.getClientId(), newSubscription.getTopicFilter()),
+                qosOf(newSubscription));
+        m_commits.dirty();
+    }
+
     @Override
     public void removeSubscription(String topicFilter, String clientID) {
-        ClassLoader old = Thread.currentThread().getContextClassLoader();
-        try {
-            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-            LOG.debug("removeSubscription topic filter: {} for clientID: {}", topicFilter, clientID);
-            if (!m_db.exists("subscriptions_" + clientID)) {
-                return;
-            }
-            m_db.getHashMap("subscriptions_" + clientID).remove(topicFilter);
-        } finally {
-            Thread.currentThread().setContextClassLoader(old);
-        }
+        LOG.debug("removeSubscription topic filter: {} for clientID: {}", topicFilter, clientID);
+        m_subscriptions.remove(Fun.t2(clientID, topicFilter));
+        m_commits.dirty();
     }
 
     @Override
     public void wipeSubscriptions(String clientID) {
-        ClassLoader old = Thread.currentThread().getContextClassLoader();
-        try {
-            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-            LOG.debug("wipeSubscriptions");
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Subscription pre wipe: subscriptions_{}: {}", clientID, m_db.getHashMap("subscriptions_" + clientID));
-            }
-            m_db.delete("subscriptions_" + clientID);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Subscription post wipe: subscriptions_{}: {}", clientID, m_db.getHashMap("subscriptions_" + clientID));
-            }
-        } finally {
-            Thread.currentThread().setContextClassLoader(old);
-        }
+        LOG.debug("wipeSubscriptions");
+        subscriptionsOf(clientID).clear();
+        m_commits.dirty();
     }
 
     @Override
-    public List<ClientTopicCouple> listAllSubscriptions() {
-        ClassLoader old = Thread.currentThread().getContextClassLoader();
-        try {
-            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-            final List<ClientTopicCouple> allSubscriptions = new ArrayList<>();
-            for (String clientID : m_persistentSessions.keySet()) {
-                ConcurrentMap<String, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + clientID);
-                for (String topicFilter : clientSubscriptions.keySet()) {
-                    allSubscriptions.add(new ClientTopicCouple(clientID, topicFilter));
-                }
-            }
-            LOG.debug("retrieveAllSubscriptions returning subs {}", allSubscriptions);
-            return allSubscriptions;
-        } finally {
-            Thread.currentThread().setContextClassLoader(old);
+    public List<Subscription> listAllSubscriptions() {
+        final List<Subscription> allSubscriptions = new ArrayList<>(m_subscriptions.size());
+        for (Map.Entry<Fun.Tuple2<String, String>, Byte> entry : m_subscriptions.entrySet()) {
+            allSubscriptions.add(subscription(entry.getKey(), entry.getValue()));
         }
+        LOG.debug("retrieveAllSubscriptions returning subs {}", allSubscriptions);
+        return allSubscriptions;
     }
 
     @Override
     public Subscription getSubscription(ClientTopicCouple couple) {
-        ClassLoader old = Thread.currentThread().getContextClassLoader();
-        try {
-            Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
-            ConcurrentMap<String, Subscription> clientSubscriptions = m_db.getHashMap("subscriptions_" + couple.clientID);
-            LOG.debug("subscriptions_{}: {}", couple.clientID, clientSubscriptions);
-            return clientSubscriptions.get(couple.topicFilter);
-        } finally {
-            Thread.currentThread().setContextClassLoader(old);
-        }
+        Fun.Tuple2<String, String> key = Fun.t2(couple.clientID, couple.topicFilter);
+        Byte qos = m_subscriptions.get(key);
+        return qos == null ? null : subscription(key, qos);
     }
 
     @Override
     public boolean contains(String clientID) {
-        return m_db.exists("subscriptions_" + clientID);
+        return !subscriptionsOf(clientID).isEmpty();
     }
 
     @Override
@@ -160,6 +263,7 @@ class MapDBSessionsStore implements ISessionsStore {
         }
         LOG.debug("clientID {} is a newcome, creating it's empty subscriptions set", clientID);
         m_persistentSessions.putIfAbsent(clientID, new PersistentSession(cleanSession));
+        m_commits.dirty();
         return new ClientSession(clientID, m_messagesStore, this, cleanSession);
     }
 
@@ -176,6 +280,7 @@ class MapDBSessionsStore implements ISessionsStore {
     @Override
     public void updateCleanStatus(String clientID, boolean cleanSession) {
         m_persistentSessions.put(clientID, new MapDBPersistentStore.PersistentSession(cleanSession));
+        m_commits.dirty();
     }
 
     /**
@@ -183,65 +288,174 @@ class MapDBSessionsStore implements ISessionsStore {
      * */
     @Override
     public int nextPacketID(String clientID) {
-        Set<Integer> inFlightForClient = this.m_inFlightIds.get(clientID);
-        if (inFlightForClient == null) {
-            int nextPacketId = 1;
-            inFlightForClient = new HashSet<>();
-            inFlightForClient.add(nextPacketId);
-            this.m_inFlightIds.put(clientID, inFlightForClient);
-            return nextPacketId;
+        int packetId = packetIds(clientID).allocate();
+        m_dirtyPacketIds.add(clientID);
+        return packetId;
+    }
 
+    private PacketIdAllocator packetIds(String clientID) {
+        PacketIdAllocator allocator = m_packetIds.get(clientID);
+        if (allocator != null) {
+            return allocator;
+        }
+        int[] persisted = m_persistedPacketIds.get(clientID);
+        if (persisted != null) {
+            allocator = PacketIdAllocator.fromUsedIds(persisted);
+        } else {
+            allocator = new PacketIdAllocator();
+            Map<Integer, String> inflight = m_inflightStore.get(clientID);
+            if (inflight != null) {
+                for (Integer messageID : inflight.keySet()) {
+                    allocator.markUsed(messageID);
+                }
+            }
+            Set<Integer> secondPhase = m_secondPhaseStore.get(clientID);
+            if (secondPhase != null) {
+                for (Integer messageID : secondPhase) {
+                    allocator.markUsed(messageID);
+                }
+            }
         }
+        PacketIdAllocator existing = m_packetIds.putIfAbsent(clientID, allocator);
+        return existing != null ? existing : allocator;
+    }
 
-        int maxId = inFlightForClient.isEmpty() ? 0 : Collections.max(inFlightForClient);
-        int nextPacketId = (maxId + 1) % 0xFFFF;
-        inFlightForClient.add(nextPacketId);
-        return nextPacketId;
+    /**
+     * Write the packet identifiers changed since the last invocation, in the compact form and only for the not
+     * clean sessions. Invoked before each commit, so the allocations don't touch the store.
+     */
+    void flushPacketIds() {
+        for (Iterator<String> it = m_dirtyPacketIds.iterator(); it.hasNext();) {
+            String clientID = it.next();
+            it.remove();
+            PersistentSession session = m_persistentSessions.get(clientID);
+            PacketIdAllocator allocator = m_packetIds.get(clientID);
+            if (session == null || session.cleanSession || allocator == null || allocator.inUse() == 0) {
+                m_persistedPacketIds.remove(clientID);
+            } else {
+                m_persistedPacketIds.put(clientID, allocator.usedIds());
+            }
+        }
     }
 
     @Override
     public void inFlightAck(String clientID, int messageID) {
+        long start = System.nanoTime();
+        //a QoS2 message keeps its identifier until PUBCOMP
+        Set<Integer> secondPhase = m_secondPhaseStore.get(clientID);
+        if (secondPhase == null || !secondPhase.contains(messageID)) {
+            packetIds(clientID).release(messageID);
+            m_dirtyPacketIds.add(clientID);
+        }
+
         Map<Integer, String> m = this.m_inflightStore.get(clientID);
         if (m == null) {
             LOG.error("Can't find the inFlight record for client <{}>", clientID);
             return;
         }
-        m.remove(messageID);
-
-        //remove from the ids store
-        Set<Integer> inFlightForClient = this.m_inFlightIds.get(clientID);
-        if (inFlightForClient != null) {
-            inFlightForClient.remove(messageID);
+        String guid = m.remove(messageID);
+        this.m_inflightStore.put(clientID, m);
+        m_commits.dirty();
+        if (guid != null) {
+            m_messagesStore.decUsageCounter(guid);
         }
+        m_latencyMetrics.record(STORE, start);
     }
 
     @Override
     public void inFlight(String clientID, int messageID, String guid) {
+        long start = System.nanoTime();
         Map<Integer, String> m = this.m_inflightStore.get(clientID);
         if (m == null) {
             m = new HashMap<>();
         }
-        m.put(messageID, guid);
+        m_messagesStore.incUsageCounter(guid);
+        String previous = m.put(messageID, guid);
         this.m_inflightStore.put(clientID, m);
+        m_commits.dirty();
+        if (previous != null) {
+            m_messagesStore.decUsageCounter(previous);
+        }
+        m_latencyMetrics.record(STORE, start);
+    }
+
+    @Override
+    public Map<Integer, String> inFlightMessages(String clientID) {
+        Map<Integer, String> m = m_inflightStore.get(clientID);
+        return m == null ? Collections.<Integer, String>emptyMap() : new HashMap<>(m);
     }
 
     @Override
     public void bindToDeliver(String guid, String clientID) {
-        List<String> guids = Utils.defaultGet(m_enqueuedStore, clientID, new ArrayList<String>());
-        guids.add(guid);
-        m_enqueuedStore.put(clientID, guids);
+        bindToDeliver(guid, clientID, false);
     }
 
     @Override
-    public Collection<String> enqueued(String clientID) {
-        return Utils.defaultGet(m_enqueuedStore, clientID, new ArrayList<String>());
+    public void bindToDeliver(String guid, String clientID, boolean retained) {
+        long start = System.nanoTime();
+        QueueCursor cursor = queueCursor(clientID);
+        synchronized (cursor) {
+            if (m_offlineQueuePolicy.isFull(cursor.tail - cursor.head)) {
+                if (!m_offlineQueuePolicy.dropOldest) {
+                    LOG.warn("Offline queue of client <{}> is full, dropping message {}", clientID, guid);
+                    return;
+                }
+                Fun.Tuple2<String, Long> oldest = Fun.t2(clientID, cursor.head++);
+                String dropped = m_enqueuedStore.remove(oldest);
+                m_retainedEnqueued.remove(oldest);
+                LOG.warn("Offline queue of client <{}> is full, dropping oldest message {}", clientID, dropped);
+                if (dropped != null) {
+                    m_messagesStore.decUsageCounter(dropped);
+                }
+            }
+            m_messagesStore.incUsageCounter(guid);
+            Fun.Tuple2<String, Long> key = Fun.t2(clientID, cursor.tail++);
+            m_enqueuedStore.put(key, guid);
+            if (retained) {
+                m_retainedEnqueued.put(key, Boolean.TRUE);
+            }
+        }
+        m_commits.dirty();
+        m_latencyMetrics.record(STORE, start);
     }
 
     @Override
-    public void removeEnqueued(String clientID, String guid) {
-        List<String> guids = Utils.defaultGet(m_enqueuedStore, clientID, new ArrayList<String>());
-        guids.remove(guid);
-        m_enqueuedStore.put(clientID, guids);
+    public List<String> drainEnqueued(String clientID) {
+        QueueCursor cursor = queueCursor(clientID);
+        synchronized (cursor) {
+            if (cursor.head == cursor.tail) {
+                return Collections.emptyList();
+            }
+            ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> queue = m_enqueuedStore.subMap(
+                    Fun.t2(clientID, cursor.head), true, Fun.t2(clientID, cursor.tail), false);
+            List<String> guids = new ArrayList<>(queue.values());
+            queue.clear();
+            m_retainedEnqueued.subMap(Fun.t2(clientID, cursor.head), true, Fun.t2(clientID, cursor.tail), false).clear();
+            cursor.head = cursor.tail;
+            m_commits.dirty();
+            return guids;
+        }
+    }
+
+    @Override
+    public List<Enqueued> drainEnqueued(String clientID, int max) {
+        QueueCursor cursor = queueCursor(clientID);
+        synchronized (cursor) {
+            if (cursor.head == cursor.tail) {
+                return Collections.emptyList();
+            }
+            long end = Math.min(cursor.tail, cursor.head + max);
+            ConcurrentNavigableMap<Fun.Tuple2<String, Long>, String> queue = m_enqueuedStore.subMap(
+                    Fun.t2(clientID, cursor.head), true, Fun.t2(clientID, end), false);
+            List<Enqueued> drained = new ArrayList<>(queue.size());
+            for (Map.Entry<Fun.Tuple2<String, Long>, String> entry : queue.entrySet()) {
+                drained.add(new Enqueued(entry.getValue(), m_retainedEnqueued.remove(entry.getKey()) != null));
+            }
+            queue.clear();
+            cursor.head = end;
+            m_commits.dirty();
+            return drained;
+        }
     }
 
     @Override
@@ -249,6 +463,9 @@ class MapDBSessionsStore implements ISessionsStore {
         Set<Integer> messageIDs = Utils.defaultGet(m_secondPhaseStore, clientID, new HashSet<Integer>());
         messageIDs.remove(messageID);
         m_secondPhaseStore.put(clientID, messageIDs);
+        m_commits.dirty();
+        packetIds(clientID).release(messageID);
+        m_dirtyPacketIds.add(clientID);
     }
 
     @Override
@@ -256,15 +473,96 @@ class MapDBSessionsStore implements ISessionsStore {
         Set<Integer> messageIDs = Utils.defaultGet(m_secondPhaseStore, clientID, new HashSet<Integer>());
         messageIDs.add(messageID);
         m_secondPhaseStore.put(clientID, messageIDs);
+        m_commits.dirty();
+        packetIds(clientID).markUsed(messageID);
+        m_dirtyPacketIds.add(clientID);
+    }
+
+    @Override
+    public Set<Integer> secondPhaseWaiting(String clientID) {
+        Set<Integer> messageIDs = m_secondPhaseStore.get(clientID);
+        return messageIDs == null ? Collections.<Integer>emptySet() : new HashSet<>(messageIDs);
+    }
+
+    @Override
+    public void bindGuid(String clientID, int messageID, String guid) {
+        m_messagesStore.incUsageCounter(guid);
+        String previous = m_guidsMappings.put(Fun.t2(clientID, messageID), guid);
+        m_commits.dirty();
+        awaitRelease(guid);
+        if (previous != null) {
+            released(previous);
+            m_messagesStore.decUsageCounter(previous);
+        }
+    }
+
+    @Override
+    public void unbindGuid(String clientID, int messageID) {
+        String guid = m_guidsMappings.remove(Fun.t2(clientID, messageID));
+        if (guid != null) {
+            m_commits.dirty();
+            released(guid);
+            m_messagesStore.decUsageCounter(guid);
+        }
+    }
+
+    private void awaitRelease(String guid) {
+        if (m_evictableStore != null) {
+            m_evictableStore.awaitRelease(guid);
+        }
+    }
+
+    private void released(String guid) {
+        if (m_evictableStore != null) {
+            m_evictableStore.released(guid);
+        }
     }
 
     @Override
     public String mapToGuid(String clientID, int messageID) {
-        ConcurrentMap<Integer, String> messageIdToGuid = m_db.getHashMap(messageId2GuidsMapName(clientID));
-        return messageIdToGuid.get(messageID);
+        return m_guidsMappings.get(Fun.t2(clientID, messageID));
     }
 
-    static String messageId2GuidsMapName(String clientID) {
-        return "guidsMapping_" + clientID;
+    @Override
+    public void clearSessionMessages(String clientID) {
+        Map<Integer, String> inflight = m_inflightStore.remove(clientID);
+        if (inflight != null) {
+            for (String guid : inflight.values()) {
+                m_messagesStore.decUsageCounter(guid);
+            }
+        }
+        for (String guid : drainEnqueued(clientID)) {
+            m_messagesStore.decUsageCounter(guid);
+        }
+        ConcurrentNavigableMap<Fun.Tuple2<String, Integer>, String> mappings = clientRange(m_guidsMappings, clientID);
+        for (String guid : new ArrayList<>(mappings.values())) {
+            released(guid);
+            m_messagesStore.decUsageCounter(guid);
+        }
+        mappings.clear();
+        m_secondPhaseStore.remove(clientID);
+        m_packetIds.remove(clientID);
+        m_dirtyPacketIds.add(clientID);
+        m_commits.dirty();
+    }
+
+    /**
+     * @return the guids referenced by the sessions, once per reference.
+     */
+    List<String> referencedGuids() {
+        List<String> guids = new ArrayList<>();
+        for (Map<Integer, String> inflight : m_inflightStore.values()) {
+            guids.addAll(inflight.values());
+        }
+        guids.addAll(m_enqueuedStore.values());
+        guids.addAll(m_guidsMappings.values());
+        return guids;
+    }
+
+    /**
+     * @return the guids of the QoS2 messages waiting for their PUBREL.
+     */
+    List<String> awaitingRelease() {
+        return new ArrayList<>(m_guidsMappings.values());
     }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+import io.moquette.spi.IMessagesStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * IMessagesStore implementation that keeps the messages on the heap.
+ */
+class MemoryMessagesStore implements IMessagesStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryMessagesStore.class);
+
+    //maps topic -> guid
+    final ConcurrentMap<String, String> m_retainedStore = new ConcurrentHashMap<>();
+    final RetainedTopicIndex m_retainedIndex = new RetainedTopicIndex();
+    //maps guid to message, it's message store
+    final ConcurrentMap<String, StoredMessage> m_persistentMessageStore = new ConcurrentHashMap<>();
+    final ReferenceCounts m_references = new ReferenceCounts();
+    final AtomicLong m_nextGuid = new AtomicLong();
+
+    @Override
+    public void initStore() {
+    }
+
+    @Override
+    public void storeRetained(String topic, String guid) {
+        incUsageCounter(guid);
+        String previous = m_retainedStore.put(topic, guid);
+        m_retainedIndex.put(topic, guid);
+        if (previous != null) {
+            decUsageCounter(previous);
+        }
+    }
+
+    @Override
+    public Collection<StoredMessage> searchMatching(String topicFilter) {
+        Collection<String> guids = m_retainedIndex.matching(topicFilter);
+        List<StoredMessage> results = new ArrayList<>(guids.size());
+        for (String guid : guids) {
+            StoredMessage storedMsg = m_persistentMessageStore.get(guid);
+            if (storedMsg != null) {
+                results.add(storedMsg);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public String storePublishForFuture(StoredMessage evt) {
+        LOG.debug("storePublishForFuture store evt {}", evt);
+        if (evt.getClientID() == null) {
+            LOG.error("persisting a message without a clientID, bad programming error msg: {}", evt);
+            throw new IllegalArgumentException("\"persisting a message without a clientID, bad programming error");
+        }
+        //nothing is persisted, a sequence is unique enough and cheaper than a UUID
+        String guid = Long.toString(m_nextGuid.incrementAndGet());
+        evt.setGuid(guid);
+        m_persistentMessageStore.put(guid, evt);
+        m_references.increment(guid);
+        return guid;
+    }
+
+    @Override
+    public void incUsageCounter(String guid) {
+        m_references.increment(guid);
+    }
+
+    @Override
+    public void decUsageCounter(String guid) {
+        if (m_references.decrement(guid)) {
+            m_persistentMessageStore.remove(guid);
+        }
+    }
+
+    /**
+     * Put back a message with the guid it was stored with, guids generated afterwards don't collide with it.
+     */
+    void restoreMessage(StoredMessage msg) {
+        m_persistentMessageStore.put(msg.getGuid(), msg);
+        long guid = Long.parseLong(msg.getGuid());
+        long current;
+        do {
+            current = m_nextGuid.get();
+        } while (current < guid && !m_nextGuid.compareAndSet(current, guid));
+    }
+
+    /**
+     * Recompute the usage counters from the retained topics and the guids referenced by the sessions, then drop the
+     * messages nothing references.
+     */
+    void rebuildReferences(Collection<String> sessionGuids) {
+        m_references.clear();
+        for (String guid : m_retainedStore.values()) {
+            m_references.increment(guid);
+        }
+        for (String guid : sessionGuids) {
+            m_references.increment(guid);
+        }
+        int dropped = 0;
+        Iterator<String> guids = m_persistentMessageStore.keySet().iterator();
+        while (guids.hasNext()) {
+            if (!m_references.isReferenced(guids.next())) {
+                guids.remove();
+                dropped++;
+            }
+        }
+        LOG.info("Dropped {} messages not referenced anymore, {} are kept", dropped, m_persistentMessageStore.size());
+    }
+
+    @Override
+    public List<StoredMessage> listMessagesInSession(Collection<String> guids) {
+        List<StoredMessage> ret = new ArrayList<>();
+        for (String guid : guids) {
+            StoredMessage msg = m_persistentMessageStore.get(guid);
+            if (msg != null) {
+                ret.add(msg);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public StoredMessage getMessageByGuid(String guid) {
+        return guid == null ? null : m_persistentMessageStore.get(guid);
+    }
+
+    @Override
+    public void cleanRetained(String topic) {
+        String previous = m_retainedStore.remove(topic);
+        m_retainedIndex.remove(topic);
+        if (previous != null) {
+            decUsageCounter(previous);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.server.config.IConfig;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IPersistentStore;
+import io.moquette.spi.ISessionsStore;
+
+/**
+ * Heap only storage, messages and sessions are kept as plain object references in concurrent maps, nothing is
+ * serialized and nothing survives a restart. Fits deployments that don't need durability, like QoS 0 only ones.
+ */
+public class MemoryPersistentStore implements IPersistentStore {
+
+    private final OfflineQueuePolicy m_offlineQueuePolicy;
+
+    public MemoryPersistentStore() {
+        m_offlineQueuePolicy = OfflineQueuePolicy.UNBOUNDED;
+    }
+
+    public MemoryPersistentStore(IConfig props) {
+        m_offlineQueuePolicy = OfflineQueuePolicy.fromConfig(props);
+    }
+
+    @Override
+    public void initStore() {
+    }
+
+    @Override
+    public IMessagesStore messagesStore() {
+        IMessagesStore msgStore = new MemoryMessagesStore();
+        msgStore.initStore();
+        return msgStore;
+    }
+
+    @Override
+    public ISessionsStore sessionsStore(IMessagesStore msgStore) {
+        ISessionsStore sessionsStore = new MemorySessionsStore(msgStore, m_offlineQueuePolicy);
+        sessionsStore.initStore();
+        return sessionsStore;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ISessionsStore implementation that keeps the sessions on the heap.
+ */
+class MemorySessionsStore implements ISessionsStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemorySessionsStore.class);
+
+    //maps clientID -> clean session flag
+    final ConcurrentMap<String, Boolean> m_persistentSessions = new ConcurrentHashMap<>();
+    //maps clientID -> [topicFilter -> subscription]
+    final ConcurrentMap<String, ConcurrentMap<String, Subscription>> m_subscriptions = new ConcurrentHashMap<>();
+    //maps clientID->[MessageId -> guid]
+    final ConcurrentMap<String, ConcurrentMap<Integer, String>> m_inflightStore = new ConcurrentHashMap<>();
+    //maps clientID -> packet identifiers in use, until PUBACK or PUBCOMP
+    final ConcurrentMap<String, PacketIdAllocator> m_packetIds = new ConcurrentHashMap<>();
+    //maps clientID->[guid*], insertion order cares, it's queue, guarded by the queue itself
+    final ConcurrentMap<String, Deque<Enqueued>> m_enqueuedStore = new ConcurrentHashMap<>();
+    //maps clientID->[messageID*]
+    final ConcurrentMap<String, Set<Integer>> m_secondPhaseStore = new ConcurrentHashMap<>();
+    //maps clientID -> [messageID -> guid] of the QoS2 messages published by the client, until PUBREL
+    final ConcurrentMap<String, ConcurrentMap<Integer, String>> m_guidsMappings = new ConcurrentHashMap<>();
+
+    final IMessagesStore m_messagesStore;
+    private final OfflineQueuePolicy m_offlineQueuePolicy;
+
+    MemorySessionsStore(IMessagesStore messagesStore, OfflineQueuePolicy offlineQueuePolicy) {
+        m_messagesStore = messagesStore;
+        m_offlineQueuePolicy = offlineQueuePolicy;
+    }
+
+    PacketIdAllocator packetIds(String clientID) {
+        PacketIdAllocator allocator = m_packetIds.get(clientID);
+        if (allocator == null) {
+            allocator = new PacketIdAllocator();
+            PacketIdAllocator existing = m_packetIds.putIfAbsent(clientID, allocator);
+            if (existing != null) {
+                allocator = existing;
+            }
+        }
+        return allocator;
+    }
+
+    @Override
+    public void initStore() {
+    }
+
+    static <K, V> ConcurrentMap<K, V> newMapIfAbsent(ConcurrentMap<String, ConcurrentMap<K, V>> maps, String clientID) {
+        ConcurrentMap<K, V> map = maps.get(clientID);
+        if (map == null) {
+            map = new ConcurrentHashMap<>();
+            ConcurrentMap<K, V> existing = maps.putIfAbsent(clientID, map);
+            if (existing != null) {
+                map = existing;
+            }
+        }
+        return map;
+    }
+
+    static Set<Integer> newSetIfAbsent(ConcurrentMap<String, Set<Integer>> sets, String clientID) {
+        Set<Integer> set = sets.get(clientID);
+        if (set == null) {
+            set = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            Set<Integer> existing = sets.putIfAbsent(clientID, set);
+            if (existing != null) {
+                set = existing;
+            }
+        }
+        return set;
+    }
+
+    @Override
+    public void addNewSubscription(Subscription newSubscription) {
+        LOG.debug("addNewSubscription invoked with subscription {}", newSubscription);
+        newMapIfAbsent(m_subscriptions, newSubscription.getClientId())
+                .put(newSubscription.getTopicFilter(), newSubscription);
+    }
+
+    @Override
+    public void removeSubscription(String topicFilter, String clientID) {
+        LOG.debug("removeSubscription topic filter: {} for clientID: {}", topicFilter, clientID);
+        Map<String, Subscription> clientSubscriptions = m_subscriptions.get(clientID);
+        if (clientSubscriptions != null) {
+            clientSubscriptions.remove(topicFilter);
+        }
+    }
+
+    @Override
+    public void wipeSubscriptions(String clientID) {
+        LOG.debug("wipeSubscriptions");
+        m_subscriptions.remove(clientID);
+    }
+
+    @Override
+    public List<Subscription> listAllSubscriptions() {
+        List<Subscription> allSubscriptions = new ArrayList<>();
+        for (String clientID : m_persistentSessions.keySet()) {
+            Map<String, Subscription> clientSubscriptions = m_subscriptions.get(clientID);
+            if (clientSubscriptions != null) {
+                allSubscriptions.addAll(clientSubscriptions.values());
+            }
+        }
+        return allSubscriptions;
+    }
+
+    @Override
+    public Subscription getSubscription(ClientTopicCouple couple) {
+        Map<String, Subscription> clientSubscriptions = m_subscriptions.get(couple.clientID);
+        return clientSubscriptions == null ? null : clientSubscriptions.get(couple.topicFilter);
+    }
+
+    @Override
+    public boolean contains(String clientID) {
+        return m_subscriptions.containsKey(clientID);
+    }
+
+    @Override
+    public ClientSession createNewSession(String clientID, boolean cleanSession) {
+        LOG.debug("createNewSession for client <{}> with clean flag <{}>", clientID, cleanSession);
+        if (m_persistentSessions.putIfAbsent(clientID, cleanSession) != null) {
+            LOG.error("already exists a session for client <{}>, bad condition", clientID);
+            throw new IllegalArgumentException("Can't create a session with the ID of an already existing" + clientID);
+        }
+        return new ClientSession(clientID, m_messagesStore, this, cleanSession);
+    }
+
+    @Override
+    public ClientSession sessionForClient(String clientID) {
+        Boolean cleanSession = m_persistentSessions.get(clientID);
+        if (cleanSession == null) {
+            return null;
+        }
+        return new ClientSession(clientID, m_messagesStore, this, cleanSession);
+    }
+
+    @Override
+    public void updateCleanStatus(String clientID, boolean cleanSession) {
+        m_persistentSessions.put(clientID, cleanSession);
+    }
+
+    /**
+     * Return the next valid packetIdentifier for the given client session.
+     * */
+    @Override
+    public int nextPacketID(String clientID) {
+        return packetIds(clientID).allocate();
+    }
+
+    @Override
+    public void inFlightAck(String clientID, int messageID) {
+        //a QoS2 message keeps its identifier until PUBCOMP
+        Set<Integer> secondPhase = m_secondPhaseStore.get(clientID);
+        if (secondPhase == null || !secondPhase.contains(messageID)) {
+            packetIds(clientID).release(messageID);
+        }
+
+        Map<Integer, String> m = m_inflightStore.get(clientID);
+        if (m == null) {
+            LOG.error("Can't find the inFlight record for client <{}>", clientID);
+            return;
+        }
+        String guid = m.remove(messageID);
+        if (guid != null) {
+            m_messagesStore.decUsageCounter(guid);
+        }
+    }
+
+    @Override
+    public void inFlight(String clientID, int messageID, String guid) {
+        m_messagesStore.incUsageCounter(guid);
+        String previous = newMapIfAbsent(m_inflightStore, clientID).put(messageID, guid);
+        if (previous != null) {
+            m_messagesStore.decUsageCounter(previous);
+        }
+    }
+
+    @Override
+    public Map<Integer, String> inFlightMessages(String clientID) {
+        Map<Integer, String> m = m_inflightStore.get(clientID);
+        return m == null ? Collections.<Integer, String>emptyMap() : new HashMap<>(m);
+    }
+
+    @Override
+    public void bindToDeliver(String guid, String clientID) {
+        bindToDeliver(guid, clientID, false);
+    }
+
+    @Override
+    public void bindToDeliver(String guid, String clientID, boolean retained) {
+        Deque<Enqueued> guids = m_enqueuedStore.get(clientID);
+        if (guids == null) {
+            guids = new ArrayDeque<>();
+            Deque<Enqueued> existing = m_enqueuedStore.putIfAbsent(clientID, guids);
+            if (existing != null) {
+                guids = existing;
+            }
+        }
+        synchronized (guids) {
+            if (m_offlineQueuePolicy.isFull(guids.size())) {
+                if (!m_offlineQueuePolicy.dropOldest) {
+                    LOG.warn("Offline queue of client <{}> is full, dropping message {}", clientID, guid);
+                    return;
+                }
+                String dropped = guids.pollFirst().guid;
+                LOG.warn("Offline queue of client <{}> is full, dropping oldest message {}", clientID, dropped);
+                m_messagesStore.decUsageCounter(dropped);
+            }
+            m_messagesStore.incUsageCounter(guid);
+            guids.addLast(new Enqueued(guid, retained));
+        }
+    }
+
+    @Override
+    public List<String> drainEnqueued(String clientID) {
+        return pollAll(clientID);
+    }
+
+    @Override
+    public List<Enqueued> drainEnqueued(String clientID, int max) {
+        Deque<Enqueued> guids = m_enqueuedStore.get(clientID);
+        if (guids == null) {
+            return Collections.emptyList();
+        }
+        synchronized (guids) {
+            List<Enqueued> drained = new ArrayList<>(Math.min(max, guids.size()));
+            while (drained.size() < max && !guids.isEmpty()) {
+                drained.add(guids.pollFirst());
+            }
+            return drained;
+        }
+    }
+
+    private List<String> pollAll(String clientID) {
+        Deque<Enqueued> guids = m_enqueuedStore.get(clientID);
+        if (guids == null) {
+            return Collections.emptyList();
+        }
+        synchronized (guids) {
+            List<String> drained = new ArrayList<>(guids.size());
+            for (Enqueued enqueued : guids) {
+                drained.add(enqueued.guid);
+            }
+            guids.clear();
+            return drained;
+        }
+    }
+
+    @Override
+    public void secondPhaseAcknowledged(String clientID, int messageID) {
+        Set<Integer> messageIDs = m_secondPhaseStore.get(clientID);
+        if (messageIDs != null) {
+            messageIDs.remove(messageID);
+        }
+        packetIds(clientID).release(messageID);
+    }
+
+    @Override
+    public void secondPhaseAckWaiting(String clientID, int messageID) {
+        newSetIfAbsent(m_secondPhaseStore, clientID).add(messageID);
+        packetIds(clientID).markUsed(messageID);
+    }
+
+    @Override
+    public Set<Integer> secondPhaseWaiting(String clientID) {
+        Set<Integer> messageIDs = m_secondPhaseStore.get(clientID);
+        return messageIDs == null ? Collections.<Integer>emptySet() : new HashSet<>(messageIDs);
+    }
+
+    @Override
+    public void bindGuid(String clientID, int messageID, String guid) {
+        m_messagesStore.incUsageCounter(guid);
+        String previous = newMapIfAbsent(m_guidsMappings, clientID).put(messageID, guid);
+        if (previous != null) {
+            m_messagesStore.decUsageCounter(previous);
+        }
+    }
+
+    @Override
+    public void unbindGuid(String clientID, int messageID) {
+        Map<Integer, String> messageIdToGuid = m_guidsMappings.get(clientID);
+        String guid = messageIdToGuid == null ? null : messageIdToGuid.remove(messageID);
+        if (guid != null) {
+            m_messagesStore.decUsageCounter(guid);
+        }
+    }
+
+    @Override
+    public String mapToGuid(String clientID, int messageID) {
+        Map<Integer, String> messageIdToGuid = m_guidsMappings.get(clientID);
+        return messageIdToGuid == null ? null : messageIdToGuid.get(messageID);
+    }
+
+    @Override
+    public void clearSessionMessages(String clientID) {
+        Map<Integer, String> inflight = m_inflightStore.remove(clientID);
+        if (inflight != null) {
+            for (String guid : inflight.values()) {
+                m_messagesStore.decUsageCounter(guid);
+            }
+        }
+        for (String guid : pollAll(clientID)) {
+            m_messagesStore.decUsageCounter(guid);
+        }
+        Map<Integer, String> messageIdToGuid = m_guidsMappings.remove(clientID);
+        if (messageIdToGuid != null) {
+            for (String guid : messageIdToGuid.values()) {
+                m_messagesStore.decUsageCounter(guid);
+            }
+        }
+        m_secondPhaseStore.remove(clientID);
+        m_packetIds.remove(clientID);
+    }
+
+    /**
+     * @return the guids referenced by the sessions, once per reference.
+     */
+    List<String> referencedGuids() {
+        List<String> guids = new ArrayList<>();
+        for (Map<Integer, String> inflight : m_inflightStore.values()) {
+            guids.addAll(inflight.values());
+        }
+        for (Deque<Enqueued> queue : m_enqueuedStore.values()) {
+            synchronized (queue) {
+                for (Enqueued enqueued : queue) {
+                    guids.add(enqueued.guid);
+                }
+            }
+        }
+        for (Map<Integer, String> messageIdToGuid : m_guidsMappings.values()) {
+            guids.addAll(messageIdToGuid.values());
+        }
+        return guids;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Evicts the messages of a MapDBMessagesStore that are over the limits of an EvictionPolicy: older than the max age,
+ * beyond the max total bytes (oldest first) or beyond the max messages of their publisher (oldest first).
+ *
+ * Each run visits at most batchSize stored messages and resumes where the previous one stopped, so it's meant to be
+ * scheduled at a fixed delay on the store's own thread instead of blocking the routing of the messages. Retained
+ * messages and the QoS2 messages waiting for their PUBREL are never evicted, messages still bound to a session are and
+ * the session skips them. The totals are published by metrics().
+ */
+class MessageEvictor implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageEvictor.class);
+
+    private final MapDBMessagesStore m_store;
+    private final EvictionPolicy m_policy;
+
+    //the messages up to this sequence number were already evicted by age or size, or are kept
+    private Long m_headCursor;
+    //where the scan for the publishers over their limit resumes, null to start from the oldest message
+    private Long m_clientCursor;
+
+    private final AtomicLong m_evictedByAge = new AtomicLong();
+    private final AtomicLong m_evictedBySize = new AtomicLong();
+    private final AtomicLong m_evictedByClient = new AtomicLong();
+    private final AtomicLong m_reclaimedBytes = new AtomicLong();
+
+    MessageEvictor(MapDBMessagesStore store, EvictionPolicy policy) {
+        m_store = store;
+        m_policy = policy;
+    }
+
+    @Override
+    public void run() {
+        try {
+            evict(System.currentTimeMillis());
+        } catch (Throwable th) {
+            //don't let the exception cancel the next runs
+            LOG.error("Eviction of the stored messages failed", th);
+        }
+    }
+
+    void evict(long now) {
+        m_store.markEpoch(now);
+        int budget = m_policy.batchSize;
+        int byAge = 0;
+        int bySize = 0;
+        int byClient = 0;
+        long reclaimed = 0;
+
+        if (m_policy.maxAgeMillis > 0) {
+            Long lastExpired = m_store.sequenceStoredBefore(now - m_policy.maxAgeMillis);
+            Map.Entry<Long, byte[]> entry = m_store.nextStored(m_headCursor);
+            while (lastExpired != null && entry != null && entry.getKey() <= lastExpired && budget > 0) {
+                budget--;
+                m_headCursor = entry.getKey();
+                int freed = m_store.evict(entry.getKey());
+                if (freed >= 0) {
+                    byAge++;
+                    reclaimed += freed;
+                }
+                entry = m_store.nextStored(m_headCursor);
+            }
+        }
+
+        if (m_policy.maxBytes > 0) {
+            Map.Entry<Long, byte[]> entry = m_store.nextStored(m_headCursor);
+            while (m_store.storedBytes() > m_policy.maxBytes && entry != null && budget > 0) {
+                budget--;
+                m_headCursor = entry.getKey();
+                int freed = m_store.evict(entry.getKey());
+                if (freed >= 0) {
+                    bySize++;
+                    reclaimed += freed;
+                }
+                entry = m_store.nextStored(m_headCursor);
+            }
+        }
+
+        if (m_policy.maxMessagesPerClient > 0 && m_store.anyClientAbove(m_policy.maxMessagesPerClient)) {
+            while (budget > 0) {
+                Map.Entry<Long, byte[]> entry = m_store.nextStored(m_clientCursor);
+                if (entry == null) {
+                    //wrap around, the next run starts again from the oldest
+                    m_clientCursor = null;
+                    break;
+                }
+                budget--;
+                m_clientCursor = entry.getKey();
+                String clientID = StoredMessageCodec.clientIDOf(entry.getValue());
+                if (m_store.messagesOf(clientID) > m_policy.maxMessagesPerClient) {
+                    int freed = m_store.evict(entry.getKey());
+                    if (freed >= 0) {
+                        byClient++;
+                        reclaimed += freed;
+                    }
+                }
+            }
+        }
+
+        m_evictedByAge.addAndGet(byAge);
+        m_evictedBySize.addAndGet(bySize);
+        m_evictedByClient.addAndGet(byClient);
+        m_reclaimedBytes.addAndGet(reclaimed);
+        if (byAge + bySize + byClient > 0) {
+            LOG.info("Evicted {} messages by age, {} by size and {} over their publisher's limit, reclaimed {} bytes, " +
+                    "{} bytes still stored", byAge, bySize, byClient, reclaimed, m_store.storedBytes());
+        } else {
+            LOG.debug("Nothing to evict, {} bytes stored", m_store.storedBytes());
+        }
+    }
+
+    long evictedByAge() {
+        return m_evictedByAge.get();
+    }
+
+    long evictedBySize() {
+        return m_evictedBySize.get();
+    }
+
+    long evictedByClient() {
+        return m_evictedByClient.get();
+    }
+
+    long reclaimedBytes() {
+        return m_reclaimedBytes.get();
+    }
+
+    EvictionMetrics metrics() {
+        return new EvictionMetrics(evictedByAge(), evictedBySize(), evictedByClient(), reclaimedBytes(),
+                m_store.storedBytes());
+    }
+}
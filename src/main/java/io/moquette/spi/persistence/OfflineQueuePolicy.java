@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.server.config.IConfig;
+
+/**
+ * Bound of the queue of messages kept for a disconnected, not clean, session and what to drop when it's full.
+ */
+final class OfflineQueuePolicy {
+
+    static final OfflineQueuePolicy UNBOUNDED = new OfflineQueuePolicy(0, true);
+
+    //0 means unbounded
+    final int maxDepth;
+    final boolean dropOldest;
+
+    OfflineQueuePolicy(int maxDepth, boolean dropOldest) {
+        this.maxDepth = maxDepth;
+        this.dropOldest = dropOldest;
+    }
+
+    static OfflineQueuePolicy fromConfig(IConfig props) {
+        int maxDepth = Integer.parseInt(props.getProperty(BrokerConstants.OFFLINE_QUEUE_MAX_DEPTH_PROPERTY_NAME, "0"));
+        String policy = props.getProperty(BrokerConstants.OFFLINE_QUEUE_DROP_POLICY_PROPERTY_NAME,
+                BrokerConstants.OFFLINE_QUEUE_DROP_OLDEST);
+        switch (policy) {
+            case BrokerConstants.OFFLINE_QUEUE_DROP_OLDEST:
+                return new OfflineQueuePolicy(maxDepth, true);
+            case BrokerConstants.OFFLINE_QUEUE_DROP_NEWEST:
+                return new OfflineQueuePolicy(maxDepth, false);
+            default:
+                throw new IllegalArgumentException("Unknown offline_queue_drop_policy: " + policy);
+        }
+    }
+
+    boolean isFull(long depth) {
+        return maxDepth > 0 && depth >= maxDepth;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+/**
+ * Packet identifiers of a client session, a bitmap of the 65535 valid identifiers marks those in use and a cursor
+ * points to the last one allocated, so allocation proceeds in round robin and skips the identifiers still in flight.
+ * Allocation and release don't allocate memory, allocation scans a word (64 identifiers) at a time.
+ */
+final class PacketIdAllocator {
+
+    static final int MAX_PACKET_ID = 0xFFFF;
+
+    //bit i is set when the identifier i is in use, 0 isn't a valid identifier and is never set
+    private final long[] m_used = new long[(MAX_PACKET_ID + 1) / 64];
+    private int m_cursor;
+    private int m_inUse;
+
+    /**
+     * @return the first free identifier after the last allocated one.
+     * @throws IllegalStateException if all the identifiers are in use.
+     */
+    synchronized int allocate() {
+        if (m_inUse == MAX_PACKET_ID) {
+            throw new IllegalStateException("All the packet identifiers are in use");
+        }
+        int start = m_cursor == MAX_PACKET_ID ? 1 : m_cursor + 1;
+        int id = nextFree(start, MAX_PACKET_ID);
+        if (id < 0) {
+            id = nextFree(1, start - 1);
+        }
+        m_used[id >>> 6] |= 1L << id;
+        m_inUse++;
+        m_cursor = id;
+        return id;
+    }
+
+    private int nextFree(int from, int to) {
+        if (from > to) {
+            return -1;
+        }
+        int word = from >>> 6;
+        //mask out the bits before from
+        long free = ~m_used[word] & (-1L << from);
+        while (true) {
+            if (free != 0) {
+                int id = (word << 6) + Long.numberOfTrailingZeros(free);
+                return id <= to ? id : -1;
+            }
+            word++;
+            if (word << 6 > to) {
+                return -1;
+            }
+            free = ~m_used[word];
+        }
+    }
+
+    synchronized void release(int id) {
+        if (isUsedUnsafe(id)) {
+            m_used[id >>> 6] &= ~(1L << id);
+            m_inUse--;
+        }
+    }
+
+    /**
+     * Mark an identifier as in use, as when restoring the session state.
+     */
+    synchronized void markUsed(int id) {
+        if (id <= 0 || id > MAX_PACKET_ID) {
+            throw new IllegalArgumentException("Invalid packet identifier " + id);
+        }
+        if (!isUsedUnsafe(id)) {
+            m_used[id >>> 6] |= 1L << id;
+            m_inUse++;
+        }
+    }
+
+    synchronized boolean isUsed(int id) {
+        return isUsedUnsafe(id);
+    }
+
+    private boolean isUsedUnsafe(int id) {
+        return id > 0 && id <= MAX_PACKET_ID && (m_used[id >>> 6] & (1L << id)) != 0;
+    }
+
+    synchronized int inUse() {
+        return m_inUse;
+    }
+
+    /**
+     * @return the identifiers in use, the compact form to persist.
+     */
+    synchronized int[] usedIds() {
+        int[] ids = new int[m_inUse];
+        int i = 0;
+        for (int word = 0; word < m_used.length && i < ids.length; word++) {
+            long bits = m_used[word];
+            while (bits != 0) {
+                int bit = Long.numberOfTrailingZeros(bits);
+                ids[i++] = (word << 6) + bit;
+                bits &= bits - 1;
+            }
+        }
+        return ids;
+    }
+
+    static PacketIdAllocator fromUsedIds(int[] ids) {
+        PacketIdAllocator allocator = new PacketIdAllocator();
+        for (int id : ids) {
+            allocator.markUsed(id);
+        }
+        return allocator;
+    }
+}
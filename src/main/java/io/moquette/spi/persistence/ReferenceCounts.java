@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Usage counters of the stored messages, by guid. They live on the heap, the durable stores rebuild them at startup
+ * from the bindings that hold the references.
+ */
+final class ReferenceCounts {
+
+    private final ConcurrentMap<String, AtomicInteger> m_counts = new ConcurrentHashMap<>();
+
+    void increment(String guid) {
+        AtomicInteger count = m_counts.get(guid);
+        if (count == null) {
+            count = m_counts.putIfAbsent(guid, new AtomicInteger(1));
+            if (count == null) {
+                return;
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * @return true if the last reference to the message was released.
+     */
+    boolean decrement(String guid) {
+        AtomicInteger count = m_counts.get(guid);
+        if (count == null) {
+            return false;
+        }
+        if (count.decrementAndGet() > 0) {
+            return false;
+        }
+        m_counts.remove(guid, count);
+        return true;
+    }
+
+    boolean isReferenced(String guid) {
+        AtomicInteger count = m_counts.get(guid);
+        return count != null && count.get() > 0;
+    }
+
+    int count(String guid) {
+        AtomicInteger count = m_counts.get(guid);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Drop the counter of a message removed while still referenced.
+     */
+    void forget(String guid) {
+        m_counts.remove(guid);
+    }
+
+    void clear() {
+        m_counts.clear();
+    }
+}
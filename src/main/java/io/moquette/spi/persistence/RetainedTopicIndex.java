@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In memory index of the retained topics, shaped like the topic tree, that maps each retained topic to the guid of
+ * its message. A subscription filter walks the trie down to the matching topics only, instead of testing every
+ * retained topic.
+ *
+ * Lookups don't lock, updates are serialized.
+ */
+class RetainedTopicIndex {
+
+    private static final class Node {
+        final Map<String, Node> m_children = new ConcurrentHashMap<>();
+        volatile String m_guid;
+    }
+
+    private final Node m_root = new Node();
+
+    /**
+     * Bind topic to guid, replacing any guid previously retained for the topic.
+     */
+    synchronized void put(String topic, String guid) {
+        Node current = m_root;
+        for (String token : split(topic)) {
+            Node child = current.m_children.get(token);
+            if (child == null) {
+                child = new Node();
+                current.m_children.put(token, child);
+            }
+            current = child;
+        }
+        current.m_guid = guid;
+    }
+
+    /**
+     * Remove the retained guid of topic, pruning the nodes left empty.
+     */
+    synchronized void remove(String topic) {
+        String[] tokens = split(topic);
+        Node[] path = new Node[tokens.length + 1];
+        path[0] = m_root;
+        for (int i = 0; i < tokens.length; i++) {
+            path[i + 1] = path[i].m_children.get(tokens[i]);
+            if (path[i + 1] == null) {
+                return;
+            }
+        }
+        path[tokens.length].m_guid = null;
+        for (int i = tokens.length; i > 0; i--) {
+            Node node = path[i];
+            if (node.m_guid != null || !node.m_children.isEmpty()) {
+                break;
+            }
+            path[i - 1].m_children.remove(tokens[i - 1]);
+        }
+    }
+
+    /**
+     * @return the guids of the retained topics matched by the topic filter, which may contain wildcards.
+     */
+    Collection<String> matching(String topicFilter) {
+        List<String> guids = new ArrayList<>();
+        collect(m_root, split(topicFilter), 0, guids);
+        return guids;
+    }
+
+    private static void collect(Node node, String[] filter, int index, List<String> guids) {
+        if (index == filter.length) {
+            addGuid(node, guids);
+            return;
+        }
+        String token = filter[index];
+        if ("#".equals(token)) {
+            //# matches the parent level too
+            addSubtree(node, guids);
+        } else if ("+".equals(token)) {
+            for (Node child : node.m_children.values()) {
+                collect(child, filter, index + 1, guids);
+            }
+        } else {
+            Node child = node.m_children.get(token);
+            if (child != null) {
+                collect(child, filter, index + 1, guids);
+            }
+        }
+    }
+
+    private static void addSubtree(Node node, List<String> guids) {
+        addGuid(node, guids);
+        for (Node child : node.m_children.values()) {
+            addSubtree(child, guids);
+        }
+    }
+
+    private static void addGuid(Node node, List<String> guids) {
+        String guid = node.m_guid;
+        if (guid != null) {
+            guids.add(guid);
+        }
+    }
+
+    private static String[] split(String topic) {
+        return topic.split("/", -1);
+    }
+}
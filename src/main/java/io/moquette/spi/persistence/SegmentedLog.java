@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log split in memory mapped segment files of fixed size.
+ *
+ * Each record is framed as <code>[length:int][crc32:int][type:byte][payload]</code>, where length counts the type
+ * and the payload and the CRC covers the same bytes. Segments are zero filled when created so a zero length marks
+ * the end of the written part, a CRC mismatch marks a torn write at the tail after a crash.
+ *
+ * Durability is chosen at construction: either every appender waits for its record to be forced to disk (appenders
+ * arriving while a force is running are covered by the next one, so they share it) or records are forced in the
+ * background by {@link #syncAll()} at a fixed interval.
+ *
+ * A checkpoint rolls to a new segment, then the caller writes a snapshot of the whole state that replaces every
+ * segment before the new one. The snapshot is written to a temporary file and renamed once complete, a crash
+ * while compacting leaves the previous snapshot and segments in place.
+ *
+ * Appending and rolling must be serialized by the caller, that synchronizes on the log instance.
+ */
+class SegmentedLog {
+
+    interface RecordHandler {
+        void onRecord(byte type, DataInputStream in) throws IOException;
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedLog.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".wal";
+    private static final String SNAPSHOT_NAME = "snapshot.wal";
+    private static final String SNAPSHOT_TMP_NAME = "snapshot.wal.tmp";
+    private static final int HEADER_SIZE = 8;
+
+    static final byte CHECKPOINT = 0;
+
+    private final File m_directory;
+    private final int m_segmentSize;
+    private final boolean m_syncEachAppend;
+    private final int m_compactionSegments;
+
+    private long m_segmentSeq;
+    private MappedByteBuffer m_segment;
+    private int m_segmentsSinceCheckpoint;
+    //bytes appended since opening, used as position of the records
+    private long m_appended;
+
+    private final Object m_syncLock = new Object();
+    private volatile long m_synced;
+
+    SegmentedLog(File directory, int segmentSize, boolean syncEachAppend, int compactionSegments) {
+        m_directory = directory;
+        m_segmentSize = segmentSize;
+        m_syncEachAppend = syncEachAppend;
+        m_compactionSegments = compactionSegments;
+    }
+
+    /**
+     * Replay the snapshot and the segments following it, then start a fresh segment for the appends.
+     */
+    synchronized void open(RecordHandler handler) throws IOException {
+        if (!m_directory.isDirectory() && !m_directory.mkdirs()) {
+            throw new IOException("Can't create the log directory " + m_directory);
+        }
+        File tmp = new File(m_directory, SNAPSHOT_TMP_NAME);
+        if (tmp.exists() && !tmp.delete()) {
+            LOG.warn("Can't delete the incomplete snapshot {}", tmp);
+        }
+
+        long startSeq = 0;
+        File snapshot = new File(m_directory, SNAPSHOT_NAME);
+        if (snapshot.exists()) {
+            startSeq = replaySnapshot(snapshot, handler);
+        }
+
+        int records = 0;
+        m_segmentSeq = startSeq;
+        //the segments of the previous runs count toward the compaction, else frequent restarts would never reach it
+        m_segmentsSinceCheckpoint = 0;
+        for (Map.Entry<Long, File> segment : listSegments().entrySet()) {
+            if (segment.getKey() < startSeq) {
+                //left behind by a compaction interrupted after the snapshot was renamed
+                deleteFile(segment.getValue());
+                continue;
+            }
+            records += replaySegment(segment.getValue(), handler);
+            m_segmentSeq = segment.getKey() + 1;
+            m_segmentsSinceCheckpoint++;
+        }
+        LOG.info("Replayed {} log records from {} segments starting at segment {}", records, m_segmentsSinceCheckpoint,
+                startSeq);
+        m_segment = createSegment(m_segmentSeq);
+    }
+
+    private long replaySnapshot(File snapshot, RecordHandler handler) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            byte[] record;
+            while ((record = readRecord(in)) != null) {
+                records.add(record);
+            }
+        }
+        if (records.isEmpty() || records.get(records.size() - 1)[0] != CHECKPOINT) {
+            throw new IOException("Snapshot " + snapshot + " doesn't end with a checkpoint");
+        }
+        byte[] checkpoint = records.remove(records.size() - 1);
+        long startSeq = new DataInputStream(new ByteArrayInputStream(checkpoint, 1, checkpoint.length - 1)).readLong();
+        for (byte[] record : records) {
+            dispatch(record, handler);
+        }
+        LOG.info("Loaded snapshot with {} records, checkpoint at segment {}", records.size(), startSeq);
+        return startSeq;
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException eof) {
+            return null;
+        }
+        int crc = in.readInt();
+        byte[] record = new byte[length];
+        in.readFully(record);
+        if (crc != crc(record, 0, length)) {
+            throw new IOException("Corrupted snapshot record");
+        }
+        return record;
+    }
+
+    private int replaySegment(File file, RecordHandler handler) throws IOException {
+        MappedByteBuffer segment;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        int records = 0;
+        while (segment.remaining() >= HEADER_SIZE) {
+            int length = segment.getInt();
+            if (length <= 0) {
+                break;
+            }
+            int crc = segment.getInt();
+            if (length > segment.remaining()) {
+                LOG.warn("Truncated record at the tail of segment {}", file);
+                break;
+            }
+            byte[] record = new byte[length];
+            segment.get(record);
+            if (crc != crc(record, 0, length)) {
+                LOG.warn("Torn record at the tail of segment {}, ignoring the rest of it", file);
+                break;
+            }
+            dispatch(record, handler);
+            records++;
+        }
+        return records;
+    }
+
+    private static void dispatch(byte[] record, RecordHandler handler) throws IOException {
+        handler.onRecord(record[0], new DataInputStream(new ByteArrayInputStream(record, 1, record.length - 1)));
+    }
+
+    private TreeMap<Long, File> listSegments() {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        File[] files = m_directory.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                String seq = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length());
+                segments.put(Long.parseLong(seq), file);
+            }
+        }
+        return segments;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(m_directory, String.format("%s%020d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer createSegment(long seq) throws IOException {
+        return createSegment(seq, m_segmentSize);
+    }
+
+    private MappedByteBuffer createSegment(long seq, int size) throws IOException {
+        //the mapping stays valid once the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFile(seq), "rw")) {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Append a record, in sync mode the caller must then invoke {@link #sync(long)} with the returned position,
+     * outside of any lock so that concurrent appenders can share the same force.
+     *
+     * @return the position following the record.
+     */
+    synchronized long append(byte type, byte[] payload) throws IOException {
+        int length = payload.length + 1;
+        if (m_segment.remaining() < HEADER_SIZE + length) {
+            roll(HEADER_SIZE + length);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        m_segment.putInt(length);
+        m_segment.putInt((int) crc.getValue());
+        m_segment.put(type);
+        m_segment.put(payload);
+        m_appended += HEADER_SIZE + length;
+        return m_appended;
+    }
+
+    private void roll(int minSize) throws IOException {
+        //force the full segment now, sync only tracks the current one
+        m_segment.force();
+        m_segmentSeq++;
+        m_segment = createSegment(m_segmentSeq, Math.max(m_segmentSize, minSize));
+        m_segmentsSinceCheckpoint++;
+    }
+
+    /**
+     * Force the log up to position to disk, it's a no op when syncing each append isn't configured.
+     */
+    void sync(long position) {
+        if (m_syncEachAppend) {
+            force(position);
+        }
+    }
+
+    /**
+     * Force everything appended so far.
+     */
+    void syncAll() {
+        long position;
+        synchronized (this) {
+            position = m_appended;
+        }
+        force(position);
+    }
+
+    private void force(long position) {
+        synchronized (m_syncLock) {
+            if (m_synced >= position) {
+                //forced by whoever held the lock before us
+                return;
+            }
+            MappedByteBuffer segment;
+            long target;
+            synchronized (this) {
+                segment = m_segment;
+                target = m_appended;
+            }
+            if (segment == null) {
+                return;
+            }
+            segment.force();
+            m_synced = target;
+        }
+    }
+
+    boolean isCompactionDue() {
+        synchronized (this) {
+            return m_segmentsSinceCheckpoint >= m_compactionSegments;
+        }
+    }
+
+    /**
+     * Start a new segment that will follow the snapshot being taken, the caller must capture the state before
+     * releasing the lock on the log.
+     *
+     * @return the sequence of the first segment not covered by the snapshot.
+     */
+    synchronized long rollForCheckpoint() throws IOException {
+        roll(0);
+        m_segmentsSinceCheckpoint = 0;
+        return m_segmentSeq;
+    }
+
+    /**
+     * Replace the snapshot and all the segments before checkpointSeq with the given records.
+     *
+     * @param records each one is the type followed by the payload.
+     */
+    void writeSnapshot(long checkpointSeq, List<byte[]> records) throws IOException {
+        File tmp = new File(m_directory, SNAPSHOT_TMP_NAME);
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            for (byte[] record : records) {
+                writeRecord(out, record);
+            }
+            ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+            DataOutputStream checkpointOut = new DataOutputStream(checkpoint);
+            checkpointOut.writeByte(CHECKPOINT);
+            checkpointOut.writeLong(checkpointSeq);
+            writeRecord(out, checkpoint.toByteArray());
+            out.flush();
+            fos.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), new File(m_directory, SNAPSHOT_NAME).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        for (Map.Entry<Long, File> segment : listSegments().headMap(checkpointSeq).entrySet()) {
+            deleteFile(segment.getValue());
+        }
+        LOG.info("Compacted the log in a snapshot of {} records, checkpoint at segment {}", records.size(), checkpointSeq);
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        out.writeInt(record.length);
+        out.writeInt(crc(record, 0, record.length));
+        out.write(record);
+    }
+
+    private static int crc(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            LOG.warn("Can't delete log file {}", file);
+        }
+    }
+
+    void close() {
+        syncAll();
+        synchronized (this) {
+            m_segment = null;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Compact binary layout of a stored message, used in place of the Java serialization of StoredMessage:
+ * <pre>
+ * version byte | flags byte | varint topic id | [clientID] | [messageID short] | varint payload length | payload
+ * </pre>
+ * where the flags hold the QoS in the lowest two bits, then the retained flag and the presence of the optional fields.
+ * The guid isn't part of it, it's the key the message is stored by.
+ */
+final class StoredMessageCodec {
+
+    static final byte VERSION = 1;
+
+    private static final int QOS_MASK = 0x03;
+    private static final int RETAINED = 0x04;
+    private static final int HAS_CLIENT_ID = 0x08;
+    private static final int HAS_MESSAGE_ID = 0x10;
+
+    private StoredMessageCodec() {
+    }
+
+    static byte[] encode(StoredMessage msg, TopicDictionary topics) {
+        ByteBuffer payload = msg.getMessage();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.remaining() + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int flags = msg.getQos().byteValue() & QOS_MASK;
+            if (msg.isRetained()) {
+                flags |= RETAINED;
+            }
+            if (msg.getClientID() != null) {
+                flags |= HAS_CLIENT_ID;
+            }
+            if (msg.getMessageID() != null) {
+                flags |= HAS_MESSAGE_ID;
+            }
+            out.writeByte(VERSION);
+            out.writeByte(flags);
+            writeVarInt(out, topics.intern(msg.getTopic()));
+            if (msg.getClientID() != null) {
+                out.writeUTF(msg.getClientID());
+            }
+            if (msg.getMessageID() != null) {
+                out.writeShort(msg.getMessageID());
+            }
+            writeVarInt(out, payload.remaining());
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+            out.flush();
+        } catch (IOException ex) {
+            //writing to a byte array doesn't fail
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    static StoredMessage decode(String guid, byte[] bytes, TopicDictionary topics) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            byte version = in.readByte();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unsupported stored message version " + version);
+            }
+            int flags = in.readUnsignedByte();
+            String topic = topics.topic(readVarInt(in));
+            String clientID = (flags & HAS_CLIENT_ID) != 0 ? in.readUTF() : null;
+            Integer messageID = (flags & HAS_MESSAGE_ID) != 0 ? in.readUnsignedShort() : null;
+            byte[] payload = new byte[readVarInt(in)];
+            in.readFully(payload);
+
+            StoredMessage msg = new StoredMessage(payload, AbstractMessage.QOSType.valueOf((byte) (flags & QOS_MASK)),
+                    topic);
+            msg.setGuid(guid);
+            msg.setRetained((flags & RETAINED) != 0);
+            msg.setClientID(clientID);
+            msg.setMessageID(messageID);
+            return msg;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Corrupted stored message " + guid, ex);
+        }
+    }
+
+    /**
+     * @return the clientID of the encoded message, without decoding the rest of it.
+     */
+    static String clientIDOf(byte[] bytes) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        try {
+            in.readByte();
+            int flags = in.readUnsignedByte();
+            readVarInt(in);
+            return (flags & HAS_CLIENT_ID) != 0 ? in.readUTF() : null;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Corrupted stored message", ex);
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
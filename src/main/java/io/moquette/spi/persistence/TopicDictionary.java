@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interns the topics of the stored messages, so that each message references its topic by a small integer. The
+ * devices publish on a bounded set of topics, so entries are never removed.
+ */
+final class TopicDictionary {
+
+    private final ConcurrentMap<String, Integer> m_ids = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Integer, String> m_topics = new ConcurrentHashMap<>();
+    //maps id -> topic, the persisted copy, could be null for a dictionary living only on the heap
+    private final Map<Integer, String> m_store;
+
+    TopicDictionary(Map<Integer, String> store) {
+        m_store = store;
+        if (store != null) {
+            for (Map.Entry<Integer, String> entry : store.entrySet()) {
+                m_ids.put(entry.getValue(), entry.getKey());
+                m_topics.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    int intern(String topic) {
+        Integer id = m_ids.get(topic);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = m_ids.get(topic);
+            if (id == null) {
+                id = m_topics.size() + 1;
+                if (m_store != null) {
+                    m_store.put(id, topic);
+                }
+                m_topics.put(id, topic);
+                m_ids.put(topic, id);
+            }
+            return id;
+        }
+    }
+
+    String topic(int id) {
+        String topic = m_topics.get(id);
+        if (topic == null) {
+            throw new IllegalStateException("Unknown topic id " + id);
+        }
+        return topic;
+    }
+
+    int size() {
+        return m_topics.size();
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.MQTTException;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import static io.moquette.server.netty.metrics.LatencyMetricsCollector.Stage.STORE;
+import static io.moquette.spi.persistence.WALRecords.*;
+
+/**
+ * IMessagesStore that keeps the messages on the heap and appends every change to the write ahead log before
+ * returning. Replaying the log rebuilds the same state.
+ */
+class WALMessagesStore extends MemoryMessagesStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WALMessagesStore.class);
+
+    private final SegmentedLog m_log;
+    private final LatencyMetricsCollector m_latencyMetrics;
+    //the usage counters aren't tracked while the log is replayed, they are rebuilt afterwards
+    private volatile boolean m_replaying = true;
+
+    WALMessagesStore(SegmentedLog log, LatencyMetricsCollector latencyMetrics) {
+        m_log = log;
+        m_latencyMetrics = latencyMetrics;
+    }
+
+    private long append(byte type, byte[] payload) {
+        try {
+            return m_log.append(type, payload);
+        } catch (IOException ex) {
+            LOG.error("Can't append to the write ahead log", ex);
+            throw new MQTTException("Can't append to the write ahead log", ex);
+        }
+    }
+
+    @Override
+    public void storeRetained(String topic, String guid) {
+        long start = System.nanoTime();
+        byte[] record = builder().string(topic).string(guid).build();
+        long position;
+        synchronized (m_log) {
+            super.storeRetained(topic, guid);
+            position = append(RETAINED_STORED, record);
+        }
+        m_log.sync(position);
+        m_latencyMetrics.record(STORE, start);
+    }
+
+    @Override
+    public String storePublishForFuture(StoredMessage evt) {
+        long start = System.nanoTime();
+        String guid;
+        long position;
+        synchronized (m_log) {
+            guid = super.storePublishForFuture(evt);
+            position = append(MESSAGE_STORED, builder().message(evt).build());
+        }
+        m_log.sync(position);
+        m_latencyMetrics.record(STORE, start);
+        return guid;
+    }
+
+    /**
+     * A message dropped when its last reference is released isn't logged, the replay restores it and
+     * {@link #rebuildReferences(Collection)} drops it again.
+     */
+    @Override
+    public void decUsageCounter(String guid) {
+        if (!m_replaying) {
+            super.decUsageCounter(guid);
+        }
+    }
+
+    @Override
+    public void incUsageCounter(String guid) {
+        if (!m_replaying) {
+            super.incUsageCounter(guid);
+        }
+    }
+
+    @Override
+    void rebuildReferences(Collection<String> sessionGuids) {
+        super.rebuildReferences(sessionGuids);
+        m_replaying = false;
+    }
+
+    @Override
+    public StoredMessage getMessageByGuid(String guid) {
+        long start = System.nanoTime();
+        StoredMessage msg = super.getMessageByGuid(guid);
+        m_latencyMetrics.record(STORE, start);
+        return msg;
+    }
+
+    @Override
+    public void cleanRetained(String topic) {
+        byte[] record = builder().string(topic).build();
+        long position;
+        synchronized (m_log) {
+            super.cleanRetained(topic);
+            position = append(RETAINED_CLEANED, record);
+        }
+        m_log.sync(position);
+    }
+
+    /**
+     * Apply a replayed record, without logging it again.
+     *
+     * @return false if the record doesn't belong to this store.
+     */
+    boolean replay(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case MESSAGE_STORED:
+            case MESSAGE_RESTORED:
+                restoreMessage(readMessage(in));
+                return true;
+            case RETAINED_STORED: {
+                String topic = in.readUTF();
+                super.storeRetained(topic, in.readUTF());
+                return true;
+            }
+            case RETAINED_CLEANED:
+                super.cleanRetained(in.readUTF());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Write the current state as snapshot records, invoked holding the lock on the log. The messages on the heap are
+     * the referenced ones, the others were dropped when their last reference was released.
+     */
+    void snapshot(List<byte[]> records) {
+        for (Map.Entry<String, String> retained : m_retainedStore.entrySet()) {
+            records.add(builder().string(retained.getKey()).string(retained.getValue()).build(RETAINED_STORED));
+        }
+        for (StoredMessage msg : m_persistentMessageStore.values()) {
+            records.add(builder().message(msg).build(MESSAGE_RESTORED));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.proto.MQTTException;
+import io.moquette.server.config.IConfig;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IPersistentStore;
+import io.moquette.spi.ISessionsStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Storage backed by a segmented write ahead log: the stores keep their state on the heap and append each change
+ * to the log, at startup the log is replayed to rebuild it. Durability is set by the wal_fsync property, sync forces
+ * every change to disk before the store call returns, batch forces every wal_fsync_interval milliseconds.
+ *
+ * When enough segments are filled the state is compacted in a snapshot, dropping the acknowledged messages, and
+ * the segments it covers are deleted.
+ */
+public class WALPersistentStore implements IPersistentStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WALPersistentStore.class);
+
+    private final SegmentedLog m_log;
+    private final boolean m_syncEachAppend;
+    private final int m_fsyncInterval;
+    private final LatencyMetricsCollector m_latencyMetrics;
+    private final OfflineQueuePolicy m_offlineQueuePolicy;
+    private WALMessagesStore m_messagesStore;
+    private WALSessionsStore m_sessionsStore;
+    private ScheduledExecutorService m_scheduler;
+
+    public WALPersistentStore(IConfig props, LatencyMetricsCollector latencyMetrics) {
+        m_latencyMetrics = latencyMetrics;
+        String directory = props.getProperty(BrokerConstants.WAL_DIRECTORY_PROPERTY_NAME, BrokerConstants.DEFAULT_WAL_DIRECTORY);
+        int segmentSize = Integer.parseInt(props.getProperty(BrokerConstants.WAL_SEGMENT_SIZE_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.WAL_SEGMENT_SIZE)));
+        String fsync = props.getProperty(BrokerConstants.WAL_FSYNC_PROPERTY_NAME, BrokerConstants.WAL_FSYNC_BATCH);
+        switch (fsync) {
+            case BrokerConstants.WAL_FSYNC_SYNC:
+                m_syncEachAppend = true;
+                break;
+            case BrokerConstants.WAL_FSYNC_BATCH:
+                m_syncEachAppend = false;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown wal_fsync mode: " + fsync);
+        }
+        m_fsyncInterval = Integer.parseInt(props.getProperty(BrokerConstants.WAL_FSYNC_INTERVAL_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.WAL_FSYNC_INTERVAL)));
+        int compactionSegments = Integer.parseInt(props.getProperty(BrokerConstants.WAL_COMPACTION_SEGMENTS_PROPERTY_NAME,
+                Integer.toString(BrokerConstants.WAL_COMPACTION_SEGMENTS)));
+        m_offlineQueuePolicy = OfflineQueuePolicy.fromConfig(props);
+        m_log = new SegmentedLog(new File(directory), segmentSize, m_syncEachAppend, compactionSegments);
+        LOG.info("Write ahead log in {} with {} bytes segments and {} fsync", directory, segmentSize, fsync);
+    }
+
+    @Override
+    public void initStore() {
+        m_messagesStore = new WALMessagesStore(m_log, m_latencyMetrics);
+        m_sessionsStore = new WALSessionsStore(m_log, m_messagesStore, m_offlineQueuePolicy, m_latencyMetrics);
+        try {
+            m_log.open(new SegmentedLog.RecordHandler() {
+                @Override
+                public void onRecord(byte type, DataInputStream in) throws IOException {
+                    if (!m_messagesStore.replay(type, in) && !m_sessionsStore.replay(type, in)) {
+                        LOG.warn("Skipping log record of unknown type {}", type);
+                    }
+                }
+            });
+        } catch (IOException ex) {
+            LOG.error("Can't replay the write ahead log", ex);
+            throw new MQTTException("Can't replay the write ahead log", ex);
+        }
+        m_messagesStore.rebuildReferences(m_sessionsStore.referencedGuids());
+
+        m_scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "moquette-wal");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        if (!m_syncEachAppend) {
+            m_scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    m_log.syncAll();
+                }
+            }, m_fsyncInterval, m_fsyncInterval, TimeUnit.MILLISECONDS);
+        }
+        m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                if (m_log.isCompactionDue()) {
+                    compact();
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * The stores are built, and their state replayed, by initStore.
+     */
+    @Override
+    public IMessagesStore messagesStore() {
+        return m_messagesStore;
+    }
+
+    @Override
+    public ISessionsStore sessionsStore(IMessagesStore msgStore) {
+        return m_sessionsStore;
+    }
+
+    void compact() {
+        List<byte[]> records = new ArrayList<>();
+        long checkpointSeq;
+        try {
+            synchronized (m_log) {
+                checkpointSeq = m_log.rollForCheckpoint();
+                m_sessionsStore.snapshot(records);
+                m_messagesStore.snapshot(records);
+            }
+            m_log.writeSnapshot(checkpointSeq, records);
+        } catch (IOException ex) {
+            LOG.error("Log compaction failed, the segments are kept", ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        m_scheduler.shutdown();
+        try {
+            m_scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+        m_log.close();
+        LOG.debug("Write ahead log closed");
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Record types of the write ahead log and their encoding, the stores decode the payloads in the same field order.
+ */
+final class WALRecords {
+
+    //messages store records, SegmentedLog.CHECKPOINT is 0
+    static final byte MESSAGE_STORED = 1;
+    static final byte MESSAGE_RESTORED = 2;
+    static final byte RETAINED_STORED = 5;
+    static final byte RETAINED_CLEANED = 6;
+
+    //sessions store records
+    static final byte SESSION_UPDATED = 20;
+    static final byte SUBSCRIPTION_ADDED = 21;
+    static final byte SUBSCRIPTION_REMOVED = 22;
+    static final byte SUBSCRIPTIONS_WIPED = 23;
+    static final byte INFLIGHT = 24;
+    static final byte INFLIGHT_ACK = 25;
+    static final byte ENQUEUED = 26;
+    static final byte DRAINED = 27;
+    static final byte SECOND_PHASE_WAITING = 28;
+    static final byte SECOND_PHASE_ACK = 29;
+    static final byte GUID_MAPPED = 30;
+    static final byte GUID_UNMAPPED = 31;
+    static final byte SESSION_MESSAGES_CLEARED = 32;
+    static final byte DRAINED_SOME = 33;
+    static final byte ENQUEUED_RETAINED = 34;
+
+    private WALRecords() {
+    }
+
+    /**
+     * Builds the payload of a record.
+     */
+    static final class Builder {
+        private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream m_out = new DataOutputStream(m_bytes);
+
+        Builder string(String value) {
+            try {
+                m_out.writeUTF(value);
+            } catch (IOException ex) {
+                //can't happen writing on memory
+                throw new IllegalStateException(ex);
+            }
+            return this;
+        }
+
+        Builder integer(int value) {
+            try {
+                m_out.writeInt(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return this;
+        }
+
+        Builder bool(boolean value) {
+            try {
+                m_out.writeBoolean(value);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return this;
+        }
+
+        Builder message(StoredMessage msg) {
+            try {
+                writeMessage(m_out, msg);
+            } catch (IOException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return this;
+        }
+
+        byte[] build() {
+            return m_bytes.toByteArray();
+        }
+
+        /**
+         * @return the type followed by the payload, as records are held in a snapshot.
+         */
+        byte[] build(byte type) {
+            byte[] payload = m_bytes.toByteArray();
+            byte[] record = new byte[payload.length + 1];
+            record[0] = type;
+            System.arraycopy(payload, 0, record, 1, payload.length);
+            return record;
+        }
+    }
+
+    static Builder builder() {
+        return new Builder();
+    }
+
+    private static void writeMessage(DataOutputStream out, StoredMessage msg) throws IOException {
+        out.writeUTF(msg.getGuid());
+        out.writeByte(msg.getQos().byteValue());
+        out.writeUTF(msg.getTopic());
+        out.writeBoolean(msg.isRetained());
+        out.writeBoolean(msg.getClientID() != null);
+        if (msg.getClientID() != null) {
+            out.writeUTF(msg.getClientID());
+        }
+        out.writeBoolean(msg.getMessageID() != null);
+        if (msg.getMessageID() != null) {
+            out.writeInt(msg.getMessageID());
+        }
+        ByteBuffer payload = msg.getMessage();
+        out.writeInt(payload.remaining());
+        out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+    }
+
+    static StoredMessage readMessage(DataInputStream in) throws IOException {
+        String guid = in.readUTF();
+        AbstractMessage.QOSType qos = AbstractMessage.QOSType.valueOf(in.readByte());
+        String topic = in.readUTF();
+        boolean retained = in.readBoolean();
+        String clientID = in.readBoolean() ? in.readUTF() : null;
+        Integer messageID = in.readBoolean() ? in.readInt() : null;
+        byte[] payload = new byte[in.readInt()];
+        in.readFully(payload);
+
+        StoredMessage msg = new StoredMessage(payload, qos, topic);
+        msg.setGuid(guid);
+        msg.setRetained(retained);
+        msg.setClientID(clientID);
+        msg.setMessageID(messageID);
+        return msg;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.MQTTException;
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+import static io.moquette.server.netty.metrics.LatencyMetricsCollector.Stage.STORE;
+import static io.moquette.spi.persistence.WALRecords.*;
+
+/**
+ * ISessionsStore that keeps the sessions on the heap and appends every change to the write ahead log before
+ * returning. Replaying the log rebuilds the same state.
+ */
+class WALSessionsStore extends MemorySessionsStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WALSessionsStore.class);
+
+    private final SegmentedLog m_log;
+    private final LatencyMetricsCollector m_latencyMetrics;
+
+    WALSessionsStore(SegmentedLog log, IMessagesStore messagesStore, OfflineQueuePolicy offlineQueuePolicy,
+                     LatencyMetricsCollector latencyMetrics) {
+        super(messagesStore, offlineQueuePolicy);
+        m_log = log;
+        m_latencyMetrics = latencyMetrics;
+    }
+
+    private long append(byte type, byte[] payload) {
+        try {
+            return m_log.append(type, payload);
+        } catch (IOException ex) {
+            LOG.error("Can't append to the write ahead log", ex);
+            throw new MQTTException("Can't append to the write ahead log", ex);
+        }
+    }
+
+    @Override
+    public void addNewSubscription(Subscription newSubscription) {
+        byte[] record = builder().string(newSubscription.getClientId()).string(newSubscription.getTopicFilter())
+                .integer(newSubscription.getRequestedQos().byteValue()).build();
+        long position;
+        synchronized (m_log) {
+            super.addNewSubscription(newSubscription);
+            position = append(SUBSCRIPTION_ADDED, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public void removeSubscription(String topicFilter, String clientID) {
+        byte[] record = builder().string(clientID).string(topicFilter).build();
+        long position;
+        synchronized (m_log) {
+            super.removeSubscription(topicFilter, clientID);
+            position = append(SUBSCRIPTION_REMOVED, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public void wipeSubscriptions(String clientID) {
+        byte[] record = builder().string(clientID).build();
+        long position;
+        synchronized (m_log) {
+            super.wipeSubscriptions(clientID);
+            position = append(SUBSCRIPTIONS_WIPED, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public ClientSession createNewSession(String clientID, boolean cleanSession) {
+        byte[] record = builder().string(clientID).bool(cleanSession).build();
+        ClientSession session;
+        long position;
+        synchronized (m_log) {
+            session = super.createNewSession(clientID, cleanSession);
+            position = append(SESSION_UPDATED, record);
+        }
+        m_log.sync(position);
+        return session;
+    }
+
+    @Override
+    public void updateCleanStatus(String clientID, boolean cleanSession) {
+        byte[] record = builder().string(clientID).bool(cleanSession).build();
+        long position;
+        synchronized (m_log) {
+            super.updateCleanStatus(clientID, cleanSession);
+            position = append(SESSION_UPDATED, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public void inFlightAck(String clientID, int messageID) {
+        long start = System.nanoTime();
+        byte[] record = builder().string(clientID).integer(messageID).build();
+        long position;
+        synchronized (m_log) {
+            super.inFlightAck(clientID, messageID);
+            position = append(INFLIGHT_ACK, record);
+        }
+        m_log.sync(position);
+        m_latencyMetrics.record(STORE, start);
+    }
+
+    @Override
+    public void inFlight(String clientID, int messageID, String guid) {
+        long start = System.nanoTime();
+        byte[] record = builder().string(clientID).integer(messageID).string(guid).build();
+        long position;
+        synchronized (m_log) {
+            super.inFlight(clientID, messageID, guid);
+            position = append(INFLIGHT, record);
+        }
+        m_log.sync(position);
+        m_latencyMetrics.record(STORE, start);
+    }
+
+    @Override
+    public void bindToDeliver(String guid, String clientID) {
+        bindToDeliver(guid, clientID, false);
+    }
+
+    @Override
+    public void bindToDeliver(String guid, String clientID, boolean retained) {
+        long start = System.nanoTime();
+        byte[] record = builder().string(clientID).string(guid).build();
+        long position;
+        synchronized (m_log) {
+            super.bindToDeliver(guid, clientID, retained);
+            position = append(retained ? ENQUEUED_RETAINED : ENQUEUED, record);
+        }
+        m_log.sync(position);
+        m_latencyMetrics.record(STORE, start);
+    }
+
+    @Override
+    public List<String> drainEnqueued(String clientID) {
+        byte[] record = builder().string(clientID).build();
+        List<String> drained;
+        long position;
+        synchronized (m_log) {
+            drained = super.drainEnqueued(clientID);
+            if (drained.isEmpty()) {
+                return drained;
+            }
+            position = append(DRAINED, record);
+        }
+        m_log.sync(position);
+        return drained;
+    }
+
+    @Override
+    public List<Enqueued> drainEnqueued(String clientID, int max) {
+        List<Enqueued> drained;
+        long position;
+        synchronized (m_log) {
+            drained = super.drainEnqueued(clientID, max);
+            if (drained.isEmpty()) {
+                return drained;
+            }
+            byte[] record = builder().string(clientID).integer(drained.size()).build();
+            position = append(DRAINED_SOME, record);
+        }
+        m_log.sync(position);
+        return drained;
+    }
+
+    @Override
+    public void secondPhaseAcknowledged(String clientID, int messageID) {
+        byte[] record = builder().string(clientID).integer(messageID).build();
+        long position;
+        synchronized (m_log) {
+            super.secondPhaseAcknowledged(clientID, messageID);
+            position = append(SECOND_PHASE_ACK, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public void secondPhaseAckWaiting(String clientID, int messageID) {
+        byte[] record = builder().string(clientID).integer(messageID).build();
+        long position;
+        synchronized (m_log) {
+            super.secondPhaseAckWaiting(clientID, messageID);
+            position = append(SECOND_PHASE_WAITING, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public void bindGuid(String clientID, int messageID, String guid) {
+        long start = System.nanoTime();
+        byte[] record = builder().string(clientID).integer(messageID).string(guid).build();
+        long position;
+        synchronized (m_log) {
+            super.bindGuid(clientID, messageID, guid);
+            position = append(GUID_MAPPED, record);
+        }
+        m_log.sync(position);
+        m_latencyMetrics.record(STORE, start);
+    }
+
+    @Override
+    public void unbindGuid(String clientID, int messageID) {
+        byte[] record = builder().string(clientID).integer(messageID).build();
+        long position;
+        synchronized (m_log) {
+            super.unbindGuid(clientID, messageID);
+            position = append(GUID_UNMAPPED, record);
+        }
+        m_log.sync(position);
+    }
+
+    @Override
+    public void clearSessionMessages(String clientID) {
+        byte[] record = builder().string(clientID).build();
+        long position;
+        synchronized (m_log) {
+            super.clearSessionMessages(clientID);
+            position = append(SESSION_MESSAGES_CLEARED, record);
+        }
+        m_log.sync(position);
+    }
+
+    /**
+     * Apply a replayed record, without logging it again.
+     *
+     * @return false if the record doesn't belong to this store.
+     */
+    boolean replay(byte type, DataInputStream in) throws IOException {
+        switch (type) {
+            case SESSION_UPDATED: {
+                String clientID = in.readUTF();
+                super.updateCleanStatus(clientID, in.readBoolean());
+                return true;
+            }
+            case SUBSCRIPTION_ADDED: {
+                String clientID = in.readUTF();
+                String topicFilter = in.readUTF();
+                AbstractMessage.QOSType qos = AbstractMessage.QOSType.valueOf((byte) in.readInt());
+                super.addNewSubscription(new Subscription(clientID, topicFilter, qos));
+                return true;
+            }
+            case SUBSCRIPTION_REMOVED: {
+                String clientID = in.readUTF();
+                super.removeSubscription(in.readUTF(), clientID);
+                return true;
+            }
+            case SUBSCRIPTIONS_WIPED:
+                super.wipeSubscriptions(in.readUTF());
+                return true;
+            case INFLIGHT: {
+                String clientID = in.readUTF();
+                int messageID = in.readInt();
+                super.inFlight(clientID, messageID, in.readUTF());
+                packetIds(clientID).markUsed(messageID);
+                return true;
+            }
+            case INFLIGHT_ACK: {
+                String clientID = in.readUTF();
+                super.inFlightAck(clientID, in.readInt());
+                return true;
+            }
+            case ENQUEUED: {
+                String clientID = in.readUTF();
+                super.bindToDeliver(in.readUTF(), clientID, false);
+                return true;
+            }
+            case ENQUEUED_RETAINED: {
+                String clientID = in.readUTF();
+                super.bindToDeliver(in.readUTF(), clientID, true);
+                return true;
+            }
+            case DRAINED:
+                super.drainEnqueued(in.readUTF());
+                return true;
+            case DRAINED_SOME: {
+                String clientID = in.readUTF();
+                super.drainEnqueued(clientID, in.readInt());
+                return true;
+            }
+            case SECOND_PHASE_WAITING: {
+                String clientID = in.readUTF();
+                super.secondPhaseAckWaiting(clientID, in.readInt());
+                return true;
+            }
+            case SECOND_PHASE_ACK: {
+                String clientID = in.readUTF();
+                super.secondPhaseAcknowledged(clientID, in.readInt());
+                return true;
+            }
+            case GUID_MAPPED: {
+                String clientID = in.readUTF();
+                int messageID = in.readInt();
+                super.bindGuid(clientID, messageID, in.readUTF());
+                return true;
+            }
+            case GUID_UNMAPPED: {
+                String clientID = in.readUTF();
+                super.unbindGuid(clientID, in.readInt());
+                return true;
+            }
+            case SESSION_MESSAGES_CLEARED:
+                super.clearSessionMessages(in.readUTF());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Write the current state as snapshot records, invoked holding the lock on the log.
+     */
+    void snapshot(List<byte[]> records) {
+        for (Map.Entry<String, Boolean> session : m_persistentSessions.entrySet()) {
+            records.add(builder().string(session.getKey()).bool(session.getValue()).build(SESSION_UPDATED));
+        }
+        for (Map<String, Subscription> clientSubscriptions : m_subscriptions.values()) {
+            for (Subscription sub : clientSubscriptions.values()) {
+                records.add(builder().string(sub.getClientId()).string(sub.getTopicFilter())
+                        .integer(sub.getRequestedQos().byteValue()).build(SUBSCRIPTION_ADDED));
+            }
+        }
+        for (Map.Entry<String, ConcurrentMap<Integer, String>> inflight : m_inflightStore.entrySet()) {
+            for (Map.Entry<Integer, String> entry : inflight.getValue().entrySet()) {
+                records.add(builder().string(inflight.getKey()).integer(entry.getKey()).string(entry.getValue())
+                        .build(INFLIGHT));
+            }
+        }
+        for (Map.Entry<String, Deque<Enqueued>> enqueued : m_enqueuedStore.entrySet()) {
+            for (Enqueued entry : enqueued.getValue()) {
+                records.add(builder().string(enqueued.getKey()).string(entry.guid)
+                        .build(entry.retained ? ENQUEUED_RETAINED : ENQUEUED));
+            }
+        }
+        for (Map.Entry<String, ConcurrentMap<Integer, String>> mapping : m_guidsMappings.entrySet()) {
+            for (Map.Entry<Integer, String> entry : mapping.getValue().entrySet()) {
+                records.add(builder().string(mapping.getKey()).integer(entry.getKey()).string(entry.getValue())
+                        .build(GUID_MAPPED));
+            }
+        }
+        for (Map.Entry<String, Set<Integer>> secondPhase : m_secondPhaseStore.entrySet()) {
+            for (Integer messageID : secondPhase.getValue()) {
+                records.add(builder().string(secondPhase.getKey()).integer(messageID).build(SECOND_PHASE_WAITING));
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ *******************************************************************************
+ * Copyright (c) 2015 Whizzo Software, LLC.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *******************************************************************************
+*/
+package com.whizzosoftware.hobson.mqtt;
+
+import io.moquette.interception.messages.InterceptPublishMessage;
+import io.moquette.proto.messages.AbstractMessage;
+import io.moquette.proto.messages.PublishMessage;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MQTTInterceptHandlerTest {
+    @Test
+    public void testIsDeviceTopic() {
+        assertTrue(MQTTInterceptHandler.isDeviceTopic("bootstrap"));
+        assertTrue(MQTTInterceptHandler.isDeviceTopic("bootstrap/device1"));
+        assertTrue(MQTTInterceptHandler.isDeviceTopic("device/device1/data"));
+        assertFalse(MQTTInterceptHandler.isDeviceTopic("devices/device1/data"));
+        assertFalse(MQTTInterceptHandler.isDeviceTopic("hobson/admin/activations"));
+        assertFalse(MQTTInterceptHandler.isDeviceTopic(null));
+    }
+
+    @Test
+    public void testOnPublish() {
+        final List<String> topics = new ArrayList<>();
+        final List<byte[]> payloads = new ArrayList<>();
+        MQTTInterceptHandler h = new MQTTInterceptHandler(new MQTTMessageReceiver() {
+            @Override
+            public void onMessage(String topic, byte[] payload, long receivedNanos) {
+                topics.add(topic);
+                payloads.add(payload);
+            }
+        });
+
+        h.onPublish(new InterceptPublishMessage(createPublishMessage("foo/bar", "{}"), "client1"));
+        assertEquals(0, topics.size());
+
+        PublishMessage msg = createPublishMessage("device/device1/data", "{\"on\":true}");
+        h.onPublish(new InterceptPublishMessage(msg, "device1"));
+        assertEquals(1, topics.size());
+        assertEquals("device/device1/data", topics.get(0));
+        assertEquals("{\"on\":true}", new String(payloads.get(0)));
+
+        // the broker's copy of the payload must be left untouched
+        assertEquals(11, msg.getPayload().remaining());
+    }
+
+    private PublishMessage createPublishMessage(String topic, String payload) {
+        PublishMessage msg = new PublishMessage();
+        msg.setTopicName(topic);
+        msg.setQos(AbstractMessage.QOSType.MOST_ONE);
+        msg.setPayload(ByteBuffer.wrap(payload.getBytes()));
+        return msg;
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FlushBatcherTest {
+
+    private EmbeddedChannel m_channel;
+    private EmbeddedChannel m_otherChannel;
+
+    @Before
+    public void setUp() {
+        m_channel = new EmbeddedChannel();
+        m_otherChannel = new EmbeddedChannel();
+    }
+
+    @Test
+    public void testFlushesTheChannelsWrittenAtTheEndOfTheBatch() {
+        FlushBatcher batcher = new FlushBatcher(true, 1024, 60000);
+
+        batcher.write(m_channel, "first", 10);
+        batcher.write(m_channel, "second", 10);
+        batcher.write(m_otherChannel, "third", 10);
+        assertNull(m_channel.readOutbound());
+        assertNull(m_otherChannel.readOutbound());
+
+        batcher.endOfBatch();
+        assertEquals("first", m_channel.readOutbound());
+        assertEquals("second", m_channel.readOutbound());
+        assertEquals("third", m_otherChannel.readOutbound());
+    }
+
+    @Test
+    public void testFlushesEarlyAtMaxPendingBytes() {
+        FlushBatcher batcher = new FlushBatcher(true, 100, 60000);
+
+        batcher.write(m_channel, "first", 60);
+        assertNull(m_channel.readOutbound());
+
+        batcher.write(m_channel, "second", 40);
+        assertEquals("first", m_channel.readOutbound());
+        assertEquals("second", m_channel.readOutbound());
+
+        //the count starts again after the flush
+        batcher.write(m_channel, "third", 60);
+        assertNull(m_channel.readOutbound());
+    }
+
+    @Test
+    public void testFlushesAfterTheMaxDelayWhenNoBatchEnds() throws Exception {
+        FlushBatcher batcher = new FlushBatcher(true, 1024, 10);
+
+        batcher.write(m_channel, "first", 10);
+        m_channel.runPendingTasks();
+        assertNull(m_channel.readOutbound());
+
+        Thread.sleep(100);
+        m_channel.runPendingTasks();
+        assertEquals("first", m_channel.readOutbound());
+    }
+
+    @Test
+    public void testWritesAndFlushesRightAwayWhenDisabled() {
+        FlushBatcher batcher = new FlushBatcher(false, 100, 10);
+        assertFalse(batcher.isEnabled());
+
+        batcher.write(m_channel, "first", 10);
+        assertEquals("first", m_channel.readOutbound());
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.proto.messages.PubRelMessage;
+import io.moquette.proto.messages.PublishMessage;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.persistence.MemoryPersistentStore;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class InflightWindowsTest {
+
+    /**
+     * Runs the deadlines when the test expires them, on the test thread.
+     */
+    private static final class ManualTimer implements Timer {
+        private final List<ManualTimeout> m_pending = new ArrayList<>();
+
+        @Override
+        public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+            ManualTimeout timeout = new ManualTimeout(this, task);
+            m_pending.add(timeout);
+            return timeout;
+        }
+
+        @Override
+        public Set<Timeout> stop() {
+            return Collections.emptySet();
+        }
+
+        void expireAll() throws Exception {
+            List<ManualTimeout> expiring = new ArrayList<>(m_pending);
+            m_pending.clear();
+            for (ManualTimeout timeout : expiring) {
+                if (!timeout.isCancelled()) {
+                    timeout.m_expired = true;
+                    timeout.task().run(timeout);
+                }
+            }
+        }
+
+        int pending() {
+            int count = 0;
+            for (ManualTimeout timeout : m_pending) {
+                if (!timeout.isCancelled()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final class ManualTimeout implements Timeout {
+        private final Timer m_timer;
+        private final TimerTask m_task;
+        private boolean m_expired;
+        private boolean m_cancelled;
+
+        ManualTimeout(Timer timer, TimerTask task) {
+            m_timer = timer;
+            m_task = task;
+        }
+
+        @Override
+        public Timer timer() {
+            return m_timer;
+        }
+
+        @Override
+        public TimerTask task() {
+            return m_task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return m_expired;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return m_cancelled;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (m_expired || m_cancelled) {
+                return false;
+            }
+            m_cancelled = true;
+            return true;
+        }
+    }
+
+    private IMessagesStore m_messagesStore;
+    private ClientSession m_session;
+    private ManualTimer m_timer;
+    private InflightWindows m_windows;
+    private EmbeddedChannel m_channel;
+
+    @Before
+    public void setUp() {
+        MemoryPersistentStore storage = new MemoryPersistentStore();
+        storage.initStore();
+        m_messagesStore = storage.messagesStore();
+        ISessionsStore sessionsStore = storage.sessionsStore(m_messagesStore);
+        m_session = sessionsStore.createNewSession("subscriber", false);
+        m_timer = new ManualTimer();
+        m_windows = new InflightWindows(m_messagesStore, 2, 1000, m_timer);
+        m_channel = new EmbeddedChannel();
+        m_windows.open(m_channel, m_session);
+    }
+
+    private String store(String payload, QOSType qos) {
+        IMessagesStore.StoredMessage msg = new IMessagesStore.StoredMessage(payload.getBytes(), qos, "/topic");
+        msg.setClientID("publisher");
+        msg.setMessageID(1);
+        return m_messagesStore.storePublishForFuture(msg);
+    }
+
+    private void sendInFlight(int messageID, String guid, QOSType qos) {
+        assertTrue(m_windows.acquireOrEnqueue(m_channel, guid, false));
+        m_windows.sent(m_channel, messageID, guid, qos, false);
+    }
+
+    private static List<ISessionsStore.Enqueued> queued(String... guids) {
+        List<ISessionsStore.Enqueued> queued = new ArrayList<>();
+        for (String guid : guids) {
+            queued.add(new ISessionsStore.Enqueued(guid, false));
+        }
+        return queued;
+    }
+
+    @Test
+    public void testQueuesBeyondTheWindowAndKeepsTheOrder() {
+        String first = store("first", QOSType.LEAST_ONE);
+        String second = store("second", QOSType.LEAST_ONE);
+        String third = store("third", QOSType.LEAST_ONE);
+        String fourth = store("fourth", QOSType.LEAST_ONE);
+        sendInFlight(1, first, QOSType.LEAST_ONE);
+        sendInFlight(2, second, QOSType.LEAST_ONE);
+
+        assertFalse(m_windows.acquireOrEnqueue(m_channel, third, false));
+        assertTrue(m_windows.acknowledged(m_channel, 1));
+        //a slot is free but the queue goes first
+        assertFalse(m_windows.acquireOrEnqueue(m_channel, fourth, false));
+
+        assertEquals(queued(third), m_windows.drain(m_channel));
+        m_windows.sent(m_channel, 3, third, QOSType.LEAST_ONE, false);
+        assertTrue(m_windows.drain(m_channel).isEmpty());
+
+        assertTrue(m_windows.acknowledged(m_channel, 2));
+        assertEquals(queued(fourth), m_windows.drain(m_channel));
+        m_windows.sent(m_channel, 4, fourth, QOSType.LEAST_ONE, false);
+
+        assertTrue(m_windows.acknowledged(m_channel, 3));
+        assertTrue(m_windows.drain(m_channel).isEmpty());
+        //the queue is empty, the next message is sent right away
+        assertFalse(m_windows.acknowledged(m_channel, 4));
+        sendInFlight(5, store("fifth", QOSType.LEAST_ONE), QOSType.LEAST_ONE);
+    }
+
+    @Test
+    public void testQueuedRetainedMessageKeepsItsFlag() {
+        sendInFlight(1, store("first", QOSType.LEAST_ONE), QOSType.LEAST_ONE);
+        sendInFlight(2, store("second", QOSType.LEAST_ONE), QOSType.LEAST_ONE);
+        String retained = store("retained", QOSType.LEAST_ONE);
+        assertFalse(m_windows.acquireOrEnqueue(m_channel, retained, true));
+
+        assertTrue(m_windows.acknowledged(m_channel, 1));
+        assertEquals(Arrays.asList(new ISessionsStore.Enqueued(retained, true)), m_windows.drain(m_channel));
+    }
+
+    @Test
+    public void testSkippedMessageFreesItsSlot() {
+        String first = store("first", QOSType.LEAST_ONE);
+        String second = store("second", QOSType.LEAST_ONE);
+        String third = store("third", QOSType.LEAST_ONE);
+        m_session.enqueueToDeliver(first);
+        m_session.enqueueToDeliver(second);
+        m_session.enqueueToDeliver(third);
+        m_windows.markQueued(m_channel);
+
+        assertEquals(queued(first, second), m_windows.drain(m_channel));
+        m_windows.skipped(m_channel);
+        m_windows.sent(m_channel, 1, second, QOSType.LEAST_ONE, false);
+        assertEquals(queued(third), m_windows.drain(m_channel));
+    }
+
+    @Test
+    public void testAckOfAMessageNotInFlightIsIgnored() {
+        assertFalse(m_windows.acknowledged(m_channel, 42));
+    }
+
+    @Test
+    public void testResendsThePublishWithDupOnDeadline() throws Exception {
+        String guid = store("hello", QOSType.LEAST_ONE);
+        sendInFlight(1, guid, QOSType.LEAST_ONE);
+        assertNull(m_channel.readOutbound());
+
+        m_timer.expireAll();
+
+        PublishMessage resent = (PublishMessage) m_channel.readOutbound();
+        assertTrue(resent.isDupFlag());
+        assertEquals(1, resent.getMessageID().intValue());
+        assertEquals(QOSType.LEAST_ONE, resent.getQos());
+        assertEquals("/topic", resent.getTopicName());
+        //armed again for the next resend
+        assertEquals(1, m_timer.pending());
+    }
+
+    @Test
+    public void testResendsThePubRelAfterThePubRec() throws Exception {
+        String guid = store("hello", QOSType.EXACTLY_ONCE);
+        sendInFlight(1, guid, QOSType.EXACTLY_ONCE);
+        m_windows.released(m_channel, 1);
+        assertEquals(1, m_timer.pending());
+
+        m_timer.expireAll();
+
+        PubRelMessage resent = (PubRelMessage) m_channel.readOutbound();
+        assertEquals(1, resent.getMessageID().intValue());
+        assertNull(m_channel.readOutbound());
+    }
+
+    @Test
+    public void testAcknowledgedMessageIsntResent() throws Exception {
+        sendInFlight(1, store("hello", QOSType.LEAST_ONE), QOSType.LEAST_ONE);
+
+        assertFalse(m_windows.acknowledged(m_channel, 1));
+        assertEquals(0, m_timer.pending());
+
+        m_timer.expireAll();
+        assertNull(m_channel.readOutbound());
+    }
+
+    @Test
+    public void testCloseCancelsTheDeadlinesAndQueuesTheNextMessages() throws Exception {
+        sendInFlight(1, store("first", QOSType.LEAST_ONE), QOSType.LEAST_ONE);
+        sendInFlight(2, store("second", QOSType.EXACTLY_ONCE), QOSType.EXACTLY_ONCE);
+
+        m_windows.closed(m_channel);
+        assertEquals(0, m_timer.pending());
+        m_timer.expireAll();
+        assertNull(m_channel.readOutbound());
+
+        //the not clean session gets it on reconnect
+        String late = store("late", QOSType.LEAST_ONE);
+        assertFalse(m_windows.acquireOrEnqueue(m_channel, late, false));
+        assertEquals(queued(late), m_session.drainToDeliver(10));
+    }
+
+    @Test
+    public void testReconnectResendsWhatWasLeftInFlight() throws Exception {
+        String guid = store("hello", QOSType.LEAST_ONE);
+        int published = m_session.nextPacketId();
+        m_session.inFlightAckWaiting(guid, published);
+        sendInFlight(published, guid, QOSType.LEAST_ONE);
+        String qos2 = store("exactly", QOSType.EXACTLY_ONCE);
+        int released = m_session.nextPacketId();
+        m_session.inFlightAckWaiting(qos2, released);
+        sendInFlight(released, qos2, QOSType.EXACTLY_ONCE);
+        m_session.secondPhaseAckWaiting(released);
+        m_session.inFlightAcknowledged(released);
+        m_windows.released(m_channel, released);
+        //the connection drops before the PUBACK and the PUBCOMP
+        m_windows.closed(m_channel);
+
+        EmbeddedChannel reconnected = new EmbeddedChannel();
+        m_windows.open(reconnected, m_session);
+        assertEquals(Collections.singletonMap(published, guid), m_session.inFlightMessages());
+        m_windows.resumed(reconnected, published, guid, QOSType.LEAST_ONE);
+        assertEquals(Collections.singleton(released), m_session.secondPhaseWaiting());
+        m_windows.resumedRelease(reconnected, released);
+
+        PublishMessage resent = (PublishMessage) reconnected.readOutbound();
+        assertTrue(resent.isDupFlag());
+        assertEquals(published, resent.getMessageID().intValue());
+        PubRelMessage pubRel = (PubRelMessage) reconnected.readOutbound();
+        assertEquals(released, pubRel.getMessageID().intValue());
+
+        //the resumed messages hold the window until they're acknowledged
+        assertFalse(m_windows.acquireOrEnqueue(reconnected, store("queued", QOSType.LEAST_ONE), false));
+        m_session.inFlightAcknowledged(published);
+        assertTrue(m_windows.acknowledged(reconnected, published));
+        m_session.secondPhaseAcknowledged(released);
+        assertTrue(m_windows.acknowledged(reconnected, released));
+        assertTrue(m_session.inFlightMessages().isEmpty());
+        assertTrue(m_session.secondPhaseWaiting().isEmpty());
+    }
+}
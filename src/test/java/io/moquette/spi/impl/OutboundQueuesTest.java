@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.persistence.MemoryPersistentStore;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.HashedWheelTimer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueuesTest {
+
+    private static final int HIGH_WATER_MARK = 100;
+    private static final int LOW_WATER_MARK = 50;
+    private static final int MSG_BYTES = 20;
+
+    /**
+     * A channel whose outbound buffer is over its high water mark while the test says so.
+     */
+    private static final class SlowChannel extends EmbeddedChannel {
+        boolean m_writable = true;
+
+        @Override
+        public boolean isWritable() {
+            return m_writable;
+        }
+    }
+
+    private IMessagesStore m_messagesStore;
+    private ISessionsStore m_sessionsStore;
+    private ClientSession m_session;
+    private HashedWheelTimer m_timer;
+    private InflightWindows m_windows;
+    private SlowChannel m_channel;
+
+    @Before
+    public void setUp() {
+        MemoryPersistentStore storage = new MemoryPersistentStore();
+        storage.initStore();
+        m_messagesStore = storage.messagesStore();
+        m_sessionsStore = storage.sessionsStore(m_messagesStore);
+        m_session = m_sessionsStore.createNewSession("subscriber", false);
+        m_timer = new HashedWheelTimer();
+        //no resend, the tests look at what is written once
+        m_windows = new InflightWindows(m_messagesStore, 0, 0, m_timer);
+        m_channel = new SlowChannel();
+        m_windows.open(m_channel, m_session);
+    }
+
+    @After
+    public void tearDown() {
+        m_timer.stop();
+    }
+
+    private OutboundQueues queues(OutboundQueues.Policy policy) {
+        return new OutboundQueues(new FlushBatcher(false, 0, 0), m_windows, HIGH_WATER_MARK, LOW_WATER_MARK, policy);
+    }
+
+    private String store(String payload) {
+        IMessagesStore.StoredMessage msg = new IMessagesStore.StoredMessage(payload.getBytes(), QOSType.LEAST_ONE,
+                "/topic");
+        msg.setClientID("publisher");
+        msg.setMessageID(1);
+        return m_messagesStore.storePublishForFuture(msg);
+    }
+
+    private void sendQoS0(OutboundQueues queues, String msg) {
+        queues.send(m_channel, m_session, msg, MSG_BYTES, QOSType.MOST_ONE, null, null, false);
+    }
+
+    /**
+     * Put the message in flight as the processor does, then send it.
+     */
+    private void sendQoS1(OutboundQueues queues, String guid) {
+        sendQoS1(queues, guid, false);
+    }
+
+    private void sendQoS1(OutboundQueues queues, String guid, boolean retained) {
+        assertTrue(m_windows.acquireOrEnqueue(m_channel, guid, retained));
+        int messageID = m_session.nextPacketId();
+        m_session.inFlightAckWaiting(guid, messageID);
+        m_windows.sent(m_channel, messageID, guid, QOSType.LEAST_ONE, retained);
+        queues.send(m_channel, m_session, guid, MSG_BYTES, QOSType.LEAST_ONE, guid, messageID, retained);
+    }
+
+    private static List<ISessionsStore.Enqueued> queued(String... guids) {
+        List<ISessionsStore.Enqueued> queued = new ArrayList<>();
+        for (String guid : guids) {
+            queued.add(new ISessionsStore.Enqueued(guid, false));
+        }
+        return queued;
+    }
+
+    @Test
+    public void testWritesRightAwayWhileWritable() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.DROP_OLDEST);
+
+        sendQoS0(queues, "hello");
+
+        assertEquals("hello", m_channel.readOutbound());
+        assertEquals(0, queues.depths().get("subscriber").intValue());
+    }
+
+    @Test
+    public void testDropOldestShedsQoS0DownToTheLowWaterMark() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.DROP_OLDEST);
+        m_channel.m_writable = false;
+        for (int i = 1; i <= 5; i++) {
+            sendQoS0(queues, "msg" + i);
+        }
+        assertEquals(5, queues.depths().get("subscriber").intValue());
+
+        //over the high water mark, the oldest ones go until the new one fits under the low water mark
+        sendQoS0(queues, "msg6");
+        assertEquals(2, queues.depths().get("subscriber").intValue());
+        assertTrue(m_channel.isActive());
+
+        m_channel.m_writable = true;
+        assertFalse(queues.writable(m_channel));
+        assertEquals("msg5", m_channel.readOutbound());
+        assertEquals("msg6", m_channel.readOutbound());
+        assertNull(m_channel.readOutbound());
+    }
+
+    @Test
+    public void testDropOldestDisconnectsWhenQoS1AndQoS2AloneAreOverTheHighWaterMark() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.DROP_OLDEST);
+        m_channel.m_writable = false;
+        for (int i = 1; i <= 5; i++) {
+            sendQoS1(queues, store("msg" + i));
+        }
+        assertTrue(m_channel.isActive());
+
+        sendQoS1(queues, store("msg6"));
+
+        assertFalse(m_channel.isActive());
+    }
+
+    @Test
+    public void testDisconnectPolicyClosesOverTheHighWaterMark() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.DISCONNECT);
+        m_channel.m_writable = false;
+        for (int i = 1; i <= 5; i++) {
+            sendQoS0(queues, "msg" + i);
+        }
+        assertTrue(m_channel.isActive());
+
+        sendQoS0(queues, "msg6");
+
+        assertFalse(m_channel.isActive());
+    }
+
+    @Test
+    public void testSpillMovesToTheOfflineQueueKeepingTheOrder() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.SPILL);
+        m_channel.m_writable = false;
+        String[] guids = new String[7];
+        for (int i = 0; i < 6; i++) {
+            guids[i] = store("msg" + i);
+            sendQoS1(queues, guids[i]);
+        }
+        //the four oldest were spilled to make room for the sixth
+        assertEquals(2, queues.depths().get("subscriber").intValue());
+        assertTrue(m_channel.isActive());
+
+        //the next one follows the spilled ones instead of overtaking them
+        guids[6] = store("msg6");
+        int messageID = m_session.nextPacketId();
+        m_session.inFlightAckWaiting(guids[6], messageID);
+        queues.send(m_channel, m_session, guids[6], MSG_BYTES, QOSType.LEAST_ONE, guids[6], messageID, false);
+        assertEquals(2, queues.depths().get("subscriber").intValue());
+
+        m_channel.m_writable = true;
+        assertTrue(queues.writable(m_channel));
+        assertEquals(guids[4], m_channel.readOutbound());
+        assertEquals(guids[5], m_channel.readOutbound());
+        assertEquals(queued(guids[0], guids[1], guids[2], guids[3], guids[6]),
+                m_session.drainToDeliver(10));
+    }
+
+    @Test
+    public void testSpillKeepsTheRetainFlag() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.SPILL);
+        m_channel.m_writable = false;
+        String retained = store("retained");
+        sendQoS1(queues, retained, true);
+        for (int i = 1; i < 6; i++) {
+            sendQoS1(queues, store("msg" + i));
+        }
+
+        List<ISessionsStore.Enqueued> spilled = m_session.drainToDeliver(10);
+        assertEquals(new ISessionsStore.Enqueued(retained, true), spilled.get(0));
+        assertFalse(spilled.get(1).retained);
+    }
+
+    @Test
+    public void testCloseMovesQoS1And2OfANotCleanSessionToTheOfflineQueue() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.DROP_OLDEST);
+        m_channel.m_writable = false;
+        sendQoS0(queues, "volatile");
+        String first = store("first");
+        String second = store("second");
+        sendQoS1(queues, first);
+        sendQoS1(queues, second);
+
+        queues.closed(m_channel);
+
+        assertEquals(queued(first, second), m_session.drainToDeliver(10));
+        assertFalse(queues.depths().containsKey("subscriber"));
+    }
+
+    @Test
+    public void testDepthsOfEachClient() {
+        OutboundQueues queues = queues(OutboundQueues.Policy.DROP_OLDEST);
+        ClientSession other = m_sessionsStore.createNewSession("other", false);
+        SlowChannel otherChannel = new SlowChannel();
+        m_channel.m_writable = false;
+        otherChannel.m_writable = false;
+
+        sendQoS0(queues, "first");
+        sendQoS0(queues, "second");
+        queues.send(otherChannel, other, "third", MSG_BYTES, QOSType.MOST_ONE, null, null, false);
+
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("subscriber", 2);
+        expected.put("other", 1);
+        assertEquals(expected, queues.depths());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class PublishFrameTest {
+
+    private static final byte[] PAYLOAD = "Hello world!!".getBytes(StandardCharsets.UTF_8);
+
+    private static byte[] bytes(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.getBytes(buf.readerIndex(), bytes);
+        return bytes;
+    }
+
+    private static byte[] expected(int firstByte, int remainingLength, String topic, Integer messageID) {
+        ByteBuffer buf = ByteBuffer.allocate(2 + remainingLength);
+        buf.put((byte) firstByte);
+        buf.put((byte) remainingLength);
+        buf.putShort((short) topic.length());
+        buf.put(topic.getBytes(StandardCharsets.UTF_8));
+        if (messageID != null) {
+            buf.putShort(messageID.shortValue());
+        }
+        buf.put(PAYLOAD);
+        return buf.array();
+    }
+
+    @Test
+    public void testQoS0FrameIsShared() {
+        PublishFrame frame = new PublishFrame("a/b", ByteBuffer.wrap(PAYLOAD));
+        ByteBuf first = frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.MOST_ONE, null);
+        ByteBuf second = frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.MOST_ONE, null);
+
+        byte[] expected = expected(0x30, 2 + 3 + PAYLOAD.length, "a/b", null);
+        assertArrayEquals(expected, bytes(first));
+        assertArrayEquals(expected, bytes(second));
+        //the frame plus the two writes
+        assertEquals(3, first.refCnt());
+
+        frame.release();
+        first.release();
+        assertEquals(1, second.refCnt());
+        second.release();
+        assertEquals(0, second.refCnt());
+    }
+
+    @Test
+    public void testPacketIdAndQoSPatchedPerSubscriber() {
+        PublishFrame frame = new PublishFrame("a/b", ByteBuffer.wrap(PAYLOAD));
+        ByteBuf qos1 = frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.LEAST_ONE, 1);
+        ByteBuf qos2 = frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.EXACTLY_ONCE, 300);
+        frame.release();
+
+        int remainingLength = 2 + 3 + 2 + PAYLOAD.length;
+        assertArrayEquals(expected(0x32, remainingLength, "a/b", 1), bytes(qos1));
+        assertArrayEquals(expected(0x34, remainingLength, "a/b", 300), bytes(qos2));
+        qos1.release();
+        qos2.release();
+    }
+
+    @Test
+    public void testPayloadNotConsumed() {
+        ByteBuffer payload = ByteBuffer.wrap(PAYLOAD);
+        PublishFrame frame = new PublishFrame("a/b", payload);
+        frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.MOST_ONE, null).release();
+        frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.LEAST_ONE, 1).release();
+        frame.release();
+        assertEquals(PAYLOAD.length, payload.remaining());
+    }
+
+    @Test
+    public void testLongRemainingLength() {
+        byte[] payload = new byte[200];
+        PublishFrame frame = new PublishFrame("t", ByteBuffer.wrap(payload));
+        ByteBuf encoded = frame.encode(UnpooledByteBufAllocator.DEFAULT, QOSType.MOST_ONE, null);
+        frame.release();
+
+        //203 = 0xCB encoded as 0xCB 0x01
+        assertEquals((byte) 0xCB, encoded.getByte(1));
+        assertEquals(1, encoded.getByte(2));
+        assertEquals(1 + 2 + 203, encoded.readableBytes());
+        encoded.release();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl;
+
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.persistence.MemoryPersistentStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SessionsRegistryTest {
+
+    private ISessionsStore m_sessionsStore;
+    private SessionsRegistry m_registry;
+
+    @Before
+    public void setUp() {
+        MemoryPersistentStore storage = new MemoryPersistentStore();
+        storage.initStore();
+        m_sessionsStore = storage.sessionsStore(storage.messagesStore());
+        m_registry = new SessionsRegistry(m_sessionsStore);
+    }
+
+    @Test
+    public void testConnectedSessionIsKeptAndActive() {
+        ClientSession session = m_sessionsStore.createNewSession("c1", false);
+        m_registry.connected(session);
+
+        assertSame(session, m_registry.sessionForClient("c1"));
+        assertTrue(m_registry.sessionForClient("c1").isActive());
+        m_registry.sessionForClient("c1").published();
+        assertEquals(1, session.receivedCount());
+    }
+
+    @Test
+    public void testOfflineSessionIsLoadedFromStoreAndInactive() {
+        m_sessionsStore.createNewSession("c1", false);
+
+        ClientSession session = m_registry.sessionForClient("c1");
+        assertNotNull(session);
+        assertFalse(session.isActive());
+        assertNull(m_registry.connectedSession("c1"));
+        assertNull(m_registry.sessionForClient("unknown"));
+    }
+
+    @Test
+    public void testStolenSessionStaysActive() {
+        ClientSession first = m_sessionsStore.createNewSession("c1", false);
+        m_registry.connected(first);
+        ClientSession second = m_sessionsStore.sessionForClient("c1");
+        m_registry.connected(second);
+        assertFalse(first.isActive());
+
+        //the old connection going away doesn't deactivate the new one
+        assertFalse(m_registry.disconnected(first));
+        assertTrue(second.isActive());
+        assertSame(second, m_registry.connectedSession("c1"));
+
+        assertTrue(m_registry.disconnected(second));
+        assertFalse(second.isActive());
+        assertEquals(0, m_registry.connectedCount());
+    }
+}
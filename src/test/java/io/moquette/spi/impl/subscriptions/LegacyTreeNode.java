@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.spi.ISessionsStore.ClientTopicCouple;
+
+import java.text.ParseException;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Copy of the list based subscription tree as it was before the hashed children, kept only to compare the two
+ * implementations in {@link SubscriptionsMatchBenchmark}.
+ */
+class LegacyTreeNode {
+
+    Token m_token;
+    List<LegacyTreeNode> m_children = new ArrayList<>();
+    Set<ClientTopicCouple> m_subscriptions = new HashSet<>();
+
+    LegacyTreeNode childWithToken(Token token) {
+        for (LegacyTreeNode child : m_children) {
+            if (child.m_token.equals(token)) {
+                return child;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds the subscription in place, the benchmark only needs the resulting shape of the tree.
+     */
+    void add(ClientTopicCouple couple) throws ParseException {
+        LegacyTreeNode current = this;
+        for (Token token : SubscriptionsStore.parseTopic(couple.topicFilter)) {
+            LegacyTreeNode child = current.childWithToken(token);
+            if (child == null) {
+                child = new LegacyTreeNode();
+                child.m_token = token;
+                current.m_children.add(child);
+            }
+            current = child;
+        }
+        current.m_subscriptions.add(couple);
+    }
+
+    List<ClientTopicCouple> matches(String topic) throws ParseException {
+        Queue<Token> tokenQueue = new LinkedBlockingDeque<>(SubscriptionsStore.parseTopic(topic));
+        List<ClientTopicCouple> matchingSubs = new ArrayList<>();
+        matches(tokenQueue, matchingSubs);
+        return matchingSubs;
+    }
+
+    void matches(Queue<Token> tokens, List<ClientTopicCouple> matchingSubs) {
+        Token t = tokens.poll();
+
+        //check if t is null <=> tokens finished
+        if (t == null) {
+            matchingSubs.addAll(m_subscriptions);
+            //check if it has got a MULTI child and add its subscriptions
+            for (LegacyTreeNode n : m_children) {
+                if (n.m_token == Token.MULTI || n.m_token == Token.SINGLE) {
+                    matchingSubs.addAll(n.m_subscriptions);
+                }
+            }
+
+            return;
+        }
+
+        //we are on MULTI, than add subscriptions and return
+        if (m_token == Token.MULTI) {
+            matchingSubs.addAll(m_subscriptions);
+            return;
+        }
+
+        for (LegacyTreeNode n : m_children) {
+            if (n.m_token.match(t)) {
+                //Create a copy of token, else if navigate 2 sibling it
+                //consumes 2 elements on the queue instead of one
+                n.matches(new LinkedBlockingQueue<>(tokens), matchingSubs);
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the cost of matching a published topic on the hashed subscriptions tree with the list based one it
+ * replaced, on a tree shaped like the devices one: a wide level of device/&lt;id&gt;/command subscriptions plus a few
+ * wildcards. Run it manually, it isn't part of the test suite.
+ */
+public class SubscriptionsMatchBenchmark {
+
+    private static final int DEVICES = 5000;
+    private static final int ITERATIONS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        SubscriptionsStore store = new SubscriptionsStore();
+        TreeNode root = new TreeNode();
+        LegacyTreeNode legacyRoot = new LegacyTreeNode();
+        for (int i = 0; i < DEVICES; i++) {
+            String filter = "device/" + i + "/command";
+            Subscription sub = new Subscription("device" + i, filter, QOSType.LEAST_ONE);
+            SubscriptionsStore.NodeCouple nodes = store.recreatePath(filter, root);
+            nodes.createdNode.addSubscription(sub);
+            root = nodes.root;
+            legacyRoot.add(sub.asClientTopicCouple());
+        }
+        for (String filter : new String[] {"device/#", "device/+/data", "#"}) {
+            Subscription sub = new Subscription("hub", filter, QOSType.MOST_ONE);
+            SubscriptionsStore.NodeCouple nodes = store.recreatePath(filter, root);
+            nodes.createdNode.addSubscription(sub);
+            root = nodes.root;
+            legacyRoot.add(sub.asClientTopicCouple());
+        }
+
+        String[] topics = new String[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            topics[i] = "device/" + i + "/command";
+        }
+
+        //warm up both before measuring
+        for (int round = 0; round < 3; round++) {
+            long legacy = runLegacy(legacyRoot, topics);
+            long hashed = runHashed(root, topics);
+            System.out.println(String.format("round %d: legacy %d ns/match, hashed %d ns/match", round,
+                    legacy / ITERATIONS, hashed / ITERATIONS));
+        }
+    }
+
+    private static long runLegacy(LegacyTreeNode root, String[] topics) throws Exception {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            found += root.matches(topics[i % topics.length]).size();
+        }
+        long elapsed = System.nanoTime() - start;
+        check(found);
+        return elapsed;
+    }
+
+    private static long runHashed(TreeNode root, String[] topics) {
+        long start = System.nanoTime();
+        int found = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            List<Subscription> matching = new ArrayList<>();
+            root.matches(SubscriptionsStore.splitTopic(topics[i % topics.length]), 0, matching);
+            found += matching.size();
+        }
+        long elapsed = System.nanoTime() - start;
+        check(found);
+        return elapsed;
+    }
+
+    private static void check(int found) {
+        //each topic matches its device, device/# and #
+        if (found != ITERATIONS * 3) {
+            throw new IllegalStateException("Unexpected number of matches " + found);
+        }
+    }
+}
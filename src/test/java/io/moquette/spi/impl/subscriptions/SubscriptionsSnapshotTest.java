@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.persistence.MemoryPersistentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionsSnapshotTest {
+
+    private File m_snapshot;
+    private ISessionsStore m_sessionsStore;
+
+    @Before
+    public void setUp() throws Exception {
+        m_snapshot = File.createTempFile("subscriptions", ".snapshot");
+        m_snapshot.delete();
+        MemoryPersistentStore storage = new MemoryPersistentStore();
+        storage.initStore();
+        m_sessionsStore = storage.sessionsStore(storage.messagesStore());
+    }
+
+    @After
+    public void tearDown() {
+        m_snapshot.delete();
+    }
+
+    @Test
+    public void testTreeRestoredFromSnapshot() throws Exception {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+        store.add(new Subscription("c1", "a/#", QOSType.MOST_ONE));
+        store.add(new Subscription("c2", "+/b", QOSType.EXACTLY_ONCE));
+        store.writeSnapshot(m_snapshot);
+
+        //the sessions store is empty, so the subscriptions can only come from the snapshot
+        SubscriptionsStore restored = new SubscriptionsStore();
+        restored.init(m_sessionsStore, m_snapshot);
+
+        assertFalse(m_snapshot.exists());
+        assertEquals(qosByFilter(store), qosByFilter(restored));
+        assertEquals(2, restored.matches("a/b").size());
+    }
+
+    @Test
+    public void testFallsBackToSessionsStoreOnCorruptedSnapshot() throws Exception {
+        m_sessionsStore.createNewSession("c1", false);
+        m_sessionsStore.addNewSubscription(new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c2", "a/b", QOSType.LEAST_ONE));
+        store.writeSnapshot(m_snapshot);
+        try (RandomAccessFile file = new RandomAccessFile(m_snapshot, "rw")) {
+            //flip a bit of the client id
+            file.seek(11);
+            file.write(file.readByte() ^ 1);
+        }
+
+        SubscriptionsStore restored = new SubscriptionsStore();
+        restored.init(m_sessionsStore, m_snapshot);
+
+        assertFalse(m_snapshot.exists());
+        assertEquals(1, restored.matches("a/b").size());
+        assertEquals("c1", restored.matches("a/b").get(0).getClientId());
+    }
+
+    @Test
+    public void testFallsBackToSessionsStoreWithoutSnapshot() {
+        m_sessionsStore.createNewSession("c1", false);
+        m_sessionsStore.addNewSubscription(new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+
+        SubscriptionsStore restored = new SubscriptionsStore();
+        restored.init(m_sessionsStore, m_snapshot);
+
+        assertEquals(1, restored.matches("a/b").size());
+    }
+
+    private static Map<String, QOSType> qosByFilter(SubscriptionsStore store) {
+        Map<String, QOSType> result = new HashMap<>();
+        for (Subscription sub : store.listAll()) {
+            result.put(sub.getClientId() + " " + sub.getTopicFilter(), sub.getRequestedQos());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.BrokerConstants;
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.server.config.MemoryConfig;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.persistence.MapDBPersistentStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the rebuild of the subscriptions tree at startup, from the MapDB sessions store on disk and from the
+ * snapshot written at shutdown, for a hub with many historical clients. The snapshot load is expected to stay under
+ * TARGET_MILLIS. Run it manually, it isn't part of the test suite.
+ */
+public class SubscriptionsStartupBenchmark {
+
+    private static final int CLIENTS = 10000;
+    private static final int SUBSCRIPTIONS_PER_CLIENT = 10;
+    private static final long TARGET_MILLIS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("moquette-benchmark").toFile();
+        Properties props = new Properties();
+        props.setProperty(BrokerConstants.PERSISTENT_STORE_PROPERTY_NAME,
+                new File(dir, "moquette_store.mapdb").getAbsolutePath());
+        MemoryConfig config = new MemoryConfig(props);
+
+        MapDBPersistentStore storage = new MapDBPersistentStore(config);
+        storage.initStore();
+        ISessionsStore sessionsStore = storage.sessionsStore(storage.messagesStore());
+        for (int i = 0; i < CLIENTS; i++) {
+            String clientID = "device" + i;
+            sessionsStore.createNewSession(clientID, false);
+            for (int j = 0; j < SUBSCRIPTIONS_PER_CLIENT; j++) {
+                sessionsStore.addNewSubscription(new Subscription(clientID, "device/" + i + "/command/" + j,
+                        QOSType.LEAST_ONE));
+            }
+        }
+        storage.close();
+        File snapshot = new File(dir, "subscriptions.snapshot");
+        try {
+            //reopened as at a restart, so the subscriptions are read back from the file
+            storage = new MapDBPersistentStore(config);
+            storage.initStore();
+            measure(storage.sessionsStore(storage.messagesStore()), snapshot);
+            storage.close();
+        } finally {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static void measure(ISessionsStore sessionsStore, File snapshot) throws Exception {
+        //warm up both before measuring
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            SubscriptionsStore fromStore = new SubscriptionsStore();
+            fromStore.init(sessionsStore);
+            long storeMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            fromStore.writeSnapshot(snapshot);
+            start = System.nanoTime();
+            SubscriptionsStore fromSnapshot = new SubscriptionsStore();
+            fromSnapshot.init(sessionsStore, snapshot);
+            long snapshotMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            if (fromSnapshot.size() != fromStore.size()) {
+                throw new IllegalStateException("Snapshot restored " + fromSnapshot.size() + " nodes instead of "
+                        + fromStore.size());
+            }
+            System.out.println(String.format("round %d: %d subscriptions, sessions store %d ms, snapshot %d ms (%s)",
+                    round, CLIENTS * SUBSCRIPTIONS_PER_CLIENT, storeMillis, snapshotMillis,
+                    snapshotMillis <= TARGET_MILLIS ? "within target" : "over the " + TARGET_MILLIS + " ms target"));
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.spi.ISessionsStore.ClientTopicCouple;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SubscriptionsStoreTest {
+
+    @Test
+    public void testRemoveForClientKeepsOtherClients() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+        store.add(new Subscription("c1", "a/#", QOSType.MOST_ONE));
+        store.add(new Subscription("c2", "a/b", QOSType.MOST_ONE));
+        assertEquals(3, store.size());
+
+        store.removeForClient("c1");
+
+        assertEquals(1, store.size());
+        List<Subscription> matching = store.matches("a/b");
+        assertEquals(1, matching.size());
+        assertEquals("c2", matching.get(0).getClientId());
+    }
+
+    @Test
+    public void testRemoveForClientDoesNotCopyOtherPaths() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c1", "device/1/command", QOSType.LEAST_ONE));
+        store.add(new Subscription("c2", "sensor/2/data", QOSType.LEAST_ONE));
+        TreeNode sensorBefore = store.root().childWithToken(new Token("sensor"));
+
+        store.removeForClient("c1");
+
+        assertSame(sensorBefore, store.root().childWithToken(new Token("sensor")));
+        assertTrue(store.matches("device/1/command").isEmpty());
+    }
+
+    @Test
+    public void testRemoveUnknownClient() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+        TreeNode root = store.root();
+
+        store.removeForClient("c2");
+        store.removeSubscription("a/b", "c2");
+
+        assertSame(root, store.root());
+    }
+
+    @Test
+    public void testResubscribeAfterRemove() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+        store.removeSubscription("a/b", "c1");
+        assertTrue(store.matches("a/b").isEmpty());
+
+        store.add(new Subscription("c1", "a/b", QOSType.MOST_ONE));
+        store.removeForClient("c1");
+        assertTrue(store.matches("a/b").isEmpty());
+    }
+
+    @Test
+    public void testApplyAddsAndRemovesInOneSwap() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("old", "device/0/command", QOSType.LEAST_ONE));
+
+        List<Subscription> toAdd = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            toAdd.add(new Subscription("device" + i, "device/" + i + "/command", QOSType.LEAST_ONE));
+        }
+        store.apply(toAdd, Collections.singletonList(new ClientTopicCouple("old", "device/0/command")));
+
+        assertEquals(100, store.size());
+        assertTrue(store.matches("device/0/command").isEmpty());
+        assertEquals("device42", store.matches("device/42/command").get(0).getClientId());
+    }
+
+    @Test
+    public void testAddAllSharesUntouchedBranches() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        store.add(new Subscription("c1", "sensor/1/data", QOSType.LEAST_ONE));
+        TreeNode sensorBefore = store.root().childWithToken(new Token("sensor"));
+
+        List<Subscription> toAdd = new ArrayList<>();
+        toAdd.add(new Subscription("c2", "device/1/command", QOSType.LEAST_ONE));
+        toAdd.add(new Subscription("c2", "device/2/command", QOSType.EXACTLY_ONCE));
+        store.addAll(toAdd);
+
+        assertSame(sensorBefore, store.root().childWithToken(new Token("sensor")));
+        assertEquals(QOSType.EXACTLY_ONCE, store.matches("device/2/command").get(0).getRequestedQos());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.impl.subscriptions;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.spi.ISessionsStore.ClientTopicCouple;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TreeNodeTest {
+
+    private static final String[] FILTERS = {
+            "a", "a/b", "a/b/c", "a/+", "a/+/c", "a/#", "+", "+/b", "#", "/", "/a", "+/+", "sport/tennis/#",
+            "sport/+/player1", "device/+/command", "device/1/command", "device/#", "a//b", "a/b/", "+/#"
+    };
+
+    private static final String[] TOPICS = {
+            "a", "a/b", "a/b/c", "a/c/c", "a/b/c/d", "b", "/", "/a", "a//b", "a/b/", "", "sport", "sport/tennis",
+            "sport/tennis/player1", "device/1/command", "device/2/command", "device/2/data", "device"
+    };
+
+    @Test
+    public void testSplitTopic() {
+        assertArrayEquals(new String[] {"a", "b"}, SubscriptionsStore.splitTopic("a/b"));
+        assertArrayEquals(new String[] {""}, SubscriptionsStore.splitTopic(""));
+        assertArrayEquals(new String[] {"", ""}, SubscriptionsStore.splitTopic("/"));
+        assertArrayEquals(new String[] {"a", "", "b", ""}, SubscriptionsStore.splitTopic("a//b/"));
+        assertNull(SubscriptionsStore.splitTopic("a/+"));
+        assertNull(SubscriptionsStore.splitTopic("a/#"));
+    }
+
+    @Test
+    public void testMatchesLikeLegacyTree() throws Exception {
+        SubscriptionsStore store = new SubscriptionsStore();
+        TreeNode root = new TreeNode();
+        LegacyTreeNode legacyRoot = new LegacyTreeNode();
+        int client = 0;
+        for (String filter : FILTERS) {
+            Subscription sub = new Subscription("client" + client++, filter, QOSType.MOST_ONE);
+            SubscriptionsStore.NodeCouple nodes = store.recreatePath(filter, root);
+            nodes.createdNode.addSubscription(sub);
+            root = nodes.root;
+            legacyRoot.add(sub.asClientTopicCouple());
+        }
+
+        for (String topic : TOPICS) {
+            List<Subscription> matching = new ArrayList<>();
+            root.matches(SubscriptionsStore.splitTopic(topic), 0, matching);
+            Set<ClientTopicCouple> matchingCouples = new HashSet<>();
+            for (Subscription sub : matching) {
+                matchingCouples.add(sub.asClientTopicCouple());
+            }
+            assertEquals("topic <" + topic + ">", new HashSet<>(legacyRoot.matches(topic)), matchingCouples);
+        }
+    }
+
+    @Test
+    public void testWideLevel() {
+        SubscriptionsStore store = new SubscriptionsStore();
+        TreeNode root = new TreeNode();
+        for (int i = 0; i < 1000; i++) {
+            SubscriptionsStore.NodeCouple nodes = store.recreatePath("device/" + i + "/command", root);
+            nodes.createdNode.addSubscription(new Subscription("device" + i, "device/" + i + "/command", QOSType.LEAST_ONE));
+            root = nodes.root;
+        }
+        assertEquals(1000, root.size());
+
+        List<Subscription> matching = new ArrayList<>();
+        root.matches(SubscriptionsStore.splitTopic("device/500/command"), 0, matching);
+        assertEquals(1, matching.size());
+        assertEquals("device500", matching.get(0).getClientId());
+    }
+
+    @Test
+    public void testSubscriptionWithGreaterQosIsKept() {
+        TreeNode node = new TreeNode();
+        node.addSubscription(new Subscription("client", "a/b", QOSType.LEAST_ONE));
+        node.addSubscription(new Subscription("client", "a/b", QOSType.MOST_ONE));
+        assertEquals(1, node.subscriptions().size());
+        assertEquals(QOSType.LEAST_ONE, node.subscriptions().iterator().next().getRequestedQos());
+
+        node.addSubscription(new Subscription("client", "a/b", QOSType.EXACTLY_ONCE));
+        assertEquals(QOSType.EXACTLY_ONCE, node.subscriptions().iterator().next().getRequestedQos());
+    }
+}
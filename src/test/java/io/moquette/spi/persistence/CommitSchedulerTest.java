@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class CommitSchedulerTest {
+
+    private final Semaphore m_commits = new Semaphore(0);
+    private CommitScheduler m_scheduler;
+
+    private void start(long maxEntries, long maxBytes, long maxDelayMillis, long backpressureBytes) {
+        m_scheduler = new CommitScheduler(new Runnable() {
+            @Override
+            public void run() {
+                m_commits.release();
+            }
+        }, maxEntries, maxBytes, maxDelayMillis, TimeUnit.MILLISECONDS, backpressureBytes,
+                new LatencyMetricsCollector());
+        m_scheduler.start();
+    }
+
+    @After
+    public void tearDown() {
+        m_scheduler.stop();
+    }
+
+    @Test
+    public void testCommitsWhenDirtyEntriesReachTheThreshold() throws Exception {
+        start(3, 0, 60000, 0);
+        m_scheduler.dirty();
+        m_scheduler.dirty();
+        assertFalse(m_commits.tryAcquire(100, TimeUnit.MILLISECONDS));
+        m_scheduler.dirty();
+        assertTrue(m_commits.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCommitsWhenDirtyBytesReachTheThreshold() throws Exception {
+        start(0, 1024, 60000, 0);
+        m_scheduler.dirty(1000);
+        assertFalse(m_commits.tryAcquire(100, TimeUnit.MILLISECONDS));
+        m_scheduler.dirty(24);
+        assertTrue(m_commits.tryAcquire(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCommitsAfterMaxDelayAndNotWhenIdle() throws Exception {
+        start(1000, 0, 50, 0);
+        assertFalse(m_commits.tryAcquire(200, TimeUnit.MILLISECONDS));
+        m_scheduler.dirty();
+        assertTrue(m_commits.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(m_commits.tryAcquire(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testThrottleWaitsForTheCommit() throws Exception {
+        final Semaphore committing = new Semaphore(0);
+        final AtomicBoolean committed = new AtomicBoolean();
+        m_scheduler = new CommitScheduler(new Runnable() {
+            @Override
+            public void run() {
+                committing.release();
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                committed.set(true);
+            }
+        }, 0, 0, 60000, TimeUnit.MILLISECONDS, 100, new LatencyMetricsCollector());
+        m_scheduler.start();
+
+        //under the bound the caller isn't blocked
+        m_scheduler.dirty(50);
+        m_scheduler.throttle();
+        assertFalse(committed.get());
+
+        m_scheduler.dirty(100);
+        assertTrue(committing.tryAcquire(5, TimeUnit.SECONDS));
+        m_scheduler.throttle();
+        assertTrue(committed.get());
+    }
+
+    @Test
+    public void testResumesOnceUnderTheBound() throws Exception {
+        final Semaphore commitAllowed = new Semaphore(0);
+        m_scheduler = new CommitScheduler(new Runnable() {
+            @Override
+            public void run() {
+                commitAllowed.acquireUninterruptibly();
+            }
+        }, 0, 0, 60000, TimeUnit.MILLISECONDS, 100, new LatencyMetricsCollector());
+        m_scheduler.start();
+        final Semaphore resumed = new Semaphore(0);
+        Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                resumed.release();
+            }
+        };
+
+        //under the bound it resumes right away
+        m_scheduler.dirty(50);
+        assertFalse(m_scheduler.isOverBound());
+        m_scheduler.whenUnderBound(resume);
+        assertEquals(1, resumed.availablePermits());
+        resumed.drainPermits();
+
+        m_scheduler.dirty(100);
+        assertTrue(m_scheduler.isOverBound());
+        m_scheduler.whenUnderBound(resume);
+        assertFalse(resumed.tryAcquire(100, TimeUnit.MILLISECONDS));
+
+        commitAllowed.release();
+        assertTrue(resumed.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(m_scheduler.isOverBound());
+    }
+
+    @Test
+    public void testRetriesAFailedCommitWithoutNewWrites() throws Exception {
+        final AtomicBoolean failed = new AtomicBoolean();
+        m_scheduler = new CommitScheduler(new Runnable() {
+            @Override
+            public void run() {
+                if (failed.compareAndSet(false, true)) {
+                    throw new IllegalStateException("disk full");
+                }
+                m_commits.release();
+            }
+        }, 1, 0, 50, TimeUnit.MILLISECONDS, 100, new LatencyMetricsCollector());
+        m_scheduler.start();
+
+        m_scheduler.dirty(150);
+        assertTrue(m_commits.tryAcquire(5, TimeUnit.SECONDS));
+        assertTrue(failed.get());
+    }
+}
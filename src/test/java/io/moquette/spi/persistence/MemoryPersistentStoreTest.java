@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.spi.ClientSession;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MemoryPersistentStoreTest {
+
+    private IMessagesStore m_messagesStore;
+    private ISessionsStore m_sessionsStore;
+
+    @Before
+    public void setUp() {
+        MemoryPersistentStore store = new MemoryPersistentStore();
+        store.initStore();
+        m_messagesStore = store.messagesStore();
+        m_sessionsStore = store.sessionsStore(m_messagesStore);
+    }
+
+    private static List<ISessionsStore.Enqueued> queued(String... guids) {
+        List<ISessionsStore.Enqueued> queued = new ArrayList<>();
+        for (String guid : guids) {
+            queued.add(new ISessionsStore.Enqueued(guid, false));
+        }
+        return queued;
+    }
+
+    @Test
+    public void testSessionAndSubscriptions() {
+        assertNull(m_sessionsStore.sessionForClient("c1"));
+        ClientSession session = m_sessionsStore.createNewSession("c1", false);
+        assertFalse(m_sessionsStore.sessionForClient("c1").isCleanSession());
+
+        session.subscribe("a/b", new Subscription("c1", "a/b", QOSType.LEAST_ONE));
+        assertEquals(1, m_sessionsStore.listAllSubscriptions().size());
+        assertTrue(m_sessionsStore.contains("c1"));
+
+        session.cleanSession();
+        assertTrue(m_sessionsStore.listAllSubscriptions().isEmpty());
+        assertFalse(m_sessionsStore.contains("c1"));
+    }
+
+    @Test
+    public void testEnqueuedMessagesKeepOrder() {
+        String guid1 = m_messagesStore.storePublishForFuture(message("c1", 1));
+        String guid2 = m_messagesStore.storePublishForFuture(message("c1", 2));
+        m_sessionsStore.bindToDeliver(guid1, "c2");
+        m_sessionsStore.bindToDeliver(guid2, "c2");
+
+        assertEquals(Arrays.asList(guid1, guid2), m_sessionsStore.drainEnqueued("c2"));
+        assertTrue(m_sessionsStore.drainEnqueued("c2").isEmpty());
+    }
+
+    @Test
+    public void testDrainEnqueuedUpToMax() {
+        String guid1 = m_messagesStore.storePublishForFuture(message("c1", 1));
+        String guid2 = m_messagesStore.storePublishForFuture(message("c1", 2));
+        String guid3 = m_messagesStore.storePublishForFuture(message("c1", 3));
+        m_sessionsStore.bindToDeliver(guid1, "c2");
+        m_sessionsStore.bindToDeliver(guid2, "c2");
+        m_sessionsStore.bindToDeliver(guid3, "c2");
+
+        assertEquals(queued(guid1, guid2), m_sessionsStore.drainEnqueued("c2", 2));
+        assertEquals(queued(guid3), m_sessionsStore.drainEnqueued("c2", 2));
+        assertTrue(m_sessionsStore.drainEnqueued("c2", 2).isEmpty());
+    }
+
+    @Test
+    public void testMessageDroppedWithItsLastReference() {
+        m_sessionsStore.createNewSession("c2", false);
+        m_sessionsStore.createNewSession("c3", false);
+        String guid = m_messagesStore.storePublishForFuture(message("c1", 1));
+        m_sessionsStore.inFlight("c2", 1, guid);
+        m_sessionsStore.bindToDeliver(guid, "c3");
+        m_messagesStore.decUsageCounter(guid);
+
+        m_sessionsStore.inFlightAck("c2", 1);
+        assertNotNull(m_messagesStore.getMessageByGuid(guid));
+
+        for (String drained : m_sessionsStore.drainEnqueued("c3")) {
+            m_messagesStore.decUsageCounter(drained);
+        }
+        assertNull(m_messagesStore.getMessageByGuid(guid));
+    }
+
+    @Test
+    public void testClearSessionMessagesReleasesReferences() {
+        m_sessionsStore.createNewSession("c2", false);
+        String guid = m_messagesStore.storePublishForFuture(message("c2", 1));
+        m_sessionsStore.bindGuid("c2", 1, guid);
+        m_sessionsStore.bindToDeliver(guid, "c2");
+        m_messagesStore.decUsageCounter(guid);
+        assertEquals(guid, m_sessionsStore.mapToGuid("c2", 1));
+
+        m_sessionsStore.clearSessionMessages("c2");
+        assertNull(m_sessionsStore.mapToGuid("c2", 1));
+        assertNull(m_messagesStore.getMessageByGuid(guid));
+    }
+
+    @Test
+    public void testOfflineQueueDropPolicy() {
+        MemorySessionsStore dropOldest = new MemorySessionsStore(m_messagesStore, new OfflineQueuePolicy(2, true));
+        MemorySessionsStore dropNewest = new MemorySessionsStore(m_messagesStore, new OfflineQueuePolicy(2, false));
+        for (String guid : new String[] {"g1", "g2", "g3"}) {
+            dropOldest.bindToDeliver(guid, "c1");
+            dropNewest.bindToDeliver(guid, "c1");
+        }
+
+        assertEquals(Arrays.asList("g2", "g3"), dropOldest.drainEnqueued("c1"));
+        assertEquals(Arrays.asList("g1", "g2"), dropNewest.drainEnqueued("c1"));
+    }
+
+    @Test
+    public void testRetained() {
+        String guid = m_messagesStore.storePublishForFuture(message("c1", 1));
+        m_messagesStore.storeRetained("device/1/status", guid);
+
+        Collection<StoredMessage> matching = m_messagesStore.searchMatching("device/+/status");
+        assertEquals(1, matching.size());
+        assertEquals(guid, matching.iterator().next().getGuid());
+
+        m_messagesStore.cleanRetained("device/1/status");
+        assertTrue(m_messagesStore.searchMatching("device/#").isEmpty());
+    }
+
+    @Test
+    public void testPacketIDs() {
+        assertEquals(1, m_sessionsStore.nextPacketID("c1"));
+        assertEquals(2, m_sessionsStore.nextPacketID("c1"));
+    }
+
+    @Test
+    public void testQoS2PacketIDReservedUntilPubComp() {
+        MemorySessionsStore sessionsStore = (MemorySessionsStore) m_sessionsStore;
+        int packetID = m_sessionsStore.nextPacketID("c1");
+        m_sessionsStore.inFlight("c1", packetID, "guid");
+
+        //PUBREC
+        m_sessionsStore.secondPhaseAckWaiting("c1", packetID);
+        m_sessionsStore.inFlightAck("c1", packetID);
+        assertTrue(sessionsStore.packetIds("c1").isUsed(packetID));
+
+        //PUBCOMP
+        m_sessionsStore.secondPhaseAcknowledged("c1", packetID);
+        assertFalse(sessionsStore.packetIds("c1").isUsed(packetID));
+    }
+
+    private static StoredMessage message(String clientID, int messageID) {
+        StoredMessage msg = new StoredMessage("hello".getBytes(), QOSType.LEAST_ONE, "device/1/status");
+        msg.setClientID(clientID);
+        msg.setMessageID(messageID);
+        return msg;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MessageEvictorTest {
+
+    private static final long AGE_LIMIT = 5000;
+
+    private DB m_db;
+    private MapDBMessagesStore m_store;
+
+    @Before
+    public void setUp() {
+        m_db = DBMaker.newMemoryDB().make();
+        //never started, the test checks the store's content and not what's committed
+        CommitScheduler commits = new CommitScheduler(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, 0, 0, 1, TimeUnit.SECONDS, 0, new LatencyMetricsCollector());
+        m_store = new MapDBMessagesStore(m_db, commits, new LatencyMetricsCollector());
+        m_store.initStore();
+    }
+
+    @After
+    public void tearDown() {
+        m_db.close();
+    }
+
+    private String store(String clientID) {
+        StoredMessage msg = new StoredMessage("payload".getBytes(), QOSType.LEAST_ONE, "/topic");
+        msg.setClientID(clientID);
+        msg.setMessageID(1);
+        return m_store.storePublishForFuture(msg);
+    }
+
+    private boolean isStored(String guid) {
+        return m_store.getMessageByGuid(guid) != null;
+    }
+
+    @Test
+    public void testEvictsTheMessagesOlderThanMaxAge() {
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(0, AGE_LIMIT, 0, 100));
+        String first = store("publisher");
+        String second = store("publisher");
+        evictor.evict(1000);
+        String young = store("publisher");
+
+        evictor.evict(1000 + AGE_LIMIT);
+
+        assertFalse(isStored(first));
+        assertFalse(isStored(second));
+        assertTrue(isStored(young));
+        assertEquals(2, evictor.evictedByAge());
+        assertEquals(2 * m_store.storedBytes(), evictor.reclaimedBytes());
+    }
+
+    @Test
+    public void testEvictsTheOldestMessagesOverMaxBytes() {
+        String first = store("publisher");
+        long size = m_store.storedBytes();
+        String second = store("publisher");
+        String third = store("publisher");
+        String fourth = store("publisher");
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(2 * size, 0, 0, 100));
+
+        evictor.evict(1000);
+
+        assertFalse(isStored(first));
+        assertFalse(isStored(second));
+        assertTrue(isStored(third));
+        assertTrue(isStored(fourth));
+        assertEquals(2, evictor.evictedBySize());
+        assertEquals(2 * size, evictor.reclaimedBytes());
+        assertEquals(2 * size, m_store.storedBytes());
+    }
+
+    @Test
+    public void testEvictsTheOldestMessagesOfAPublisherOverItsLimit() {
+        String first = store("flooder");
+        String other = store("quiet");
+        String second = store("flooder");
+        String third = store("flooder");
+        String fourth = store("flooder");
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(0, 0, 2, 100));
+
+        evictor.evict(1000);
+
+        assertFalse(isStored(first));
+        assertFalse(isStored(second));
+        assertTrue(isStored(third));
+        assertTrue(isStored(fourth));
+        assertTrue(isStored(other));
+        assertEquals(2, evictor.evictedByClient());
+        assertEquals(2, m_store.messagesOf("flooder"));
+    }
+
+    @Test
+    public void testResumesWhereThePreviousPassStopped() {
+        String[] guids = new String[5];
+        for (int i = 0; i < guids.length; i++) {
+            guids[i] = store("publisher");
+        }
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(1, 0, 0, 2));
+
+        evictor.evict(1000);
+        assertFalse(isStored(guids[0]));
+        assertFalse(isStored(guids[1]));
+        assertTrue(isStored(guids[2]));
+        assertEquals(2, evictor.evictedBySize());
+
+        evictor.evict(2000);
+        assertFalse(isStored(guids[2]));
+        assertFalse(isStored(guids[3]));
+        assertTrue(isStored(guids[4]));
+
+        evictor.evict(3000);
+        assertFalse(isStored(guids[4]));
+        assertEquals(5, evictor.evictedBySize());
+        assertEquals(0, m_store.storedBytes());
+    }
+
+    @Test
+    public void testResumesThePublisherScanAcrossPasses() {
+        String[] guids = new String[4];
+        for (int i = 0; i < guids.length; i++) {
+            guids[i] = store("flooder");
+        }
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(0, 0, 1, 2));
+
+        evictor.evict(1000);
+        assertEquals(2, evictor.evictedByClient());
+        assertTrue(isStored(guids[2]));
+
+        evictor.evict(2000);
+        assertEquals(3, evictor.evictedByClient());
+        assertFalse(isStored(guids[2]));
+        assertTrue(isStored(guids[3]));
+    }
+
+    @Test
+    public void testSkipsRetainedMessages() {
+        String retained = store("publisher");
+        m_store.storeRetained("/topic", retained);
+        String first = store("publisher");
+        String second = store("publisher");
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(1, 0, 0, 100));
+
+        evictor.evict(1000);
+
+        assertTrue(isStored(retained));
+        assertFalse(isStored(first));
+        assertFalse(isStored(second));
+        assertEquals(2, evictor.evictedBySize());
+    }
+
+    @Test
+    public void testSkipsQoS2MessagesWaitingForTheirPubRel() {
+        String awaiting = store("publisher");
+        m_store.awaitRelease(awaiting);
+        String other = store("publisher");
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(1, 0, 0, 100));
+
+        evictor.evict(1000);
+        assertTrue(isStored(awaiting));
+        assertFalse(isStored(other));
+
+        m_store.released(awaiting);
+        evictor = new MessageEvictor(m_store, new EvictionPolicy(1, 0, 0, 100));
+        evictor.evict(2000);
+        assertFalse(isStored(awaiting));
+    }
+
+    @Test
+    public void testPublishesTheTotals() {
+        store("publisher");
+        store("publisher");
+        long stored = m_store.storedBytes();
+        MessageEvictor evictor = new MessageEvictor(m_store, new EvictionPolicy(1, 0, 0, 100));
+
+        evictor.evict(1000);
+
+        EvictionMetrics metrics = evictor.metrics();
+        assertEquals(2, metrics.evictedBySize());
+        assertEquals(0, metrics.evictedByAge());
+        assertEquals(0, metrics.evictedByClient());
+        assertEquals(stored, metrics.reclaimedBytes());
+        assertEquals(0, metrics.storedBytes());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PacketIdAllocatorTest {
+
+    @Test
+    public void testAllocatesInRoundRobinSkippingUsed() {
+        PacketIdAllocator allocator = new PacketIdAllocator();
+        assertEquals(1, allocator.allocate());
+        assertEquals(2, allocator.allocate());
+        allocator.release(1);
+        //the cursor moves forward, released identifiers are reused only after wrapping
+        assertEquals(3, allocator.allocate());
+        assertEquals(2, allocator.inUse());
+    }
+
+    @Test
+    public void testWrapsWithoutZeroAndSkipsInFlight() {
+        PacketIdAllocator allocator = new PacketIdAllocator();
+        for (int i = 1; i <= PacketIdAllocator.MAX_PACKET_ID; i++) {
+            assertEquals(i, allocator.allocate());
+        }
+        for (int i = 1; i <= PacketIdAllocator.MAX_PACKET_ID; i++) {
+            if (i != 3 && i != 64) {
+                allocator.release(i);
+            }
+        }
+        assertEquals(1, allocator.allocate());
+        assertEquals(2, allocator.allocate());
+        assertEquals(4, allocator.allocate());
+        for (int i = 5; i < 64; i++) {
+            allocator.allocate();
+        }
+        assertEquals(65, allocator.allocate());
+    }
+
+    @Test
+    public void testExhausted() {
+        PacketIdAllocator allocator = new PacketIdAllocator();
+        for (int i = 1; i <= PacketIdAllocator.MAX_PACKET_ID; i++) {
+            allocator.allocate();
+        }
+        try {
+            allocator.allocate();
+            fail("Expected the identifiers to be exhausted");
+        } catch (IllegalStateException ex) {
+            //expected
+        }
+        allocator.release(42);
+        assertEquals(42, allocator.allocate());
+    }
+
+    @Test
+    public void testUsedIdsRoundTrip() {
+        PacketIdAllocator allocator = PacketIdAllocator.fromUsedIds(new int[] {5, 64, 65535});
+        assertEquals(Arrays.toString(new int[] {5, 64, 65535}), Arrays.toString(allocator.usedIds()));
+        assertTrue(allocator.isUsed(64));
+        assertFalse(allocator.isUsed(0));
+        assertEquals(1, allocator.allocate());
+    }
+}
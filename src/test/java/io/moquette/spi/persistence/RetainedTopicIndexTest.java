@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+public class RetainedTopicIndexTest {
+
+    private RetainedTopicIndex m_index;
+
+    @Before
+    public void setUp() {
+        m_index = new RetainedTopicIndex();
+        m_index.put("device/1/status", "g1");
+        m_index.put("device/2/status", "g2");
+        m_index.put("device/2/data", "g3");
+        m_index.put("device", "g4");
+        m_index.put("sport/tennis", "g5");
+    }
+
+    @Test
+    public void testLiteralFilter() {
+        assertEquals(new HashSet<>(Arrays.asList("g2")), new HashSet<>(m_index.matching("device/2/status")));
+        assertTrue(m_index.matching("device/3/status").isEmpty());
+    }
+
+    @Test
+    public void testSingleLevelWildcard() {
+        assertEquals(new HashSet<>(Arrays.asList("g1", "g2")), new HashSet<>(m_index.matching("device/+/status")));
+        assertEquals(new HashSet<>(Arrays.asList("g4")), new HashSet<>(m_index.matching("+")));
+    }
+
+    @Test
+    public void testMultiLevelWildcardMatchesParent() {
+        assertEquals(new HashSet<>(Arrays.asList("g1", "g2", "g3", "g4")),
+                new HashSet<>(m_index.matching("device/#")));
+        assertEquals(5, m_index.matching("#").size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        m_index.put("device/1/status", "g6");
+        assertEquals(Arrays.asList("g6"), m_index.matching("device/1/status"));
+
+        m_index.remove("device/1/status");
+        m_index.remove("device/9/status");
+        assertTrue(m_index.matching("device/1/status").isEmpty());
+        assertEquals(new HashSet<>(Arrays.asList("g2", "g3", "g4")), new HashSet<>(m_index.matching("device/#")));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StoredMessageCodecTest {
+
+    @Test
+    public void testRoundTrip() {
+        TopicDictionary topics = new TopicDictionary(null);
+        StoredMessage msg = new StoredMessage("hello".getBytes(), QOSType.EXACTLY_ONCE, "device/1/status");
+        msg.setClientID("device1");
+        msg.setMessageID(65535);
+        msg.setRetained(true);
+
+        byte[] bytes = StoredMessageCodec.encode(msg, topics);
+        StoredMessage decoded = StoredMessageCodec.decode("42", bytes, topics);
+
+        assertEquals("42", decoded.getGuid());
+        assertEquals(QOSType.EXACTLY_ONCE, decoded.getQos());
+        assertEquals("device/1/status", decoded.getTopic());
+        assertEquals("device1", decoded.getClientID());
+        assertEquals(Integer.valueOf(65535), decoded.getMessageID());
+        assertTrue(decoded.isRetained());
+        assertArrayEquals("hello".getBytes(), decoded.getMessage().array());
+        assertEquals("device1", StoredMessageCodec.clientIDOf(bytes));
+    }
+
+    @Test
+    public void testOptionalFieldsAndTopicInterning() {
+        TopicDictionary topics = new TopicDictionary(null);
+        StoredMessage msg = new StoredMessage(new byte[300], QOSType.MOST_ONE, "device/1/status");
+
+        byte[] first = StoredMessageCodec.encode(msg, topics);
+        byte[] second = StoredMessageCodec.encode(msg, topics);
+        assertEquals(1, topics.size());
+        //version, flags, topic id, two bytes of payload length and the payload
+        assertEquals(1 + 1 + 1 + 2 + 300, first.length);
+        assertArrayEquals(first, second);
+
+        StoredMessage decoded = StoredMessageCodec.decode("1", first, topics);
+        assertNull(decoded.getClientID());
+        assertNull(StoredMessageCodec.clientIDOf(first));
+        assertNull(decoded.getMessageID());
+        assertFalse(decoded.isRetained());
+        assertEquals(300, decoded.getMessage().remaining());
+    }
+
+    @Test
+    public void testDictionaryIsRestored() {
+        Map<Integer, String> store = new HashMap<>();
+        TopicDictionary topics = new TopicDictionary(store);
+        int id = topics.intern("a/b");
+        topics.intern("a/c");
+
+        TopicDictionary restored = new TopicDictionary(store);
+        assertEquals("a/b", restored.topic(id));
+        assertEquals(id, restored.intern("a/b"));
+        assertEquals(3, restored.intern("a/d"));
+    }
+}
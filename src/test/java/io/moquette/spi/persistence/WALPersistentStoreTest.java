@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2012-2015 The original author or authors
+ * ------------------------------------------------------
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * and Apache License v2.0 which accompanies this distribution.
+ *
+ * The Eclipse Public License is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * The Apache License v2.0 is available at
+ * http://www.opensource.org/licenses/apache2.0.php
+ *
+ * You may elect to redistribute this code under either of these licenses.
+ */
+package io.moquette.spi.persistence;
+
+import io.moquette.BrokerConstants;
+import io.moquette.proto.messages.AbstractMessage.QOSType;
+import io.moquette.server.config.MemoryConfig;
+import io.moquette.server.netty.metrics.LatencyMetricsCollector;
+import io.moquette.spi.IMessagesStore;
+import io.moquette.spi.IMessagesStore.StoredMessage;
+import io.moquette.spi.ISessionsStore;
+import io.moquette.spi.impl.subscriptions.Subscription;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class WALPersistentStoreTest {
+
+    private File m_directory;
+    private WALPersistentStore m_store;
+    private IMessagesStore m_messagesStore;
+    private ISessionsStore m_sessionsStore;
+
+    @Before
+    public void setUp() throws Exception {
+        m_directory = Files.createTempDirectory("moquette_wal").toFile();
+        open("sync", 1024);
+    }
+
+    @After
+    public void tearDown() {
+        m_store.close();
+        File[] files = m_directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        m_directory.delete();
+    }
+
+    private void open(String fsync, int segmentSize) {
+        Properties props = new Properties();
+        props.setProperty(BrokerConstants.WAL_DIRECTORY_PROPERTY_NAME, m_directory.getAbsolutePath());
+        props.setProperty(BrokerConstants.WAL_FSYNC_PROPERTY_NAME, fsync);
+        props.setProperty(BrokerConstants.WAL_SEGMENT_SIZE_PROPERTY_NAME, Integer.toString(segmentSize));
+        m_store = new WALPersistentStore(new MemoryConfig(props), new LatencyMetricsCollector());
+        m_store.initStore();
+        m_messagesStore = m_store.messagesStore();
+        m_sessionsStore = m_store.sessionsStore(m_messagesStore);
+    }
+
+    private void reopen() {
+        m_store.close();
+        open("sync", 1024);
+    }
+
+    private String store(String clientID, int messageID, String topic) {
+        StoredMessage msg = new StoredMessage(("payload" + messageID).getBytes(), QOSType.EXACTLY_ONCE, topic);
+        msg.setClientID(clientID);
+        msg.setMessageID(messageID);
+        return m_messagesStore.storePublishForFuture(msg);
+    }
+
+    private static List<ISessionsStore.Enqueued> queued(String... guids) {
+        List<ISessionsStore.Enqueued> queued = new ArrayList<>();
+        for (String guid : guids) {
+            queued.add(new ISessionsStore.Enqueued(guid, false));
+        }
+        return queued;
+    }
+
+    @Test
+    public void testReplayRestoresState() {
+        m_sessionsStore.createNewSession("c1", false);
+        m_sessionsStore.addNewSubscription(new Subscription("c1", "device/+/status", QOSType.LEAST_ONE));
+        m_sessionsStore.addNewSubscription(new Subscription("c1", "a/b", QOSType.MOST_ONE));
+        m_sessionsStore.removeSubscription("a/b", "c1");
+        String guid1 = store("pub", 1, "device/1/status");
+        String guid2 = store("pub", 2, "device/2/status");
+        m_sessionsStore.bindGuid("pub", 2, guid2);
+        m_messagesStore.storeRetained("device/1/status", guid1);
+        m_sessionsStore.inFlight("c1", 7, guid1);
+        m_sessionsStore.bindToDeliver(guid1, "c1");
+        assertEquals(Arrays.asList(guid1), m_sessionsStore.drainEnqueued("c1"));
+        m_sessionsStore.bindToDeliver(guid1, "c1");
+        m_sessionsStore.bindToDeliver(guid2, "c1");
+        assertEquals(queued(guid1), m_sessionsStore.drainEnqueued("c1", 1));
+        m_sessionsStore.secondPhaseAckWaiting("c1", 9);
+
+        reopen();
+
+        assertFalse(m_sessionsStore.sessionForClient("c1").isCleanSession());
+        assertEquals(1, m_sessionsStore.listAllSubscriptions().size());
+        assertEquals(QOSType.LEAST_ONE, m_sessionsStore.listAllSubscriptions().get(0).getRequestedQos());
+        assertEquals(Arrays.asList(guid2), m_sessionsStore.drainEnqueued("c1"));
+        assertEquals(guid2, m_sessionsStore.mapToGuid("pub", 2));
+        assertEquals("device/1/status", m_messagesStore.searchMatching("device/#").iterator().next().getTopic());
+        assertArrayEquals("payload2".getBytes(), m_messagesStore.getMessageByGuid(guid2).getMessage().array());
+        //new guids don't collide with the replayed ones
+        String guid3 = store("pub", 3, "device/3/status");
+        assertFalse(guid3.equals(guid1) || guid3.equals(guid2));
+    }
+
+    @Test
+    public void testRetainedFlagOfTheOfflineQueueIsReplayed() {
+        m_sessionsStore.createNewSession("c1", false);
+        String retained = store("pub", 1, "device/1/status");
+        String forwarded = store("pub", 2, "device/2/status");
+        m_sessionsStore.bindToDeliver(retained, "c1", true);
+        m_sessionsStore.bindToDeliver(forwarded, "c1");
+
+        reopen();
+
+        assertEquals(Arrays.asList(new ISessionsStore.Enqueued(retained, true),
+                new ISessionsStore.Enqueued(forwarded, false)), m_sessionsStore.drainEnqueued("c1", 10));
+    }
+
+    @Test
+    public void testAcknowledgedMessagesAreDropped() {
+        m_sessionsStore.createNewSession("c1", false);
+        String acked = store("pub", 1, "a");
+        m_sessionsStore.inFlight("c1", 1, acked);
+        m_messagesStore.decUsageCounter(acked);
+        m_sessionsStore.inFlightAck("c1", 1);
+        assertNull(m_messagesStore.getMessageByGuid(acked));
+        String pending = store("pub", 2, "b");
+        m_sessionsStore.bindGuid("pub", 2, pending);
+        m_messagesStore.decUsageCounter(pending);
+        //stored but never bound, as if the broker stopped in between
+        String orphan = store("pub", 3, "c");
+
+        m_store.compact();
+        reopen();
+
+        assertNull(m_messagesStore.getMessageByGuid(acked));
+        assertNull(m_messagesStore.getMessageByGuid(orphan));
+        assertNotNull(m_messagesStore.getMessageByGuid(pending));
+        assertEquals(pending, m_sessionsStore.mapToGuid("pub", 2));
+
+        m_sessionsStore.unbindGuid("pub", 2);
+        assertNull(m_messagesStore.getMessageByGuid(pending));
+    }
+
+    @Test
+    public void testRecordsAfterCompactionAreReplayed() {
+        m_sessionsStore.createNewSession("c1", true);
+        //fill a few small segments
+        for (int i = 0; i < 50; i++) {
+            m_sessionsStore.addNewSubscription(new Subscription("c1", "topic/" + i, QOSType.MOST_ONE));
+        }
+        m_store.compact();
+        m_sessionsStore.removeSubscription("topic/0", "c1");
+        m_sessionsStore.updateCleanStatus("c1", false);
+
+        reopen();
+
+        assertEquals(49, m_sessionsStore.listAllSubscriptions().size());
+        assertFalse(m_sessionsStore.sessionForClient("c1").isCleanSession());
+    }
+
+    @Test
+    public void testSegmentsOfPreviousRunsCountTowardTheCompaction() throws Exception {
+        m_store.close();
+        SegmentedLog.RecordHandler ignore = new SegmentedLog.RecordHandler() {
+            @Override
+            public void onRecord(byte type, DataInputStream in) {
+            }
+        };
+        //each run leaves its own segment, even without writes
+        for (int run = 0; run < 3; run++) {
+            SegmentedLog log = new SegmentedLog(m_directory, 1024, true, 3);
+            log.open(ignore);
+            assertEquals(run == 2, log.isCompactionDue());
+            log.close();
+        }
+        open("sync", 1024);
+    }
+
+    @Test
+    public void testTornTailIsIgnored() throws Exception {
+        m_sessionsStore.createNewSession("c1", false);
+        m_sessionsStore.addNewSubscription(new Subscription("c1", "a", QOSType.MOST_ONE));
+        m_store.close();
+
+        //garble the second record of the segment, as a write interrupted by a crash would
+        File segment = m_directory.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            int secondRecord = 8 + raf.readInt();
+            raf.seek(secondRecord + 8 + 2);
+            int garbled = raf.readByte() ^ 0x7F;
+            raf.seek(secondRecord + 8 + 2);
+            raf.writeByte(garbled);
+        }
+        open("batch", 1024);
+
+        assertNotNull(m_sessionsStore.sessionForClient("c1"));
+        assertTrue(m_sessionsStore.listAllSubscriptions().isEmpty());
+    }
+}